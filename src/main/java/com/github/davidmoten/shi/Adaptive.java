@@ -0,0 +1,208 @@
+package com.github.davidmoten.shi;
+
+import com.github.davidmoten.guavamini.Preconditions;
+import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
+
+import io.reactivex.Flowable;
+
+/**
+ * Concurrency of chunk requests that adapts to the network while a search runs
+ * (additive increase, multiplicative decrease). After each window of completed
+ * chunks the concurrency is increased by one while throughput keeps rising, held
+ * when throughput stops rising (bandwidth is saturated) and cut back when the
+ * average time to first byte grows well beyond the lowest seen (requests are
+ * queueing).
+ *
+ * <p>
+ * An instance remembers its concurrency and can be reused across searches of
+ * the same store. Searches running at the same time share its limit.
+ */
+public final class Adaptive {
+
+    // ignore latency growth below this (in ms) so that a low latency store doesn't
+    // back off on noise
+    private static final long MIN_LATENCY_MS = 10;
+
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final Limiter limiter;
+
+    private int limit;
+
+    // current window
+    private long windowStart = -1;
+    private int windowCount;
+    private long windowBytes;
+    private long windowTtfb;
+
+    private double lastThroughput;
+    private double minTtfb = Double.MAX_VALUE;
+
+    private Adaptive(int initialConcurrency, int minConcurrency, int maxConcurrency,
+            double latencyTolerance, double backoffRatio) {
+        this.limit = initialConcurrency;
+        this.limiter = new Limiter(initialConcurrency);
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Returns an adaptive concurrency with default settings (start at 4, between
+     * 1 and 128).
+     *
+     * @return adaptive concurrency
+     */
+    public static Adaptive aimd() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private int initialConcurrency = 4;
+        private int minConcurrency = 1;
+        private int maxConcurrency = 128;
+        private double latencyTolerance = 2;
+        private double backoffRatio = 0.75;
+
+        Builder() {
+        }
+
+        public Builder initialConcurrency(int initialConcurrency) {
+            this.initialConcurrency = initialConcurrency;
+            return this;
+        }
+
+        public Builder minConcurrency(int minConcurrency) {
+            this.minConcurrency = minConcurrency;
+            return this;
+        }
+
+        public Builder maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Sets how many times the lowest average time to first byte the average of
+         * a window may be before concurrency is cut back. Default is 2.
+         *
+         * @param latencyTolerance ratio greater than 1
+         * @return this
+         */
+        public Builder latencyTolerance(double latencyTolerance) {
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * Sets the factor concurrency is multiplied by when cut back. Default is
+         * 0.75.
+         *
+         * @param backoffRatio ratio between 0 and 1 (exclusive)
+         * @return this
+         */
+        public Builder backoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        public Adaptive build() {
+            Preconditions.checkArgument(minConcurrency > 0, "minConcurrency must be > 0");
+            Preconditions.checkArgument(maxConcurrency >= minConcurrency,
+                    "maxConcurrency must be >= minConcurrency");
+            Preconditions.checkArgument(
+                    initialConcurrency >= minConcurrency && initialConcurrency <= maxConcurrency,
+                    "initialConcurrency must be between minConcurrency and maxConcurrency");
+            Preconditions.checkArgument(latencyTolerance > 1, "latencyTolerance must be > 1");
+            Preconditions.checkArgument(backoffRatio > 0 && backoffRatio < 1,
+                    "backoffRatio must be between 0 and 1");
+            return new Adaptive(initialConcurrency, minConcurrency, maxConcurrency,
+                    latencyTolerance, backoffRatio);
+        }
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     *
+     * @return maximum number of chunk requests in flight
+     */
+    public synchronized int concurrency() {
+        return limit;
+    }
+
+    int maxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Returns the source that is subscribed to only when fewer than the current
+     * limit of sources are running. No thread is blocked while waiting.
+     *
+     * @param source source to limit
+     * @param <T>    item type
+     * @return limited source
+     */
+    <T> Flowable<T> limit(Flowable<T> source) {
+        return limiter.limit(source, 0, limiter);
+    }
+
+    @VisibleForTesting
+    int inFlight() {
+        return limiter.inFlight();
+    }
+
+    /**
+     * Records a completed chunk request and adjusts the limit at the end of each
+     * window (as many chunks as the limit).
+     *
+     * @param bytes             bytes read
+     * @param timeToFirstByteMs time to first byte of the request
+     * @param durationMs        time from the start of the request to its end
+     */
+    void record(long bytes, long timeToFirstByteMs, long durationMs) {
+        record(bytes, timeToFirstByteMs, durationMs, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    void record(long bytes, long timeToFirstByteMs, long durationMs, long now) {
+        synchronized (this) {
+            if (windowStart == -1) {
+                windowStart = now - durationMs;
+            }
+            windowCount++;
+            windowBytes += bytes;
+            windowTtfb += timeToFirstByteMs;
+            if (windowCount < limit) {
+                return;
+            }
+            double throughput = (double) windowBytes / Math.max(1, now - windowStart);
+            double ttfb = (double) windowTtfb / windowCount;
+            minTtfb = Math.min(minTtfb, ttfb);
+            if (ttfb > latencyTolerance * Math.max(minTtfb, MIN_LATENCY_MS)) {
+                limit = Math.max(minConcurrency, (int) (limit * backoffRatio));
+            } else if (throughput > lastThroughput) {
+                limit = Math.min(maxConcurrency, limit + 1);
+            }
+            lastThroughput = throughput;
+            windowStart = now;
+            windowCount = 0;
+            windowBytes = 0;
+            windowTtfb = 0;
+            limiter.setLimit(limit);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Adaptive [concurrency=" + limit + ", inFlight=" + limiter.inFlight() + "]";
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.github.davidmoten.shi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Fetches ranges of a local file with an {@link AsynchronousFileChannel}. The
+ * reads of the chunks of a search are issued up to the search concurrency at
+ * once and run on the executor of the channel. On Linux and macOS the JDK
+ * performs each read as a blocking read on a thread of that executor, so
+ * the executor bounds the number of threads used: reads beyond its size wait
+ * in its queue. {@link #open(File)} uses a fixed pool of
+ * {@value #DEFAULT_THREADS} threads that is shut down by {@link #close()}.
+ *
+ * <pre>
+ * try (AsyncFileRangeFetcher fetcher = AsyncFileRangeFetcher.open(file)) {
+ *     index.search(a, b).fetcher(fetcher).count().blockingGet();
+ * }
+ * </pre>
+ */
+public final class AsyncFileRangeFetcher implements AsyncRangeFetcher, Closeable {
+
+    public static final int DEFAULT_THREADS = 4;
+
+    static final String THREAD_NAME_PREFIX = "AsyncFileRangeFetcher-";
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private final AsynchronousFileChannel channel;
+
+    // null if the executor was supplied by the caller
+    private final ExecutorService ownExecutor;
+
+    private AsyncFileRangeFetcher(AsynchronousFileChannel channel,
+            ExecutorService ownExecutor) {
+        this.channel = channel;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * Opens the file reading with a fixed pool of {@value #DEFAULT_THREADS}
+     * threads.
+     *
+     * @param file sorted data file
+     * @return fetcher
+     * @throws IOException if the file can't be opened
+     */
+    public static AsyncFileRangeFetcher open(File file) throws IOException {
+        return open(file, DEFAULT_THREADS);
+    }
+
+    /**
+     * Opens the file reading with a fixed pool of the given number of threads
+     * that is shut down when the fetcher is closed. At most {@code threads}
+     * reads are in progress at once.
+     *
+     * @param file    sorted data file
+     * @param threads number of threads reading the file
+     * @return fetcher
+     * @throws IOException if the file can't be opened
+     */
+    public static AsyncFileRangeFetcher open(File file, int threads) throws IOException {
+        Preconditions.checkNotNull(file, "file cannot be null");
+        Preconditions.checkArgument(threads > 0, "threads must be greater than zero");
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            return new AsyncFileRangeFetcher(open(file.toPath(), executor), executor);
+        } catch (IOException | RuntimeException e) {
+            executor.shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the file with reads (and their completions) run on the given
+     * executor. The executor should be bounded because each read may block one
+     * of its threads. The executor is not shut down when the fetcher is closed.
+     *
+     * @param file     sorted data file
+     * @param executor runs the reads and their completions (and the reading of
+     *                 records)
+     * @return fetcher
+     * @throws IOException if the file can't be opened
+     */
+    public static AsyncFileRangeFetcher open(File file, ExecutorService executor)
+            throws IOException {
+        Preconditions.checkNotNull(file, "file cannot be null");
+        Preconditions.checkNotNull(executor, "executor cannot be null");
+        return new AsyncFileRangeFetcher(open(file.toPath(), executor), null);
+    }
+
+    private static AsynchronousFileChannel open(Path path, ExecutorService executor)
+            throws IOException {
+        return AsynchronousFileChannel.open(path,
+                Collections.singleton(StandardOpenOption.READ), executor);
+    }
+
+    @Override
+    public CompletionStage<InputStream> fetch(long start, Optional<Long> end) {
+        CompletableFuture<InputStream> future = new CompletableFuture<>();
+        try {
+            long finish = Math.min(channel.size(), end.orElse(Long.MAX_VALUE));
+            long length = Math.max(0, finish - start);
+            Preconditions.checkArgument(length <= Integer.MAX_VALUE,
+                    "range too large to fetch: " + length);
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            read(buffer, start, future);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void read(ByteBuffer buffer, long position,
+            CompletableFuture<InputStream> future) {
+        if (!buffer.hasRemaining() || future.isDone()) {
+            ((Buffer) buffer).flip();
+            future.complete(new ByteBufferInputStream(buffer));
+            return;
+        }
+        channel.read(buffer, position, null, new CompletionHandler<Integer, Object>() {
+
+            @Override
+            public void completed(Integer n, Object attachment) {
+                if (n < 0) {
+                    // the file was truncated
+                    ((Buffer) buffer).flip();
+                    future.complete(new ByteBufferInputStream(buffer));
+                } else {
+                    read(buffer, position + n, future);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Object attachment) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+    }
+
+}
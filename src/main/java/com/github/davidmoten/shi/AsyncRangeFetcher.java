@@ -0,0 +1,24 @@
+package com.github.davidmoten.shi;
+
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Fetches a range of bytes of the sorted data file without blocking the calling
+ * thread. The returned stage completes when the range has arrived so no thread
+ * is held per in-flight request.
+ */
+@FunctionalInterface
+public interface AsyncRangeFetcher {
+
+    /**
+     * Starts fetching a range of bytes.
+     *
+     * @param start first byte position (inclusive)
+     * @param end   end position (exclusive) or empty to read to the end
+     * @return the bytes of the range on completion
+     */
+    CompletionStage<InputStream> fetch(long start, Optional<Long> end);
+
+}
@@ -0,0 +1,47 @@
+package com.github.davidmoten.shi;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer bb;
+
+    ByteBufferInputStream(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    @Override
+    public int read() {
+        if (!bb.hasRemaining()) {
+            return -1;
+        }
+        return bb.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        } else if (!bb.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, bb.remaining());
+        bb.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.max(0, Math.min(n, bb.remaining()));
+        ((Buffer) bb).position(bb.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return bb.remaining();
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.github.davidmoten.shi;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Keeps the bytes of chunks read by searches in memory so that searches of the
+ * same area don't read them again. Chunks are keyed by source and position
+ * range and the least recently used chunks are evicted to keep the total size
+ * within a budget. A chunk bigger than the budget (or than 2GB) is not cached.
+ *
+ * <p>
+ * Pass the same instance to the searches that should share the cache:
+ *
+ * <pre>
+ * ChunkCache cache = ChunkCache.create(256 * 1024 * 1024);
+ * index.search(a, b).cache(cache).url(url);
+ * </pre>
+ */
+public final class ChunkCache {
+
+    private final long maxBytes;
+    private final boolean offHeap;
+
+    // guarded by this, in access order
+    private final LinkedHashMap<Key, ByteBuffer> chunks = new LinkedHashMap<>(16, 0.75f,
+            true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private ChunkCache(long maxBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Returns a cache of chunks on the heap with the given budget.
+     *
+     * @param maxBytes maximum total size of the cached chunks
+     * @return cache
+     */
+    public static ChunkCache create(long maxBytes) {
+        return maxBytes(maxBytes).build();
+    }
+
+    public static Builder maxBytes(long maxBytes) {
+        return new Builder(maxBytes);
+    }
+
+    public static final class Builder {
+
+        private final long maxBytes;
+        private boolean offHeap;
+
+        Builder(long maxBytes) {
+            Preconditions.checkArgument(maxBytes > 0, "maxBytes must be greater than zero");
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Sets whether the cached chunks are held in direct buffers outside the Java
+         * heap so that a large cache doesn't add to garbage collection work.
+         * Default is false.
+         *
+         * @param offHeap true to hold chunks outside the heap
+         * @return this
+         */
+        public Builder offHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+
+        public ChunkCache build() {
+            return new ChunkCache(maxBytes, offHeap);
+        }
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the total size of the cached chunks.
+     *
+     * @return size in bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int chunks() {
+        return chunks.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+        bytes = 0;
+    }
+
+    Source source(Object key) {
+        return new Source(this, key);
+    }
+
+    static final class Source {
+
+        private final ChunkCache cache;
+        private final Object key;
+
+        Source(ChunkCache cache, Object key) {
+            this.cache = cache;
+            this.key = key;
+        }
+
+        BiFunction<Long, Optional<Long>, InputStream> wrap(
+                BiFunction<Long, Optional<Long>, InputStream> factory, Index.Counts counts) {
+            return cache.wrap(key, factory, counts);
+        }
+    }
+
+    /**
+     * Returns a factory that reads chunks of the source from the cache or from the
+     * given factory (caching them).
+     *
+     * @param source  identifies the source (equal sources have equal bytes)
+     * @param factory opens ranges of the source
+     * @param counts  search statistics, null if not recorded
+     * @return caching factory
+     */
+    BiFunction<Long, Optional<Long>, InputStream> wrap(Object source,
+            BiFunction<Long, Optional<Long>, InputStream> factory, Index.Counts counts) {
+        return (start, end) -> {
+            // a chunk is held in one array
+            if (!end.isPresent() || end.get() - start > maxBytes
+                    || end.get() - start > Integer.MAX_VALUE) {
+                return factory.apply(start, end);
+            }
+            Key key = new Key(source, start, end.get());
+            ByteBuffer chunk = get(key, counts);
+            if (chunk != null) {
+                return new ByteBufferInputStream(chunk);
+            }
+            // read the whole chunk so it is cached even if the search stops early
+            byte[] b;
+            try (InputStream in = factory.apply(start, end)) {
+                b = Util.readFully(in, (int) (end.get() - start));
+            }
+            put(key, b, counts);
+            return new ByteArrayInputStream(b);
+        };
+    }
+
+    private synchronized ByteBuffer get(Key key, Index.Counts counts) {
+        ByteBuffer chunk = chunks.get(key);
+        if (chunk == null) {
+            misses++;
+            if (counts != null) {
+                counts.incrementCacheMisses();
+            }
+            return null;
+        } else {
+            hits++;
+            if (counts != null) {
+                counts.incrementCacheHits();
+            }
+            // each reader has its own position
+            return chunk.duplicate();
+        }
+    }
+
+    private void put(Key key, byte[] b, Index.Counts counts) {
+        ByteBuffer chunk;
+        if (offHeap) {
+            chunk = ByteBuffer.allocateDirect(b.length);
+            chunk.put(b);
+            ((Buffer) chunk).flip();
+        } else {
+            chunk = ByteBuffer.wrap(b);
+        }
+        synchronized (this) {
+            ByteBuffer previous = chunks.put(key, chunk);
+            if (previous != null) {
+                // read at the same time by another search
+                bytes -= previous.capacity();
+            }
+            bytes += b.length;
+            Iterator<Map.Entry<Key, ByteBuffer>> it = chunks.entrySet().iterator();
+            while (bytes > maxBytes) {
+                // least recently used first
+                bytes -= it.next().getValue().capacity();
+                it.remove();
+                evictions++;
+                if (counts != null) {
+                    counts.incrementCacheEvictions();
+                }
+            }
+        }
+    }
+
+    private static final class Key {
+
+        private final Object source;
+        private final long floorPosition;
+        private final long ceilingPosition;
+
+        Key(Object source, long floorPosition, long ceilingPosition) {
+            this.source = source;
+            this.floorPosition = floorPosition;
+            this.ceilingPosition = ceilingPosition;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+            result = 31 * result + Long.hashCode(floorPosition);
+            return 31 * result + Long.hashCode(ceilingPosition);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return floorPosition == other.floorPosition
+                    && ceilingPosition == other.ceilingPosition && source.equals(other.source);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChunkCache [maxBytes=" + maxBytes + ", bytes=" + bytes + ", chunks="
+                + chunks.size() + ", hits=" + hits + ", misses=" + misses + ", evictions="
+                + evictions + "]";
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.github.davidmoten.shi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+import org.davidmoten.kool.function.BiFunction;
+
+/**
+ * Reads from a start position using successive range requests of doubling size
+ * so that reading a prefix of unknown length does not request the whole
+ * resource.
+ */
+final class ChunkedRangeInputStream extends InputStream {
+
+    private final BiFunction<Long, Optional<Long>, InputStream> factory;
+    private long position;
+    private long chunkSize;
+    private InputStream in;
+    // end position (exclusive) of the current chunk
+    private long end;
+    private boolean finished;
+
+    ChunkedRangeInputStream(BiFunction<Long, Optional<Long>, InputStream> factory, long start,
+            long initialChunkSize) {
+        this.factory = factory;
+        this.position = start;
+        this.end = start;
+        this.chunkSize = initialChunkSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (position == end) {
+            nextChunk();
+        }
+        int n = in.read(b, off, (int) Math.min(len, end - position));
+        if (n == -1) {
+            // resource ended before the chunk did
+            finished = true;
+            return -1;
+        }
+        position += n;
+        return n;
+    }
+
+    private void nextChunk() throws IOException {
+        close();
+        end = position + chunkSize;
+        in = PagedIndexPositions.open(factory, position, Optional.of(end));
+        chunkSize *= 2;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+}
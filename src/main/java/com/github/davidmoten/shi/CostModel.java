@@ -0,0 +1,70 @@
+package com.github.davidmoten.shi;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Cost of reading from the store holding the sorted data file. Each request
+ * costs a fixed latency (time to first byte) and then bytes arrive at a fixed
+ * rate, so two position ranges are better read with one request when the gap
+ * between them can be read in less time than the latency of another request.
+ */
+public final class CostModel {
+
+    private final long requestLatencyMs;
+    private final long bytesPerSecond;
+
+    private CostModel(long requestLatencyMs, long bytesPerSecond) {
+        Preconditions.checkArgument(requestLatencyMs >= 0, "requestLatencyMs must be >= 0");
+        Preconditions.checkArgument(bytesPerSecond > 0, "bytesPerSecond must be > 0");
+        this.requestLatencyMs = requestLatencyMs;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public static CostModel create(long requestLatencyMs, long bytesPerSecond) {
+        return new CostModel(requestLatencyMs, bytesPerSecond);
+    }
+
+    /**
+     * Returns a cost model using the average time to first byte and the transfer
+     * rate (bytes read over the time spent reading chunks after their first byte,
+     * summed over chunks) observed in a search. The rate is that of a single
+     * request so the search may have read chunks concurrently. The search should
+     * be representative (same store).
+     *
+     * @param stats the final statistics of a search
+     * @return cost model learned from the search
+     */
+    public static CostModel from(WithStats<?> stats) {
+        Preconditions.checkArgument(stats.chunksRead() > 0, "stats must include reads");
+        long latency = Math.round(stats.timeToFirstByteMsAverage());
+        long transferNanos = Math.max(1, stats.transferTimeNanos());
+        long bytesPerSecond = Math.max(1,
+                Math.round(stats.bytesRead() * 1_000_000_000.0 / transferNanos));
+        return new CostModel(latency, bytesPerSecond);
+    }
+
+    public long requestLatencyMs() {
+        return requestLatencyMs;
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the largest gap between two position ranges that is cheaper to read
+     * than to skip with a separate request.
+     *
+     * @return gap size in bytes
+     */
+    public long maxGapBytes() {
+        return requestLatencyMs * bytesPerSecond / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "CostModel [requestLatencyMs=" + requestLatencyMs + ", bytesPerSecond="
+                + bytesPerSecond + ", maxGapBytes=" + maxGapBytes() + "]";
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.github.davidmoten.shi;
+
+/**
+ * Bounds on the number of records in a search box calculated from the index
+ * alone (no records read).
+ */
+public final class CountEstimate {
+
+    private final long lower;
+    private final long upper;
+
+    CountEstimate(long lower, long upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Returns the number of records known to be in the search box.
+     * 
+     * @return lower bound of the count
+     */
+    public long lower() {
+        return lower;
+    }
+
+    /**
+     * Returns the maximum number of records that could be in the search box.
+     * 
+     * @return upper bound of the count
+     */
+    public long upper() {
+        return upper;
+    }
+
+    public boolean isExact() {
+        return lower == upper;
+    }
+
+    @Override
+    public String toString() {
+        return "CountEstimate [lower=" + lower + ", upper=" + upper + "]";
+    }
+
+}
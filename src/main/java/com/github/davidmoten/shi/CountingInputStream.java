@@ -9,6 +9,8 @@ final class CountingInputStream extends InputStream {
     private long count;
     private long startTime;
     private long ttfb;
+    // time spent in reads after the first byte
+    private long transferNanos;
 
     CountingInputStream(InputStream in, long startTime) {
         this.in = in;
@@ -17,8 +19,9 @@ final class CountingInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
+        long t = System.nanoTime();
         int v = in.read();
-        postRead();
+        postRead(t);
         if (v != -1) {
             count++;
         }
@@ -27,18 +30,26 @@ final class CountingInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
+        long t = System.nanoTime();
         int n = in.read(b, off, len);
-        postRead();
+        postRead(t);
         if (n != -1) {
             count += n;
         }
         return n;
     }
 
-    private void postRead() {
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void postRead(long readStartNanos) {
         if (startTime != -1) {
             ttfb = System.currentTimeMillis() - startTime;
             startTime = -1;
+        } else {
+            transferNanos += System.nanoTime() - readStartNanos;
         }
     }
 
@@ -54,4 +65,10 @@ final class CountingInputStream extends InputStream {
         return v;
     }
 
+    long readTransferNanosAndSetToZero() {
+        long v = transferNanos;
+        transferNanos = 0;
+        return v;
+    }
+
 }
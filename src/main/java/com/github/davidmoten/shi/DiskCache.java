@@ -0,0 +1,374 @@
+package com.github.davidmoten.shi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import com.github.davidmoten.guavamini.Preconditions;
+import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
+
+/**
+ * Keeps chunks read from urls in files in a local directory so that they are
+ * read from local disk instead of the network by later searches, including
+ * searches made after a restart. A chunk is stored against the url, the
+ * version of the object at the url and its position range. The version is the
+ * dataset version given to the search or otherwise the {@code ETag} (or last
+ * modified time and length) returned by a {@code HEAD} request, so chunks of
+ * a replaced object are not used. The least recently used chunks are deleted to
+ * keep the total size within a budget.
+ *
+ * <p>
+ * A directory should be used by one {@code DiskCache} at a time. Only files
+ * named like the chunks of a cache (a SHA-256 hash in hex) are counted or
+ * deleted by the cache so other files in the directory are left alone.
+ *
+ * <pre>
+ * DiskCache cache = DiskCache.directory(new File("/var/cache/shi"))
+ *         .maxBytes(10_000_000_000L).build();
+ * index.search(a, b).diskCache(cache).url(url);
+ * </pre>
+ */
+public final class DiskCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Pattern CHUNK_NAME = Pattern.compile("[0-9a-f]{64}");
+
+    // File.createTempFile adds a random number to the prefix
+    private static final Pattern TEMP_NAME = Pattern
+            .compile("[0-9a-f]{64}[0-9]+" + Pattern.quote(TEMP_SUFFIX));
+
+    private final File directory;
+    private final long maxBytes;
+    private final long validateAfterMs;
+
+    // url -> version read from the server
+    private final Map<String, Validated> versions = new ConcurrentHashMap<>();
+
+    // guarded by this, file name -> size in access order
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private DiskCache(File directory, long maxBytes, long validateAfterMs) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.validateAfterMs = validateAfterMs;
+        load();
+    }
+
+    public static Builder directory(File directory) {
+        return new Builder(directory);
+    }
+
+    public static final class Builder {
+
+        private final File directory;
+        private long maxBytes = 1024L * 1024 * 1024;
+        private long validateAfterMs = 60000;
+
+        Builder(File directory) {
+            Preconditions.checkNotNull(directory, "directory cannot be null");
+            this.directory = directory;
+        }
+
+        /**
+         * Sets the maximum total size of the cached chunks. Default is 1GB.
+         *
+         * @param maxBytes size in bytes
+         * @return this
+         */
+        public Builder maxBytes(long maxBytes) {
+            Preconditions.checkArgument(maxBytes > 0, "maxBytes must be greater than zero");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets how long the version read from the server for a url is used before
+         * it is read again. Doesn't apply to searches given a dataset version.
+         * Default is 60000ms.
+         *
+         * @param validateAfterMs time in ms
+         * @return this
+         */
+        public Builder validateAfterMs(long validateAfterMs) {
+            Preconditions.checkArgument(validateAfterMs >= 0, "validateAfterMs must be >= 0");
+            this.validateAfterMs = validateAfterMs;
+            return this;
+        }
+
+        public DiskCache build() {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new UncheckedIOException(
+                        new IOException("could not create directory " + directory));
+            }
+            return new DiskCache(directory, maxBytes, validateAfterMs);
+        }
+    }
+
+    private void load() {
+        File[] list = directory.listFiles();
+        if (list == null) {
+            return;
+        }
+        // the least recently used first
+        Arrays.sort(list, Comparator.comparingLong(File::lastModified));
+        for (File f : list) {
+            if (!f.isFile()) {
+                continue;
+            } else if (TEMP_NAME.matcher(f.getName()).matches()) {
+                // left by a write that didn't finish
+                f.delete();
+            } else if (CHUNK_NAME.matcher(f.getName()).matches()) {
+                files.put(f.getName(), f.length());
+                bytes += f.length();
+            }
+        }
+        evict(null);
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the total size of the cached chunks.
+     *
+     * @return size in bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int chunks() {
+        return files.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the source for chunks of the url.
+     *
+     * @param url     url of the sorted data file
+     * @param version version of the data, empty to use the version given by the
+     *                server
+     * @return source
+     */
+    Source source(URL url, Optional<String> version) {
+        return new Source(url, version);
+    }
+
+    final class Source {
+
+        private final URL url;
+        private final Optional<String> version;
+
+        Source(URL url, Optional<String> version) {
+            this.url = url;
+            this.version = version;
+        }
+
+        BiFunction<Long, Optional<Long>, InputStream> wrap(
+                BiFunction<Long, Optional<Long>, InputStream> factory) {
+            return (start, end) -> {
+                // the chunk is held in an array while it is written
+                if (!end.isPresent() || end.get() - start > maxBytes
+                        || end.get() - start > Integer.MAX_VALUE) {
+                    return factory.apply(start, end);
+                }
+                Optional<String> v = version.isPresent() ? version : version(url);
+                if (!v.isPresent()) {
+                    // can't tell if a cached chunk is stale
+                    return factory.apply(start, end);
+                }
+                String name = fileName(url.toExternalForm(), v.get(), start, end.get());
+                InputStream in = get(name);
+                if (in != null) {
+                    return in;
+                }
+                byte[] b;
+                try (InputStream source = factory.apply(start, end)) {
+                    b = Util.readFully(source, (int) (end.get() - start));
+                }
+                put(name, b);
+                return new ByteArrayInputStream(b);
+            };
+        }
+    }
+
+    private Optional<String> version(URL url) throws IOException {
+        String key = url.toExternalForm();
+        Validated v = versions.get(key);
+        long now = System.currentTimeMillis();
+        if (v == null || now - v.time >= validateAfterMs) {
+            v = new Validated(readVersion(url), now);
+            versions.put(key, v);
+        }
+        return v.version;
+    }
+
+    private static Optional<String> readVersion(URL url) throws IOException {
+        URLConnection con = url.openConnection();
+        if (con instanceof HttpURLConnection) {
+            ((HttpURLConnection) con).setRequestMethod("HEAD");
+        }
+        try {
+            String etag = con.getHeaderField("ETag");
+            if (etag != null) {
+                return Optional.of(etag);
+            }
+            long lastModified = con.getLastModified();
+            if (lastModified != 0) {
+                return Optional.of(lastModified + "-" + con.getContentLengthLong());
+            }
+            return Optional.empty();
+        } finally {
+            if (con instanceof HttpURLConnection) {
+                ((HttpURLConnection) con).disconnect();
+            }
+        }
+    }
+
+    private static final class Validated {
+        final Optional<String> version;
+        final long time;
+
+        Validated(Optional<String> version, long time) {
+            this.version = version;
+            this.time = time;
+        }
+    }
+
+    @VisibleForTesting
+    static String fileName(String url, String version, long start, long end) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(
+                    (url + "\n" + version + "\n" + start + "\n" + end)
+                            .getBytes(StandardCharsets.UTF_8));
+            StringBuilder s = new StringBuilder();
+            for (byte b : digest) {
+                s.append(String.format("%02x", b));
+            }
+            return s.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private InputStream get(String name) {
+        File file = new File(directory, name);
+        synchronized (this) {
+            if (files.get(name) == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            // keep the order of use across restarts
+            file.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (IOException e) {
+            // deleted by something else
+            synchronized (this) {
+                Long size = files.remove(name);
+                if (size != null) {
+                    bytes -= size;
+                }
+                hits--;
+                misses++;
+            }
+            return null;
+        }
+    }
+
+    private void put(String name, byte[] b) {
+        File file = new File(directory, name);
+        try {
+            File temp = File.createTempFile(name, TEMP_SUFFIX, directory);
+            Files.write(temp.toPath(), b);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the chunk is not cached but the search carries on
+            return;
+        }
+        synchronized (this) {
+            Long previous = files.put(name, (long) b.length);
+            if (previous != null) {
+                // read at the same time by another search
+                bytes -= previous;
+            }
+            bytes += b.length;
+            evict(name);
+        }
+    }
+
+    // guarded by this
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            File file = new File(directory, entry.getKey());
+            if (!file.delete() && file.exists()) {
+                // still takes up space so try the next one
+                continue;
+            }
+            bytes -= entry.getValue();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskCache [directory=" + directory + ", maxBytes=" + maxBytes + ", bytes="
+                + bytes + ", chunks=" + files.size() + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.github.davidmoten.shi;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.github.davidmoten.bigsorter.Reader;
+import com.github.davidmoten.bigsorter.Serializer;
+import com.github.davidmoten.bigsorter.Writer;
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Sorts records that may not fit in memory: sorted runs of the input are
+ * written to temporary files and merged. Unlike a sort to a file the final
+ * merge writes directly to the given writer so the sorted output is written
+ * once and not read again (and if the input fits in one run no temporary file
+ * is written at all).
+ *
+ * @param <T> record type
+ */
+final class ExternalSorter<T> {
+
+    private final Serializer<T> serializer;
+    private final Comparator<? super T> comparator;
+    private final int maxFilesPerMerge;
+    private final int maxItemsPerFile;
+    private final List<File> tempFiles = new ArrayList<>();
+
+    ExternalSorter(Serializer<T> serializer, Comparator<? super T> comparator,
+            int maxFilesPerMerge, int maxItemsPerFile) {
+        Preconditions.checkArgument(maxFilesPerMerge > 1,
+                "maxFilesPerMerge must be greater than one");
+        Preconditions.checkArgument(maxItemsPerFile > 0,
+                "maxItemsPerFile must be greater than zero");
+        this.serializer = serializer;
+        this.comparator = comparator;
+        this.maxFilesPerMerge = maxFilesPerMerge;
+        this.maxItemsPerFile = maxItemsPerFile;
+    }
+
+    /**
+     * Reads all records from the reader and writes them in sorted order to the
+     * writer. The writer is created once all records have been read and is
+     * closed by this method.
+     *
+     * @param reader input records
+     * @param output creates the writer given the number of records read
+     * @return number of records
+     * @throws IOException on read or write error
+     */
+    long sort(Reader<? extends T> reader, WriterFactory<? super T> output) throws IOException {
+        long startTime = System.currentTimeMillis();
+        log("starting sort");
+        try {
+            List<File> files = new ArrayList<>();
+            List<T> list = new ArrayList<>();
+            long count = 0;
+            try (Reader<? extends T> r = reader) {
+                T t;
+                while ((t = r.read()) != null) {
+                    list.add(t);
+                    count++;
+                    if (list.size() == maxItemsPerFile) {
+                        files.add(writeRun(list, count));
+                        list.clear();
+                    }
+                }
+            }
+            try (Writer<? super T> w = output.create(count)) {
+                if (files.isEmpty()) {
+                    list.sort(comparator);
+                    for (T t : list) {
+                        w.write(t);
+                    }
+                } else {
+                    if (!list.isEmpty()) {
+                        files.add(writeRun(list, count));
+                        list.clear();
+                    }
+                    log("completed initial split and sort, starting merge");
+                    while (files.size() > maxFilesPerMerge) {
+                        files = mergeGroups(files);
+                    }
+                    log("merging " + files.size() + " files");
+                    merge(files, w);
+                }
+            }
+            log("sort of " + count + " records completed in "
+                    + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+            return count;
+        } finally {
+            for (File f : tempFiles) {
+                f.delete();
+            }
+            tempFiles.clear();
+        }
+    }
+
+    private File writeRun(List<T> list, long total) throws IOException {
+        long t = System.currentTimeMillis();
+        list.sort(comparator);
+        File file = nextTempFile();
+        try (Writer<T> w = serializer.createWriter(Util.bufferedOutput(file))) {
+            for (T x : list) {
+                w.write(x);
+            }
+        }
+        log("total=" + total + ", sorted " + list.size() + " records to file " + file.getName()
+                + " in " + (System.currentTimeMillis() - t) / 1000.0 + "s");
+        return file;
+    }
+
+    private List<File> mergeGroups(List<File> files) throws IOException {
+        log("merging " + files.size() + " files");
+        List<File> merged = new ArrayList<>();
+        for (int i = 0; i < files.size(); i += maxFilesPerMerge) {
+            List<File> group = files.subList(i, Math.min(files.size(), i + maxFilesPerMerge));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+            } else {
+                File file = nextTempFile();
+                try (Writer<T> w = serializer.createWriter(Util.bufferedOutput(file))) {
+                    merge(group, w);
+                }
+                for (File f : group) {
+                    f.delete();
+                }
+                merged.add(file);
+            }
+        }
+        return merged;
+    }
+
+    private void merge(List<File> files, Writer<? super T> out) throws IOException {
+        // ties are broken by file so records that compare equal keep their input order
+        PriorityQueue<Head<T>> queue = new PriorityQueue<>(files.size(), (a, b) -> {
+            int c = comparator.compare(a.value, b.value);
+            return c != 0 ? c : Integer.compare(a.file, b.file);
+        });
+        List<Reader<T>> readers = new ArrayList<>(files.size());
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Reader<T> r = serializer.createReader(Util.bufferedInput(files.get(i)));
+                readers.add(r);
+                T t = r.read();
+                if (t != null) {
+                    queue.add(new Head<T>(r, t, i));
+                }
+            }
+            Head<T> h;
+            while ((h = queue.poll()) != null) {
+                out.write(h.value);
+                T t = h.reader.read();
+                if (t != null) {
+                    h.value = t;
+                    queue.add(h);
+                }
+            }
+        } finally {
+            for (Reader<T> r : readers) {
+                r.close();
+            }
+        }
+    }
+
+    private File nextTempFile() throws IOException {
+        File file = File.createTempFile("shi-sort", ".tmp");
+        tempFiles.add(file);
+        return file;
+    }
+
+    private static void log(String message) {
+        System.out.println(
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SZ").format(new Date()) + " " + message);
+    }
+
+    interface WriterFactory<T> {
+
+        Writer<T> create(long count) throws IOException;
+    }
+
+    private static final class Head<T> {
+        final Reader<T> reader;
+        final int file;
+        T value;
+
+        Head(Reader<T> reader, T value, int file) {
+            this.reader = reader;
+            this.value = value;
+            this.file = file;
+        }
+    }
+
+}
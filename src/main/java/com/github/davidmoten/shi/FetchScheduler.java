@@ -0,0 +1,132 @@
+package com.github.davidmoten.shi;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+import io.reactivex.Flowable;
+
+/**
+ * Caps the number of chunk requests in flight to each endpoint across all the
+ * searches (of any {@link Index}) that use it. Requests over the cap are queued
+ * without blocking a thread. Queued requests are started in {@link Priority}
+ * order and searches of the same priority take turns so one large search
+ * doesn't hold up the others.
+ *
+ * <p>
+ * The endpoint of a {@code url} search is the protocol, host and port of the url
+ * (for example {@code https://mybucket.s3.amazonaws.com}), the endpoint of a
+ * {@code file} search is {@code file} and other searches use the endpoint
+ * {@code default}. Use a separate scheduler to cap stores reached through an
+ * {@code inputStreamFactory} separately.
+ *
+ * <pre>
+ * FetchScheduler scheduler = FetchScheduler.create(64);
+ * index.search(a, b).concurrency(16).scheduler(scheduler, Priority.HIGH).url(url);
+ * </pre>
+ */
+public final class FetchScheduler {
+
+    static final String FILE_ENDPOINT = "file";
+    static final String DEFAULT_ENDPOINT = "default";
+
+    public enum Priority {
+        HIGH, NORMAL, LOW;
+    }
+
+    private final int maxInFlightPerEndpoint;
+    private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    private FetchScheduler(int maxInFlightPerEndpoint) {
+        this.maxInFlightPerEndpoint = maxInFlightPerEndpoint;
+    }
+
+    /**
+     * Returns a scheduler that allows at most the given number of chunk requests
+     * in flight to each endpoint.
+     *
+     * @param maxInFlightPerEndpoint maximum number of requests in flight to one
+     *                               endpoint
+     * @return scheduler
+     */
+    public static FetchScheduler create(int maxInFlightPerEndpoint) {
+        Preconditions.checkArgument(maxInFlightPerEndpoint > 0,
+                "maxInFlightPerEndpoint must be greater than zero");
+        return new FetchScheduler(maxInFlightPerEndpoint);
+    }
+
+    public int maxInFlightPerEndpoint() {
+        return maxInFlightPerEndpoint;
+    }
+
+    /**
+     * Returns the number of requests to the endpoint that are in flight.
+     *
+     * @param endpoint endpoint
+     * @return number of requests in flight
+     */
+    public int inFlight(String endpoint) {
+        Limiter limiter = limiters.get(endpoint);
+        return limiter == null ? 0 : limiter.inFlight();
+    }
+
+    /**
+     * Returns the number of requests to the endpoint that are waiting to start.
+     *
+     * @param endpoint endpoint
+     * @return number of requests queued
+     */
+    public int queued(String endpoint) {
+        Limiter limiter = limiters.get(endpoint);
+        return limiter == null ? 0 : limiter.queued();
+    }
+
+    static String endpoint(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+
+    /**
+     * Returns a new lane for one search. The requests of a lane are queued fairly
+     * against the requests of other lanes with the same priority.
+     *
+     * @param endpoint endpoint the requests go to
+     * @param priority priority of the requests
+     * @return lane
+     */
+    Lane lane(String endpoint, Priority priority) {
+        Limiter limiter = limiters.computeIfAbsent(endpoint,
+                k -> new Limiter(maxInFlightPerEndpoint));
+        return new Lane(limiter, priority);
+    }
+
+    static final class Lane {
+
+        private final Limiter limiter;
+        private final Priority priority;
+
+        Lane(Limiter limiter, Priority priority) {
+            this.limiter = limiter;
+            this.priority = priority;
+        }
+
+        <T> Flowable<T> schedule(Flowable<T> request) {
+            return limiter.limit(request, priority.ordinal(), this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        limiters.forEach((endpoint, limiter) -> {
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+            s.append(endpoint + "=" + limiter.inFlight() + "/" + limiter.queued());
+        });
+        return "FetchScheduler [maxInFlightPerEndpoint=" + maxInFlightPerEndpoint
+                + ", inFlight/queued={" + s + "}]";
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.github.davidmoten.shi;
+
+import java.util.Arrays;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * When to send a duplicate (hedge) request for a chunk whose first byte has
+ * not arrived. The delay is a percentile of the times to first byte observed
+ * by requests using this policy so only the slowest requests are hedged. The
+ * first request to produce a byte is used and the other is closed.
+ *
+ * <p>
+ * A policy remembers the latest observations (the window) so reuse it across
+ * searches of the same store.
+ */
+public final class HedgePolicy {
+
+    private final double percentile;
+    private final long initialDelayMs;
+    private final long minDelayMs;
+    private final int minSamples;
+    // ring buffer of the latest times to first byte
+    private final long[] samples;
+    private int size;
+    private int next;
+
+    private HedgePolicy(double percentile, long initialDelayMs, long minDelayMs, int minSamples,
+            int window) {
+        this.percentile = percentile;
+        this.initialDelayMs = initialDelayMs;
+        this.minDelayMs = minDelayMs;
+        this.minSamples = minSamples;
+        this.samples = new long[window];
+    }
+
+    /**
+     * Returns a builder for a policy that hedges requests slower than the given
+     * percentile of observed times to first byte.
+     *
+     * @param percentile between 0 and 100 (exclusive), for example 95
+     * @return builder
+     */
+    public static Builder percentile(double percentile) {
+        return new Builder(percentile);
+    }
+
+    public static final class Builder {
+
+        private final double percentile;
+        private long initialDelayMs = 1000;
+        private long minDelayMs = 10;
+        private int minSamples = 10;
+        private int window = 200;
+
+        Builder(double percentile) {
+            Preconditions.checkArgument(percentile > 0 && percentile < 100,
+                    "percentile must be between 0 and 100");
+            this.percentile = percentile;
+        }
+
+        /**
+         * Sets the delay used until enough times to first byte have been observed.
+         * Default is 1000ms.
+         *
+         * @param initialDelayMs delay before hedging in ms
+         * @return this
+         */
+        public Builder initialDelayMs(long initialDelayMs) {
+            Preconditions.checkArgument(initialDelayMs >= 0, "initialDelayMs must be >= 0");
+            this.initialDelayMs = initialDelayMs;
+            return this;
+        }
+
+        /**
+         * Sets the smallest delay before hedging so that a store with very low
+         * latency doesn't get duplicate requests for small variations. Default is
+         * 10ms.
+         *
+         * @param minDelayMs minimum delay before hedging in ms
+         * @return this
+         */
+        public Builder minDelayMs(long minDelayMs) {
+            Preconditions.checkArgument(minDelayMs >= 0, "minDelayMs must be >= 0");
+            this.minDelayMs = minDelayMs;
+            return this;
+        }
+
+        /**
+         * Sets the number of observations needed before the percentile is used.
+         * Default is 10.
+         *
+         * @param minSamples number of observations
+         * @return this
+         */
+        public Builder minSamples(int minSamples) {
+            Preconditions.checkArgument(minSamples > 0, "minSamples must be > 0");
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Sets the number of latest observations the percentile is calculated from.
+         * Default is 200.
+         *
+         * @param window number of observations kept
+         * @return this
+         */
+        public Builder window(int window) {
+            Preconditions.checkArgument(window > 0, "window must be > 0");
+            this.window = window;
+            return this;
+        }
+
+        public HedgePolicy build() {
+            return new HedgePolicy(percentile, initialDelayMs, minDelayMs,
+                    Math.min(minSamples, window), window);
+        }
+    }
+
+    synchronized void record(long timeToFirstByteMs) {
+        samples[next] = timeToFirstByteMs;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+    }
+
+    /**
+     * Returns how long to wait for the first byte of a request before sending a
+     * hedge request.
+     *
+     * @return delay in ms
+     */
+    synchronized long delayMs() {
+        if (size < minSamples) {
+            return Math.max(minDelayMs, initialDelayMs);
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return Math.max(minDelayMs, sorted[Math.max(0, index)]);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HedgePolicy [percentile=" + percentile + ", initialDelayMs=" + initialDelayMs
+                + ", minDelayMs=" + minDelayMs + ", samples=" + size + ", delayMs=" + delayMs()
+                + "]";
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.github.davidmoten.shi;
+
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Opens ranges with a second (hedge) request when the first byte of the first
+ * request hasn't arrived within the delay given by a {@link HedgePolicy}. The
+ * stream that produces a byte first is returned and the other is closed as
+ * soon as it opens (a blocking connect can't be interrupted).
+ */
+final class HedgingInputStreamFactory implements BiFunction<Long, Optional<Long>, InputStream> {
+
+    private final BiFunction<Long, Optional<Long>, InputStream> factory;
+    private final HedgePolicy policy;
+    // null if not recording statistics
+    private final Index.Counts counts;
+
+    HedgingInputStreamFactory(BiFunction<Long, Optional<Long>, InputStream> factory,
+            HedgePolicy policy, Index.Counts counts) {
+        this.factory = factory;
+        this.policy = policy;
+        this.counts = counts;
+    }
+
+    @Override
+    public InputStream apply(Long start, Optional<Long> end) throws Exception {
+        Race race = new Race(start, end);
+        race.start(false);
+        try {
+            try {
+                return race.result.get(policy.delayMs(), TimeUnit.MILLISECONDS).in;
+            } catch (TimeoutException e) {
+                if (race.start(true) && counts != null) {
+                    counts.incrementHedges();
+                }
+                Winner winner = race.result.get();
+                if (winner.hedge && counts != null) {
+                    counts.incrementHedgesWon();
+                }
+                return winner.in;
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            // nobody will read the winner
+            if (!race.result.cancel(false) && !race.result.isCompletedExceptionally()) {
+                Index.closeSilently(race.result.getNow(null).in);
+            }
+            throw e;
+        }
+    }
+
+    private final class Race {
+
+        final CompletableFuture<Winner> result = new CompletableFuture<>();
+        private final long start;
+        private final Optional<Long> end;
+        private int started;
+        private int failed;
+
+        Race(long start, Optional<Long> end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Starts a request unless the race is already decided (the first request may
+         * have finished or failed since the delay elapsed).
+         * 
+         * @param hedge true if the request duplicates the first one
+         * @return true if the request was started
+         */
+        boolean start(boolean hedge) {
+            synchronized (this) {
+                if (result.isDone()) {
+                    return false;
+                }
+                // counted before it is scheduled so that a failure of the other
+                // request doesn't end the race while this one is in flight
+                started++;
+            }
+            Schedulers.io().scheduleDirect(() -> {
+                long startTime = System.currentTimeMillis();
+                InputStream in = null;
+                try {
+                    in = openWithFirstByte();
+                } catch (Throwable e) {
+                    synchronized (this) {
+                        failed++;
+                        // report the error once every started request has failed
+                        if (failed == started) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                    return;
+                }
+                policy.record(System.currentTimeMillis() - startTime);
+                if (!result.complete(new Winner(in, hedge))) {
+                    Index.closeSilently(in);
+                }
+            });
+            return true;
+        }
+
+        private InputStream openWithFirstByte() throws Exception {
+            PushbackInputStream in = new PushbackInputStream(factory.apply(start, end), 1);
+            try {
+                int b = in.read();
+                if (b != -1) {
+                    in.unread(b);
+                }
+                return in;
+            } catch (Throwable e) {
+                Index.closeSilently(in);
+                throw e;
+            }
+        }
+    }
+
+    private static final class Winner {
+        final InputStream in;
+        final boolean hedge;
+
+        Winner(InputStream in, boolean hedge) {
+            this.in = in;
+            this.hedge = hedge;
+        }
+    }
+
+}
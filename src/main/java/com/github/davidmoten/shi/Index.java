@@ -2,6 +2,8 @@ package com.github.davidmoten.shi;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -13,56 +15,139 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.davidmoten.hilbert.HilbertCurve;
 import org.davidmoten.hilbert.Range;
 import org.davidmoten.hilbert.Ranges;
 import org.davidmoten.hilbert.SmallHilbertCurve;
-import org.davidmoten.kool.Stream;
 import org.davidmoten.kool.function.BiFunction;
 
 import com.github.davidmoten.bigsorter.Reader;
 import com.github.davidmoten.bigsorter.Serializer;
-import com.github.davidmoten.bigsorter.Sorter;
-import com.github.davidmoten.bigsorter.Writer;
 import com.github.davidmoten.guavamini.Preconditions;
 import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
+import com.github.davidmoten.shi.FetchScheduler.Lane;
+import com.github.davidmoten.shi.FetchScheduler.Priority;
 
 import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.exceptions.CompositeException;
 import io.reactivex.schedulers.Schedulers;
 
 public final class Index<T> {
 
-    private static final short VERSION = 1;
-    private final TreeMap<Integer, Long> indexPositions;
+    // version 1 has int keys, version 2 has long keys (for bits * dimensions > 31),
+    // version 3 is hierarchical: a root of page first keys followed by leaf pages
+    // of long keys and long positions, version 4 stores entries as varint deltas
+    private static final short VERSION_INT_KEYS = 1;
+    private static final short VERSION_LONG_KEYS = 2;
+    private static final short VERSION_PAGED = 3;
+    private static final short VERSION_COMPRESSED = 4;
+
+    public static final int DEFAULT_ENTRIES_PER_PAGE = 1024;
+    public static final int DEFAULT_MAX_CACHED_PAGES = 256;
+    public static final int DEFAULT_FETCHER_CONCURRENCY = 16;
+
+    // enough to hold the root of a paged index of about 1M entries in one request
+    private static final int ROOT_INITIAL_CHUNK_BYTES = 8192;
+
+    // calculating ranges for a search box with the curve visits every cell on its
+    // perimeter so the curve is used directly only up to this many bits
+    private static final int MAX_QUERY_INDEX_BITS = 31;
+
+    // past MAX_QUERY_INDEX_BITS ranges are refined while at most this many cells
+    // at a level need splitting
+    private static final int MAX_QUERY_SPLIT_CELLS = 1 << 20;
+
+    // size of the blocks of records read when using a point extractor
+    private static final int SCAN_BLOCK_BYTES = 8192;
+
+    // optional sections written after the index entries (ignored by older readers)
+    private static final int SECTION_ZONE_MAPS = 1;
+    private static final int SECTION_CHUNK_COUNTS = 2;
+
+    private final IndexPositions indexPositions;
+    // bounding box of each chunk, null if not known
+    private final ZoneMaps zoneMaps;
+    // number of records in each chunk, null if not known
+    private final long[] chunkCounts;
     private final double[] mins;
     private final double[] maxes;
     private final SmallHilbertCurve hc;
+    // calculates the ranges for a search when hc is too fine to use directly,
+    // null otherwise
+    private final RangeQuery rangeQuery;
     private final long count;
     private final Serializer<? extends T> serializer;
     private final Function<? super T, double[]> pointMapper;
+    // null means points are read from deserialized records
+    private final PointExtractor pointExtractor;
+    // null means use pointMapper
+    private final PointMapper<? super T> pointMapperInPlace;
 
-    Index(TreeMap<Integer, Long> indexPositions, double[] mins, double[] maxes, int bits,
+    @VisibleForTesting
+    Index(TreeMap<Long, Long> indexPositions, double[] mins, double[] maxes, int bits,
+            long count, Serializer<? extends T> serializer,
+            Function<? super T, double[]> pointMapper) {
+        this(IndexPositions.from(indexPositions), mins, maxes, bits, count, serializer,
+                pointMapper);
+    }
+
+    Index(IndexPositions indexPositions, double[] mins, double[] maxes, int bits,
             long count, Serializer<? extends T> serializer,
             Function<? super T, double[]> pointMapper) {
+        this(indexPositions, null, null, mins, maxes, bits, count, serializer, pointMapper);
+    }
+
+    Index(IndexPositions indexPositions, ZoneMaps zoneMaps, long[] chunkCounts, double[] mins,
+            double[] maxes, int bits, long count, Serializer<? extends T> serializer,
+            Function<? super T, double[]> pointMapper) {
+        this(indexPositions, zoneMaps, chunkCounts, mins, maxes, bits, count, serializer,
+                pointMapper, null, null);
+    }
+
+    private Index(IndexPositions indexPositions, ZoneMaps zoneMaps, long[] chunkCounts,
+            double[] mins, double[] maxes, int bits, long count,
+            Serializer<? extends T> serializer, Function<? super T, double[]> pointMapper,
+            PointExtractor pointExtractor, PointMapper<? super T> pointMapperInPlace) {
+        Preconditions.checkArgument(zoneMaps == null || zoneMaps.size() == indexPositions.size(),
+                "zone maps must have one entry per index entry");
+        Preconditions.checkArgument(
+                chunkCounts == null || chunkCounts.length == indexPositions.size(),
+                "chunk counts must have one entry per index entry");
         this.indexPositions = indexPositions;
+        this.zoneMaps = zoneMaps;
+        this.chunkCounts = chunkCounts;
         this.mins = mins;
         this.maxes = maxes;
         this.count = count;
         this.serializer = serializer;
         this.pointMapper = pointMapper;
+        this.pointExtractor = pointExtractor;
+        this.pointMapperInPlace = pointMapperInPlace;
         this.hc = HilbertCurve.small().bits(bits).dimensions(mins.length);
+        this.rangeQuery = bits * mins.length <= MAX_QUERY_INDEX_BITS ? null
+                : new RangeQuery(hc, indexPositions, MAX_QUERY_SPLIT_CELLS);
     }
 
     public Serializer<? extends T> serializer() {
@@ -73,6 +158,38 @@ public final class Index<T> {
         return pointMapper;
     }
 
+    /**
+     * Returns a copy of this index whose searches read the point of each record
+     * from its bytes using the extractor rather than deserializing every record
+     * and applying the point mapper. Only the records found by a search are
+     * deserialized. The records of the sorted file must all have the size given
+     * by the extractor.
+     * 
+     * @param pointExtractor reads the point of a record from its bytes
+     * @return index using the extractor in searches
+     */
+    public Index<T> withPointExtractor(PointExtractor pointExtractor) {
+        Preconditions.checkNotNull(pointExtractor, "pointExtractor cannot be null");
+        Preconditions.checkArgument(pointExtractor.recordSize() > 0,
+                "recordSize must be greater than zero");
+        return new Index<T>(indexPositions, zoneMaps, chunkCounts, mins, maxes, hc.bits(), count,
+                serializer, pointMapper, pointExtractor, pointMapperInPlace);
+    }
+
+    /**
+     * Returns a copy of this index whose searches write the point of each record
+     * they read to a reused array with the given mapper rather than calling the
+     * point mapper (which allocates an array per record).
+     * 
+     * @param pointMapper writes the point of a record to a supplied array
+     * @return index using the mapper in searches
+     */
+    public Index<T> withPointMapper(PointMapper<? super T> pointMapper) {
+        Preconditions.checkNotNull(pointMapper, "pointMapper cannot be null");
+        return new Index<T>(indexPositions, zoneMaps, chunkCounts, mins, maxes, hc.bits(), count,
+                serializer, this.pointMapper, pointExtractor, pointMapper);
+    }
+
     public static <T> Builder1<T> serializer(Serializer<? extends T> serializer) {
         return new Builder1<T>(serializer);
     }
@@ -95,12 +212,15 @@ public final class Index<T> {
         private final Serializer<? extends T> serializer;
         Function<? super T, double[]> pointMapper;
         File input;
+        InputStream inputStream;
         File output;
         int bits;
         int dimensions;
         int numIndexEntriesApproximate = 10000;
         int sortMaxFilesPerMerge = 100;
         int sortMaxItemsPerFile = 100000;
+        boolean precomputeSortKeys;
+        Bounds domain;
 
         Builder1(Serializer<? extends T> serializer) {
             this.serializer = serializer;
@@ -129,6 +249,19 @@ public final class Index<T> {
             return input(new File(filename));
         }
 
+        /**
+         * Sets the input to be read once only. Because the input cannot be scanned
+         * to calculate the range of each dimension the domain must be specified
+         * using {@link Builder6#domain(Bounds)}.
+         * 
+         * @param input input to be sorted and indexed
+         * @return builder
+         */
+        public Builder3<T> input(InputStream input) {
+            b.inputStream = input;
+            return new Builder3<T>(b);
+        }
+
         public Index<T> read(DataInputStream in) {
             return Index.read(in, b.serializer, b.pointMapper);
         }
@@ -142,6 +275,42 @@ public final class Index<T> {
             }
         }
 
+        /**
+         * Opens the index file by memory-mapping its entries rather than reading
+         * them onto the heap. Opening is fast regardless of the number of index
+         * entries and the entries are paged in by the operating system as searches
+         * touch them. The entries section must be less than 2GB.
+         * 
+         * @param file index file
+         * @return index backed by a read-only mapping of the file
+         */
+        public Index<T> map(File file) {
+            return Index.map(file, b.serializer, b.pointMapper);
+        }
+
+        /**
+         * Reads the root of a hierarchical index (written with
+         * {@link Index#writePaged(File)}) from the url. Leaf pages are fetched
+         * with HTTP Range requests only when a search needs them and are then
+         * cached.
+         * 
+         * @param url location of the paged index file (server must support Range
+         *            HTTP header)
+         * @return index
+         */
+        public Index<T> readPaged(URL url) {
+            return readPaged(inputStreamForRange(url), DEFAULT_MAX_CACHED_PAGES);
+        }
+
+        public Index<T> readPaged(File file) {
+            return readPaged(rafInputStreamFactory(file), DEFAULT_MAX_CACHED_PAGES);
+        }
+
+        public Index<T> readPaged(BiFunction<Long, Optional<Long>, InputStream> factory,
+                int maxCachedPages) {
+            return Index.readPaged(factory, maxCachedPages, b.serializer, b.pointMapper);
+        }
+
         public Index<T> read(URL url) {
             try (DataInputStream in = new DataInputStream(
                     new BufferedInputStream(url.openStream()))) {
@@ -177,6 +346,16 @@ public final class Index<T> {
             this.b = b;
         }
 
+        /**
+         * Sets the number of bits per dimension of the hilbert curve. {@code bits *
+         * dimensions} can be at most 63. Finer curves give finer chunk boundaries.
+         * Past 31 bits in total the ranges of a search are refined only where they
+         * span chunks so calculating them stays fast. To read fewer records
+         * outside a search box increase {@link Builder6#numIndexEntries(int)}.
+         * 
+         * @param bits bits per dimension
+         * @return builder
+         */
         public Builder5<T> bits(int bits) {
             b.bits = bits;
             return new Builder5<T>(b);
@@ -229,6 +408,46 @@ public final class Index<T> {
             return this;
         }
 
+        /**
+         * If true then the hilbert index of each record is calculated once and
+         * carried with the serialized record through the sort rather than being
+         * recalculated for both sides of every comparison. Default is false.
+         * 
+         * <p>
+         * Only use this option if the serializer writes each record independently of
+         * its neighbours (for example {@code Serializer.fixedSizeRecord},
+         * {@code Serializer.linesUtf8} or {@code Serializer.dataSerializer}) because
+         * the sorted output is the concatenation of the individually serialized
+         * records.
+         * 
+         * @param precomputeSortKeys whether to precompute the sort keys
+         * @return builder
+         */
+        public Builder6<T> precomputeSortKeys(boolean precomputeSortKeys) {
+            b.precomputeSortKeys = precomputeSortKeys;
+            return this;
+        }
+
+        /**
+         * Sets the range of values of each dimension. When specified the input is
+         * not scanned beforehand to calculate the range of each dimension (so input
+         * is only read once). Points outside the domain are clamped to the domain
+         * boundary.
+         * 
+         * @param domain range of each dimension
+         * @return builder
+         */
+        public Builder6<T> domain(Bounds domain) {
+            Preconditions.checkArgument(domain.mins().length == b.dimensions,
+                    "domain must have the same number of dimensions as the index");
+            b.domain = domain;
+            return this;
+        }
+
+        public Builder6<T> domain(double[] mins, double[] maxes) {
+            return domain(Bounds.create(mins, maxes));
+        }
+
         public Index<T> createIndex(String filename) {
             return createIndex(new File(filename));
         }
@@ -239,9 +458,10 @@ public final class Index<T> {
 
         public Index<T> createIndex() {
             try {
-                return Index.createIndex(b.input, b.serializer, b.pointMapper, b.output, b.bits,
-                        b.dimensions, b.numIndexEntriesApproximate, b.sortMaxFilesPerMerge,
-                        b.sortMaxItemsPerFile);
+                return Index.createIndex(b.input, b.inputStream, b.serializer, b.pointMapper,
+                        b.output, b.bits, b.dimensions, b.numIndexEntriesApproximate,
+                        b.sortMaxFilesPerMerge, b.sortMaxItemsPerFile, b.precomputeSortKeys,
+                        b.domain);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
@@ -249,8 +469,8 @@ public final class Index<T> {
     }
 
     @VisibleForTesting
-    TreeMap<Integer, Long> indexPositions() {
-        return indexPositions;
+    TreeMap<Long, Long> indexPositions() {
+        return indexPositions.toMap();
     }
 
     /**
@@ -261,37 +481,187 @@ public final class Index<T> {
      * @return querying ranges based on known index positions
      */
     public List<PositionRange> positionRanges(Iterable<Range> ranges) {
-        return positionRanges(indexPositions, ranges);
+        return positionRanges(indexPositions, null, null, null, ranges);
+    }
+
+    /**
+     * Fits the desired ranges to the effective querying ranges according to the
+     * known index positions. If the bounding box of each chunk is known then
+     * chunks that cannot contain records in the query bounds are excluded and
+     * position ranges whose chunks lie entirely inside the query bounds are
+     * marked as such.
+     * 
+     * @param queryBounds query bounds
+     * @param ranges      list of ranges in ascending order
+     * @return querying ranges based on known index positions
+     */
+    public List<PositionRange> positionRanges(Bounds queryBounds, Iterable<Range> ranges) {
+        if (zoneMaps == null) {
+            return positionRanges(ranges);
+        }
+        return positionRanges(indexPositions, zoneMaps, curveOrdinates(queryBounds.mins()),
+                curveOrdinates(queryBounds.maxes()), ranges);
+    }
+
+    /**
+     * Returns bounds on the number of records in the query bounds using only the
+     * index (no records are read). The estimate is exact when no chunk crosses the
+     * boundary of the query bounds. If the index has no per-chunk statistics (for
+     * instance it was opened with {@code map} or {@code readPaged}) then the
+     * bounds are zero and the total count.
+     * 
+     * @param queryBounds query bounds
+     * @return lower and upper bounds on the count of records in the query bounds
+     */
+    public CountEstimate countEstimate(Bounds queryBounds) {
+        if (zoneMaps == null || chunkCounts == null) {
+            return new CountEstimate(0, count);
+        }
+        long[] a = curveOrdinates(queryBounds.mins());
+        long[] b = curveOrdinates(queryBounds.maxes());
+        long lower = 0;
+        long upper = 0;
+        for (int i = 0; i < chunkCounts.length; i++) {
+            if (zoneMaps.intersects(i, a, b)) {
+                upper += chunkCounts[i];
+                if (zoneMaps.within(i, a, b)) {
+                    lower += chunkCounts[i];
+                }
+            }
+        }
+        return new CountEstimate(lower, upper);
+    }
+
+    // returns -1 if the count of records in the position range cannot be
+    // calculated from the index
+    private long knownCount(PositionRange pr) {
+        if (!pr.withinQueryBounds() || chunkCounts == null || pr.firstChunk() < 0) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = pr.firstChunk(); i < pr.endChunk(); i++) {
+            n += chunkCounts[i];
+        }
+        return n;
+    }
+
+    private List<PositionRange> positionRanges(Bounds queryBounds, Iterable<Range> ranges,
+            CostModel costModel) {
+        List<PositionRange> list = positionRanges(queryBounds, ranges);
+        if (costModel == null) {
+            return list;
+        } else {
+            return coalesce(list, costModel.maxGapBytes());
+        }
+    }
+
+    /**
+     * Returns the position ranges to read to count the records in the query
+     * bounds. Runs of ranges whose count is not known from the index are
+     * coalesced; ranges whose count is known are not read so are never joined.
+     */
+    private List<PositionRange> positionRangesForCount(Bounds queryBounds,
+            Iterable<Range> ranges, CostModel costModel) {
+        List<PositionRange> list = positionRanges(queryBounds, ranges);
+        if (costModel == null) {
+            return list;
+        }
+        List<PositionRange> result = new ArrayList<>(list.size());
+        List<PositionRange> unknown = new ArrayList<>();
+        for (PositionRange pr : list) {
+            if (knownCount(pr) >= 0) {
+                result.addAll(coalesce(unknown, costModel.maxGapBytes()));
+                unknown.clear();
+                result.add(pr);
+            } else {
+                unknown.add(pr);
+            }
+        }
+        result.addAll(coalesce(unknown, costModel.maxGapBytes()));
+        return result;
+    }
+
+    /**
+     * Joins consecutive position ranges when the gap between them is at most
+     * {@code maxGapBytes}.
+     * 
+     * @param positionRanges position ranges in ascending order
+     * @param maxGapBytes    largest gap to read through
+     * @return coalesced position ranges
+     */
+    @VisibleForTesting
+    static List<PositionRange> coalesce(List<PositionRange> positionRanges, long maxGapBytes) {
+        LinkedList<PositionRange> list = new LinkedList<>();
+        for (PositionRange p : positionRanges) {
+            if (!list.isEmpty() && list.getLast().ceilingPosition() != Long.MAX_VALUE
+                    && p.floorPosition() - list.getLast().ceilingPosition() <= maxGapBytes) {
+                list.offer(list.pollLast().joinAcrossGap(p));
+            } else {
+                list.offer(p);
+            }
+        }
+        return list;
     }
 
     @VisibleForTesting
-    static List<PositionRange> positionRanges(TreeMap<Integer, Long> indexPositions,
+    static List<PositionRange> positionRanges(TreeMap<Long, Long> indexPositions,
             Iterable<Range> ranges) {
+        return positionRanges(IndexPositions.from(indexPositions), null, null, null, ranges);
+    }
+
+    private static List<PositionRange> positionRanges(IndexPositions indexPositions,
+            ZoneMaps zoneMaps, long[] a, long[] b, Iterable<Range> ranges) {
         LinkedList<PositionRange> list = new LinkedList<>();
+        if (indexPositions.isEmpty()) {
+            return list;
+        }
         for (Range range : ranges) {
             if (range.low() <= indexPositions.lastKey()
                     && range.high() >= indexPositions.firstKey()) {
-                Long startPosition = value(indexPositions.floorEntry((int) range.low()));
-                if (startPosition == null) {
-                    startPosition = indexPositions.firstEntry().getValue();
-                }
-                Long endPosition = value(indexPositions.higherEntry((int) range.high()));
-                if (endPosition == null) {
-                    endPosition = Long.MAX_VALUE;
+                int start = Math.max(0, indexPositions.floorIndex(range.low()));
+                int higher = indexPositions.higherIndex(range.high());
+                if (zoneMaps == null) {
+                    append(list, new PositionRange(range.high(), indexPositions.position(start),
+                            ceilingPosition(indexPositions, higher)));
+                } else {
+                    // read only the runs of chunks that intersect the query box, split
+                    // where chunks start or stop lying entirely inside the query box
+                    int i = start;
+                    while (i < higher) {
+                        if (!zoneMaps.intersects(i, a, b)) {
+                            i++;
+                            continue;
+                        }
+                        boolean within = zoneMaps.within(i, a, b);
+                        int j = i + 1;
+                        while (j < higher && zoneMaps.intersects(j, a, b)
+                                && zoneMaps.within(j, a, b) == within) {
+                            j++;
+                        }
+                        append(list, new PositionRange(range.high(), indexPositions.position(i),
+                                ceilingPosition(indexPositions, j), within, i, j));
+                        i = j;
+                    }
                 }
-                PositionRange p = new PositionRange(range.high(), startPosition, endPosition);
-                append(list, p);
             }
         }
         return list;
     }
 
+    private static long ceilingPosition(IndexPositions indexPositions, int i) {
+        return i == indexPositions.size() ? Long.MAX_VALUE : indexPositions.position(i);
+    }
+
     private static void append(LinkedList<PositionRange> list, PositionRange p) {
         if (list.isEmpty()) {
             list.offer(p);
         } else {
             PositionRange last = list.getLast();
-            if (p.floorPosition() <= last.ceilingPosition()) {
+            // overlapping ranges must be joined, adjacent ones are joined unless that
+            // would lose knowing that all records of one are within the query bounds
+            if (p.floorPosition() < last.ceilingPosition()
+                    || p.floorPosition() == last.ceilingPosition()
+                            && p.withinQueryBounds() == last.withinQueryBounds()) {
                 list.pollLast();
                 list.offer(last.join(p));
             } else {
@@ -300,14 +670,6 @@ public final class Index<T> {
         }
     }
 
-    private static <T, R> R value(Entry<T, R> entry) {
-        if (entry == null) {
-            return null;
-        } else {
-            return entry.getValue();
-        }
-    }
-
     public double[] mins() {
         return mins;
     }
@@ -327,13 +689,17 @@ public final class Index<T> {
 
     public long[] ordinates(double... d) {
         Preconditions.checkArgument(d.length == mins.length);
-        long[] x = new long[d.length];
+        return ordinates(d, new long[d.length]);
+    }
+
+    private long[] ordinates(double[] d, long[] x) {
         for (int i = 0; i < d.length; i++) {
             if (mins[i] == maxes[i]) {
                 x[i] = 0;
             } else {
-                x[i] = Math.round(((Math.min(d[i], maxes[i]) - mins[i]) / (maxes[i] - mins[i]))
-                        * hc.maxOrdinate());
+                // clamp to the domain as when the index was created
+                double v = Math.max(mins[i], Math.min(d[i], maxes[i]));
+                x[i] = Math.round(((v - mins[i]) / (maxes[i] - mins[i])) * hc.maxOrdinate());
             }
         }
         return x;
@@ -346,8 +712,150 @@ public final class Index<T> {
     private static <T> Index<T> read(DataInputStream dis, Serializer<? extends T> serializer,
             Function<? super T, double[]> point) {
         try {
-            // read version
-            dis.readShort();
+            Header h = Header.read(dis);
+            long[] keys = new long[h.numEntries];
+            long[] positions = new long[h.numEntries];
+            if (h.version == VERSION_COMPRESSED) {
+                // decode from an array rather than byte by byte from the stream
+                byte[] bytes = new byte[dis.readInt()];
+                dis.readFully(bytes);
+                ByteBuffer bb = ByteBuffer.wrap(bytes);
+                long key = 0;
+                long pos = 0;
+                for (int i = 0; i < h.numEntries; i++) {
+                    key += VarLong.readUnsigned(bb);
+                    pos += VarLong.readSigned(bb);
+                    keys[i] = key;
+                    positions[i] = pos;
+                }
+            } else {
+                readEntries(dis, h, keys, positions);
+            }
+            ZoneMaps zoneMaps = null;
+            long[] chunkCounts = null;
+            int section;
+            while ((section = dis.read()) != -1) {
+                if (section == SECTION_ZONE_MAPS) {
+                    zoneMaps = ZoneMaps.read(dis, h.mins.length, h.numEntries);
+                } else if (section == SECTION_CHUNK_COUNTS) {
+                    chunkCounts = readChunkCounts(dis, h.numEntries);
+                } else {
+                    // skip sections written by later versions
+                    dis.readFully(new byte[dis.readInt()]);
+                }
+            }
+            return new Index<T>(IndexPositions.of(keys, positions, h.numEntries), zoneMaps,
+                    chunkCounts, h.mins, h.maxes, h.bits, h.count, serializer, point);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long[] readChunkCounts(DataInputStream dis, int numEntries)
+            throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long[] counts = new long[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            counts[i] = VarLong.readUnsigned(bb);
+        }
+        return counts;
+    }
+
+    private static void readEntries(DataInputStream dis, Header h, long[] keys, long[] positions)
+            throws IOException {
+        for (int i = 0; i < h.numEntries; i++) {
+            final long index;
+            if (h.longKeys()) {
+                index = dis.readLong();
+            } else {
+                index = dis.readInt();
+            }
+            final long pos;
+            if (h.longPositions) {
+                pos = dis.readLong();
+            } else {
+                pos = (long) dis.readInt();
+            }
+            keys[i] = index;
+            positions[i] = pos;
+        }
+    }
+
+    private static <T> Index<T> map(File file, Serializer<? extends T> serializer,
+            Function<? super T, double[]> point) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // the header is small so don't buffer beyond it
+            Header h = Header.read(new DataInputStream(Channels.newInputStream(channel)));
+            Preconditions.checkArgument(h.version != VERSION_COMPRESSED,
+                    "compressed index entries are not fixed width and cannot be mapped, use read");
+            long size = (long) h.numEntries * h.entryBytes();
+            Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+                    "index entries too large to map: " + size + " bytes");
+            Preconditions.checkArgument(h.length() + size <= channel.size(),
+                    "index file truncated: " + file);
+            // mapping remains valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, h.length(), size);
+            return new Index<T>(
+                    IndexPositions.of(buffer, h.numEntries, h.longKeys(), h.longPositions),
+                    h.mins, h.maxes, h.bits, h.count, serializer, point);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> Index<T> readPaged(BiFunction<Long, Optional<Long>, InputStream> factory,
+            int maxCachedPages, Serializer<? extends T> serializer,
+            Function<? super T, double[]> point) {
+        final Header h;
+        try (DataInputStream dis = new DataInputStream(
+                new ChunkedRangeInputStream(factory, 0, ROOT_INITIAL_CHUNK_BYTES))) {
+            h = Header.read(dis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Preconditions.checkArgument(h.version == VERSION_PAGED,
+                "index is not paged, use read instead");
+        IndexPositions positions = new PagedIndexPositions(h.pageFirstKeys, h.entriesPerPage,
+                h.numEntries, h.lastKey, h.length(), factory, maxCachedPages);
+        return new Index<T>(positions, h.mins, h.maxes, h.bits, h.count, serializer, point);
+    }
+
+    private static final class Header {
+        final short version;
+        final int bits;
+        final double[] mins;
+        final double[] maxes;
+        final long count;
+        final int numEntries;
+        final boolean longPositions;
+        // the following are only set for a paged index
+        final int entriesPerPage;
+        final long lastKey;
+        final long[] pageFirstKeys;
+
+        private Header(short version, int bits, double[] mins, double[] maxes, long count,
+                int numEntries, boolean longPositions, int entriesPerPage, long lastKey,
+                long[] pageFirstKeys) {
+            this.version = version;
+            this.bits = bits;
+            this.mins = mins;
+            this.maxes = maxes;
+            this.count = count;
+            this.numEntries = numEntries;
+            this.longPositions = longPositions;
+            this.entriesPerPage = entriesPerPage;
+            this.lastKey = lastKey;
+            this.pageFirstKeys = pageFirstKeys;
+        }
+
+        static Header read(DataInputStream dis) throws IOException {
+            short version = dis.readShort();
+            Preconditions.checkArgument(version == VERSION_INT_KEYS || version == VERSION_LONG_KEYS
+                    || version == VERSION_PAGED || version == VERSION_COMPRESSED,
+                    "unsupported index version: " + version);
             int bits = dis.readInt();
             int dimensions = dis.readInt();
             double[] mins = new double[dimensions];
@@ -358,22 +866,42 @@ public final class Index<T> {
             }
             long count = dis.readLong();
             int numEntries = dis.readInt();
-            boolean useLongPositions = dis.readInt() == 1;
-
-            TreeMap<Integer, Long> indexPositions = new TreeMap<Integer, Long>();
-            for (int i = 0; i < numEntries; i++) {
-                int index = dis.readInt();
-                final long pos;
-                if (useLongPositions) {
-                    pos = dis.readLong();
-                } else {
-                    pos = (long) dis.readInt();
+            boolean longPositions = dis.readInt() == 1;
+            int entriesPerPage = 0;
+            long lastKey = 0;
+            long[] pageFirstKeys = new long[0];
+            if (version == VERSION_PAGED) {
+                entriesPerPage = dis.readInt();
+                lastKey = dis.readLong();
+                pageFirstKeys = new long[PagedIndexPositions.numPages(numEntries,
+                        entriesPerPage)];
+                for (int i = 0; i < pageFirstKeys.length; i++) {
+                    pageFirstKeys[i] = dis.readLong();
                 }
-                indexPositions.put(index, pos);
             }
-            return new Index<T>(indexPositions, mins, maxes, bits, count, serializer, point);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            return new Header(version, bits, mins, maxes, count, numEntries, longPositions,
+                    entriesPerPage, lastKey, pageFirstKeys);
+        }
+
+        boolean longKeys() {
+            return version == VERSION_LONG_KEYS || version == VERSION_PAGED;
+        }
+
+        // entries are fixed width
+        int entryBytes() {
+            return (longKeys() ? Long.BYTES : Integer.BYTES)
+                    + (longPositions ? Long.BYTES : Integer.BYTES);
+        }
+
+        // version, bits, dimensions, mins and maxes, count, num entries, position width
+        // and for a paged index the root
+        long length() {
+            long length = Short.BYTES + 2 * Integer.BYTES + mins.length * 2 * Double.BYTES
+                    + Long.BYTES + 2 * Integer.BYTES;
+            if (version == VERSION_PAGED) {
+                length += Integer.BYTES + Long.BYTES + pageFirstKeys.length * Long.BYTES;
+            }
+            return length;
         }
     }
 
@@ -389,41 +917,166 @@ public final class Index<T> {
 
     public Index<T> write(DataOutputStream dos) throws IOException {
         try {
-            dos.writeShort(VERSION);
-            dos.writeInt(hc.bits());
-            dos.writeInt(hc.dimensions());
-            for (int i = 0; i < hc.dimensions(); i++) {
-                dos.writeDouble(mins[i]);
-                dos.writeDouble(maxes[i]);
+            // only use long keys if required so that older readers can read the index
+            boolean useLongKeys = hc.bits() * hc.dimensions() > 31;
+            boolean useLongPositions = false;
+            for (int i = 0; i < indexPositions.size(); i++) {
+                if (indexPositions.position(i) > Integer.MAX_VALUE) {
+                    useLongPositions = true;
+                    break;
+                }
             }
+            writeHeader(dos, useLongKeys ? VERSION_LONG_KEYS : VERSION_INT_KEYS,
+                    useLongPositions);
 
-            dos.writeLong(count);
-
-            // num index entries
-            dos.writeInt(indexPositions.size());
-
-            boolean useLongPositions = Stream.from(indexPositions.values())
-                    .findFirst(x -> x > Integer.MAX_VALUE).get().isPresent();
-
-            // write 0 for int position
-            // write 1 for long position
-            dos.writeInt(useLongPositions ? 1 : 0);
-
-            for (Entry<Integer, Long> entry : indexPositions.entrySet()) {
-                dos.writeInt(entry.getKey());
-                long pos = entry.getValue();
+            for (int i = 0; i < indexPositions.size(); i++) {
+                if (useLongKeys) {
+                    dos.writeLong(indexPositions.key(i));
+                } else {
+                    dos.writeInt((int) indexPositions.key(i));
+                }
+                long pos = indexPositions.position(i);
                 if (useLongPositions) {
                     dos.writeLong(pos);
                 } else {
                     dos.writeInt((int) pos);
                 }
             }
+            writeSections(dos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public Index<T> writeCompressed(File idx) {
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(idx)))) {
+            writeCompressed(dos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the index with each entry stored as the difference from the previous
+     * entry in variable length encoding. Keys and positions both increase so the
+     * differences are small and an entry typically takes 3 or 4 bytes rather than
+     * 8 to 16. The index file version is only readable by this and later versions
+     * of the library.
+     * 
+     * @param dos destination
+     * @return this
+     * @throws IOException on write error
+     */
+    public Index<T> writeCompressed(DataOutputStream dos) throws IOException {
+        try {
+            writeHeader(dos, VERSION_COMPRESSED, true);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream(bytes);
+            long key = 0;
+            long pos = 0;
+            for (int i = 0; i < indexPositions.size(); i++) {
+                VarLong.writeUnsigned(entries, indexPositions.key(i) - key);
+                // positions increase too but be lenient about indexes built by hand
+                VarLong.writeSigned(entries, indexPositions.position(i) - pos);
+                key = indexPositions.key(i);
+                pos = indexPositions.position(i);
+            }
+            // length first so the reader can read the entries in one go
+            dos.writeInt(bytes.size());
+            bytes.writeTo(dos);
+            writeSections(dos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public Index<T> writePaged(File idx) {
+        return writePaged(idx, DEFAULT_ENTRIES_PER_PAGE);
+    }
+
+    public Index<T> writePaged(File idx, int entriesPerPage) {
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(idx)))) {
+            writePaged(dos, entriesPerPage);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a hierarchical index. A small root holding the first key of every
+     * leaf page is followed by the leaf pages of fixed-width entries. Readers
+     * using {@link Builder2#readPaged(URL)} fetch the root and then only the leaf
+     * pages that a search needs.
+     * 
+     * @param dos            destination
+     * @param entriesPerPage number of index entries in each leaf page
+     * @return this
+     * @throws IOException on write error
+     */
+    public Index<T> writePaged(DataOutputStream dos, int entriesPerPage) throws IOException {
+        Preconditions.checkArgument(entriesPerPage > 0, "entriesPerPage must be positive");
+        try {
+            writeHeader(dos, VERSION_PAGED, true);
+            int size = indexPositions.size();
+            dos.writeInt(entriesPerPage);
+            dos.writeLong(size == 0 ? 0 : indexPositions.lastKey());
+            for (int i = 0; i < size; i += entriesPerPage) {
+                dos.writeLong(indexPositions.key(i));
+            }
+            for (int i = 0; i < size; i++) {
+                dos.writeLong(indexPositions.key(i));
+                dos.writeLong(indexPositions.position(i));
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
         return this;
     }
 
+    // each section is a type byte followed by its length and content
+    private void writeSections(DataOutputStream dos) throws IOException {
+        if (zoneMaps != null) {
+            dos.writeByte(SECTION_ZONE_MAPS);
+            zoneMaps.write(dos);
+        }
+        if (chunkCounts != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (long n : chunkCounts) {
+                VarLong.writeUnsigned(out, n);
+            }
+            dos.writeByte(SECTION_CHUNK_COUNTS);
+            dos.writeInt(bytes.size());
+            bytes.writeTo(dos);
+        }
+    }
+
+    private void writeHeader(DataOutputStream dos, short version, boolean useLongPositions)
+            throws IOException {
+        dos.writeShort(version);
+        dos.writeInt(hc.bits());
+        dos.writeInt(hc.dimensions());
+        for (int i = 0; i < hc.dimensions(); i++) {
+            dos.writeDouble(mins[i]);
+            dos.writeDouble(maxes[i]);
+        }
+
+        dos.writeLong(count);
+
+        // num index entries
+        dos.writeInt(indexPositions.size());
+
+        // write 0 for int position
+        // write 1 for long position
+        dos.writeInt(useLongPositions ? 1 : 0);
+    }
+
     private static BiFunction<Long, Optional<Long>, InputStream> rafInputStreamFactory(File file) {
         return (first, last) -> {
             RandomAccessFile raf = createRaf(file);
@@ -445,10 +1098,18 @@ public final class Index<T> {
     Flowable<T> search(Bounds queryBounds, BiFunction<Long, Optional<Long>, InputStream> factory,
             PositionRange pr) throws IOException {
         return Flowable.defer(() -> {
+            if (pointExtractor != null) {
+                return getMatches(queryBounds, factory, pr, null);
+            }
+            // records of a range are read one at a time so share scratch arrays
+            double[] point = new double[mins.length];
+            long[] x = new long[mins.length];
             return getValues(factory, pr) //
-                    .takeUntil(rec -> hc.index(ordinates(pointMapper.apply(rec))) > pr
-                            .maxHilbertIndex()) //
-                    .filter(t -> queryBounds.contains(pointMapper.apply(t)));
+                    // the point is mapped once and used by both takeUntil and filter
+                    // (takeUntil passes a record downstream before testing it)
+                    .doOnNext(rec -> point(rec, point)) //
+                    .takeUntil(rec -> hilbertIndex(point, x) > pr.maxHilbertIndex()) //
+                    .filter(t -> pr.withinQueryBounds() || queryBounds.contains(point));
         });
     }
 
@@ -459,6 +1120,12 @@ public final class Index<T> {
         long positionRanges;
         long bytesRead;
         long totalTimeToFirstByte;
+        long totalTransferNanos;
+        long hedges;
+        long hedgesWon;
+        long cacheHits;
+        long cacheMisses;
+        long cacheEvictions;
 
         Counts() {
             this.startTime = System.currentTimeMillis();
@@ -468,10 +1135,32 @@ public final class Index<T> {
             recordsRead++;
         }
 
-        synchronized void incrementRecordsFoundAndAddTTFBAndAddBytesRead(long ttfb, long bytes) {
+        synchronized void incrementRecordsFoundAndAddReadStats(long ttfb, long bytes,
+                long transferNanos) {
             recordsFound++;
             totalTimeToFirstByte += ttfb;
             bytesRead += bytes;
+            totalTransferNanos += transferNanos;
+        }
+
+        synchronized void incrementHedges() {
+            hedges++;
+        }
+
+        synchronized void incrementHedgesWon() {
+            hedgesWon++;
+        }
+
+        synchronized void incrementCacheHits() {
+            cacheHits++;
+        }
+
+        synchronized void incrementCacheMisses() {
+            cacheMisses++;
+        }
+
+        synchronized void incrementCacheEvictions() {
+            cacheEvictions++;
         }
 
     }
@@ -488,21 +1177,27 @@ public final class Index<T> {
             in[0] = is;
             return is;
         };
-        return getValues(factoryWithCount, pr) //
-                .doOnNext(x -> counts.incrementRecordsRead()) //
-                .takeUntil(
-                        rec -> hc.index(ordinates(pointMapper.apply(rec))) > pr.maxHilbertIndex()) //
-                .filter(t -> queryBounds.contains(pointMapper.apply(t))) //
-                .doOnNext(x -> counts.incrementRecordsFoundAndAddTTFBAndAddBytesRead(
-                        in[0].readTimeToFirstByteAndSetToZero(), in[0].count())) //
-                .map(x -> {
-                    synchronized (counts) {
-                        return new WithStats<T>(x, counts.recordsRead, counts.recordsFound,
-                                counts.bytesRead, counts.totalTimeToFirstByte,
-                                counts.positionRanges,
-                                System.currentTimeMillis() - counts.startTime);
-                    }
-                });
+        final Flowable<T> found;
+        if (pointExtractor != null) {
+            found = getMatches(queryBounds, factoryWithCount, pr, counts);
+        } else {
+            found = Flowable.defer(() -> {
+                double[] point = new double[mins.length];
+                long[] x = new long[mins.length];
+                return getValues(factoryWithCount, pr) //
+                        .doOnNext(rec -> {
+                            counts.incrementRecordsRead();
+                            point(rec, point);
+                        }) //
+                        .takeUntil(rec -> hilbertIndex(point, x) > pr.maxHilbertIndex()) //
+                        .filter(t -> pr.withinQueryBounds() || queryBounds.contains(point));
+            });
+        }
+        return found //
+                .doOnNext(x -> counts.incrementRecordsFoundAndAddReadStats(
+                        in[0].readTimeToFirstByteAndSetToZero(), in[0].count(),
+                        in[0].readTransferNanosAndSetToZero())) //
+                .map(x -> new WithStats<T>(x, counts));
     }
 
     private Flowable<T> getValues(BiFunction<Long, Optional<Long>, InputStream> factory,
@@ -511,10 +1206,8 @@ public final class Index<T> {
             InputStream[] in = new InputStream[1];
             final Reader<? extends T> r;
             try {
-                Optional<Long> ceiling = pr.ceilingPosition() == Long.MAX_VALUE ? Optional.empty()
-                        : Optional.of(pr.ceilingPosition());
                 // TODO don't block
-                in[0] = factory.apply(pr.floorPosition(), ceiling);
+                in[0] = factory.apply(pr.floorPosition(), end(pr));
                 r = serializer.createReader(in[0]);
             } catch (Throwable t) {
                 closeSilently(in[0]);
@@ -535,27 +1228,152 @@ public final class Index<T> {
                             // else keep reading till EOF or next record found within queryBounds
                         }
                     }) //
-                    .doOnCancel(() -> {
+                    // close on completion too so that the stream (and its file handle
+                    // or pooled buffer) is released as soon as the range is read
+                    .doFinally(() -> {
                         closeSilently(r);
                         closeSilently(in[0]);
                     });
         });
     }
 
-    @VisibleForTesting
-    static void closeSilently(Closeable c) {
-        try {
-            if (c != null) {
-                c.close();
-            }
-        } catch (Throwable t) {
-            // do nothing
-        }
+    /**
+     * Reads the records of the position range in blocks, extracting the point of
+     * each record from its bytes, and deserializes only the records within the
+     * query bounds. Stops after the first record past the range (as the
+     * {@code takeUntil} of the deserializing search does).
+     */
+    private Flowable<T> getMatches(Bounds queryBounds,
+            BiFunction<Long, Optional<Long>, InputStream> factory, PositionRange pr,
+            Counts counts) {
+        return Flowable.generate( //
+                () -> new Scan(factory.apply(pr.floorPosition(), end(pr))), //
+                (scan, emitter) -> {
+                    T t = scan.next(queryBounds, pr, counts);
+                    if (t == null) {
+                        emitter.onComplete();
+                    } else {
+                        emitter.onNext(t);
+                    }
+                }, //
+                scan -> closeSilently(scan.in));
     }
 
-    public int numEntries() {
-        return indexPositions.size();
-    }
+    private final class Scan {
+
+        private final InputStream in;
+        private final int recordSize;
+        private final byte[] block;
+        private final ByteBuffer bb;
+        private final double[] point;
+        private final long[] x;
+        private int offset;
+        private int limit;
+        private boolean finished;
+
+        Scan(InputStream in) {
+            this.in = in;
+            this.recordSize = pointExtractor.recordSize();
+            this.block = new byte[recordSize * Math.max(1, SCAN_BLOCK_BYTES / recordSize)];
+            this.bb = ByteBuffer.wrap(block);
+            this.point = new double[mins.length];
+            this.x = new long[mins.length];
+        }
+
+        // returns null when there are no more records found
+        T next(Bounds queryBounds, PositionRange pr, Counts counts) throws IOException {
+            while (!finished) {
+                if (offset == limit && !fill()) {
+                    return null;
+                }
+                int start = offset;
+                offset += recordSize;
+                if (counts != null) {
+                    counts.incrementRecordsRead();
+                }
+                pointExtractor.extract(bb, start, point);
+                if (hilbertIndex(point, x) > pr.maxHilbertIndex()) {
+                    finished = true;
+                }
+                if (pr.withinQueryBounds() || queryBounds.contains(point)) {
+                    return serializer
+                            .createReader(new ByteArrayInputStream(block, start, recordSize))
+                            .read();
+                }
+            }
+            return null;
+        }
+
+        // reads whole records into the block
+        private boolean fill() throws IOException {
+            int n = 0;
+            int k;
+            while (n < block.length && (k = in.read(block, n, block.length - n)) != -1) {
+                n += k;
+            }
+            offset = 0;
+            limit = n - n % recordSize;
+            if (limit == 0) {
+                finished = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void point(T value, double[] point) {
+        if (pointMapperInPlace != null) {
+            pointMapperInPlace.map(value, point);
+        } else {
+            double[] p = pointMapper.apply(value);
+            System.arraycopy(p, 0, point, 0, point.length);
+        }
+    }
+
+    // uses x as scratch space
+    private long hilbertIndex(double[] point, long[] x) {
+        return Util.hilbertIndex(hc.bits(), ordinates(point, x));
+    }
+
+    private static Optional<Long> end(PositionRange pr) {
+        return pr.ceilingPosition() == Long.MAX_VALUE ? Optional.empty()
+                : Optional.of(pr.ceilingPosition());
+    }
+
+    private Flowable<T> searchAsync(Bounds queryBounds, AsyncRangeFetcher fetcher,
+            PositionRange pr) {
+        return Single.<InputStream>create(emitter -> {
+            CompletableFuture<InputStream> future = fetcher.fetch(pr.floorPosition(), end(pr))
+                    .toCompletableFuture();
+            emitter.setCancellable(() -> future.cancel(true));
+            future.whenComplete((in, e) -> {
+                if (e == null) {
+                    emitter.onSuccess(in);
+                } else if (e instanceof CompletionException && e.getCause() != null) {
+                    emitter.onError(e.getCause());
+                } else {
+                    emitter.onError(e);
+                }
+            });
+        }) //
+                // the bytes have arrived so reading them doesn't block
+                .flatMapPublisher(in -> search(queryBounds, (x, y) -> in, pr));
+    }
+
+    @VisibleForTesting
+    static void closeSilently(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (Throwable t) {
+            // do nothing
+        }
+    }
+
+    public int numEntries() {
+        return indexPositions.size();
+    }
 
     public SearchBuilder search(double[] a, double[] b) {
         return search(Bounds.create(a, b));
@@ -571,6 +1389,28 @@ public final class Index<T> {
         private int maxRanges;
         private int rangesBufferSize;
         private int concurrency = 1;
+        // false means fetcher searches read a window of position ranges in order
+        private boolean concurrencySpecified;
+        // position ranges read ahead of the one being emitted when concurrency is 1
+        private int prefetch;
+        // null means don't coalesce position ranges separated by a gap
+        private CostModel costModel;
+        private int maxRangesPerRequest = 1;
+        // null means don't hedge
+        private HedgePolicy hedgePolicy;
+        // null means use the fixed concurrency
+        private Adaptive adaptive;
+        // null means requests are not queued with those of other searches
+        private FetchScheduler scheduler;
+        private Priority priority = Priority.NORMAL;
+        // null means requests are not shared with those of other searches
+        private SingleFlight singleFlight;
+        // null means chunks are not cached
+        private ChunkCache cache;
+        // null means chunks of urls are not cached on disk
+        private DiskCache diskCache;
+        // empty means use the version given by the server
+        private Optional<String> diskCacheVersion = Optional.empty();
 
         SearchBuilder(Bounds bounds) {
             this.bounds = bounds;
@@ -584,6 +1424,16 @@ public final class Index<T> {
             return new SearchBuilderAdvanced(this);
         }
 
+        /**
+         * Counts the records in the search bounds. Chunks lying entirely inside the
+         * search bounds are counted from the index without being read.
+         * 
+         * @return count builder
+         */
+        public SearchBuilderCount count() {
+            return new SearchBuilderCount(this);
+        }
+
         public SearchBuilder maxRanges(int maxRanges) {
             this.maxRanges = maxRanges;
             return this;
@@ -594,31 +1444,281 @@ public final class Index<T> {
             return this;
         }
 
+        /**
+         * Joins position ranges separated by a gap that is cheaper to read than to
+         * skip with another request according to the cost model. Useful for high
+         * latency stores like S3. A {@link #count()} joins only the ranges whose
+         * count is not known from the index.
+         * 
+         * @param costModel latency and transfer rate of the store
+         * @return this
+         */
+        public SearchBuilder coalesce(CostModel costModel) {
+            this.costModel = costModel;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of position ranges requested at once when searching
+         * an HTTP url. The server must support multiple ranges in the Range header
+         * (responding with {@code multipart/byteranges}). If it doesn't then the
+         * ranges are requested one at a time. Default is 1.
+         * 
+         * @param maxRangesPerRequest maximum number of ranges in one request
+         * @return this
+         */
+        public SearchBuilder maxRangesPerRequest(int maxRangesPerRequest) {
+            Preconditions.checkArgument(maxRangesPerRequest > 0,
+                    "maxRangesPerRequest must be greater than zero");
+            this.maxRangesPerRequest = maxRangesPerRequest;
+            return this;
+        }
+
+        /**
+         * Sends a duplicate request for a chunk whose first byte is slower to arrive
+         * than the delay given by the policy and uses whichever responds first. Cuts
+         * the tail latency of stores like S3 at the cost of some extra requests.
+         * Applies to {@code url} and {@code inputStreamFactory} searches.
+         * 
+         * @param hedgePolicy when to send duplicate requests
+         * @return this
+         */
+        public SearchBuilder hedge(HedgePolicy hedgePolicy) {
+            this.hedgePolicy = hedgePolicy;
+            return this;
+        }
+
+        /**
+         * Queues the chunk requests of this search with the requests of other
+         * searches using the same scheduler so that the number in flight to each
+         * endpoint is capped. The requests have {@link Priority#NORMAL} priority.
+         * 
+         * @param scheduler shared scheduler
+         * @return this
+         */
+        public SearchBuilder scheduler(FetchScheduler scheduler) {
+            return scheduler(scheduler, Priority.NORMAL);
+        }
+
+        /**
+         * Queues the chunk requests of this search with the requests of other
+         * searches using the same scheduler so that the number in flight to each
+         * endpoint is capped. Queued requests of higher priority searches are
+         * started first.
+         * 
+         * @param scheduler shared scheduler
+         * @param priority  priority of the chunk requests
+         * @return this
+         */
+        public SearchBuilder scheduler(FetchScheduler scheduler, Priority priority) {
+            Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+            Preconditions.checkNotNull(priority, "priority cannot be null");
+            this.scheduler = scheduler;
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Shares chunk requests in flight with other searches of the same source
+         * using the same {@link SingleFlight} so that concurrent searches over the
+         * same area make one request per chunk. Applies to {@code url}, {@code file}
+         * and {@code inputStreamFactory} searches.
+         * 
+         * @param singleFlight shared requests in flight
+         * @return this
+         */
+        public SearchBuilder singleFlight(SingleFlight singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
+        /**
+         * Reads chunks from the cache when present and adds the chunks read to it.
+         * Applies to {@code url}, {@code file} and {@code inputStreamFactory}
+         * searches. Chunks of a url are shared by searches using the same index
+         * or, if given, the same dataset version (see
+         * {@link #diskCache(DiskCache, String)}).
+         * 
+         * @param cache chunk cache shared by searches
+         * @return this
+         */
+        public SearchBuilder cache(ChunkCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Reads chunks of the url from files in the local directory of the cache
+         * when present and adds the chunks read to it. Cached chunks are used
+         * while the {@code ETag} of the url is unchanged. Applies to {@code url}
+         * searches.
+         * 
+         * @param diskCache disk cache
+         * @return this
+         */
+        public SearchBuilder diskCache(DiskCache diskCache) {
+            Preconditions.checkNotNull(diskCache, "diskCache cannot be null");
+            this.diskCache = diskCache;
+            this.diskCacheVersion = Optional.empty();
+            return this;
+        }
+
+        /**
+         * Reads chunks of the url from files in the local directory of the cache
+         * when present and adds the chunks read to it. Cached chunks are used
+         * while the dataset version is unchanged (the server is not asked for the
+         * version). Applies to {@code url} searches.
+         * 
+         * @param diskCache disk cache
+         * @param version   version of the sorted data file
+         * @return this
+         */
+        public SearchBuilder diskCache(DiskCache diskCache, String version) {
+            Preconditions.checkNotNull(diskCache, "diskCache cannot be null");
+            Preconditions.checkNotNull(version, "version cannot be null");
+            this.diskCache = diskCache;
+            this.diskCacheVersion = Optional.of(version);
+            return this;
+        }
+
         public SearchBuilder concurrency(int concurrency) {
             Preconditions.checkArgument(concurrency > 0, "concurrency must be greater than zero");
             this.concurrency = concurrency;
+            this.concurrencySpecified = true;
+            this.adaptive = null;
+            return this;
+        }
+
+        /**
+         * Sets the number of position ranges that are requested ahead of the one
+         * being read when concurrency is 1, so that waiting for the first bytes of
+         * the next ranges overlaps with deserializing the current one. Records are
+         * still emitted in the same order as without prefetch. Each range read ahead
+         * buffers up to {@link Flowable#bufferSize()} records, so up to
+         * {@code prefetch + 1} ranges of records may be held in memory. Default is
+         * 0.
+         * 
+         * @param prefetch number of position ranges to read ahead
+         * @return this
+         */
+        public SearchBuilder prefetch(int prefetch) {
+            Preconditions.checkArgument(prefetch >= 0, "prefetch must be >= 0");
+            this.prefetch = prefetch;
+            return this;
+        }
+
+        /**
+         * Adjusts the number of chunk requests in flight while the search runs
+         * according to the measured throughput and time to first byte. Applies to
+         * {@code url} and {@code inputStreamFactory} searches.
+         * 
+         * @param adaptive adaptive concurrency, for example {@link Adaptive#aimd()}
+         * @return this
+         */
+        public SearchBuilder concurrency(Adaptive adaptive) {
+            Preconditions.checkNotNull(adaptive, "adaptive cannot be null");
+            this.adaptive = adaptive;
             return this;
         }
 
         public Flowable<T> file(File file) {
-            return Flowable.defer(() -> inputStreamFactory(rafInputStreamFactory(file)));
+            return Flowable.defer(() -> search(ranges -> rafInputStreamFactory(file),
+                    FetchScheduler.FILE_ENDPOINT, file.getAbsoluteFile()));
         }
 
         public Flowable<T> file(String filename) {
             return file(new File(filename));
         }
 
+        /**
+         * Searches a local file opened once and shared by searches (see
+         * {@link SharedFile}).
+         * 
+         * @param file shared file
+         * @return stream
+         */
+        public Flowable<T> file(SharedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
+        /**
+         * Searches a local file mapped into memory (see {@link MappedFile}).
+         * 
+         * @param file mapped file
+         * @return stream
+         */
+        public Flowable<T> file(MappedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
         public Flowable<T> inputStreamFactory(
                 BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory) {
-            if (concurrency == 1) {
-                return search(bounds, inputStreamFactory, maxRanges, rangesBufferSize);
+            return search(ranges -> inputStreamFactory, FetchScheduler.DEFAULT_ENDPOINT,
+                    inputStreamFactory);
+        }
+
+        /**
+         * Searches using an asynchronous fetcher without a thread blocked waiting for
+         * each range. Unless {@link #concurrency(int)} is set up to
+         * {@link Index#DEFAULT_FETCHER_CONCURRENCY} ranges are requested at once
+         * and records are emitted in the same order as a {@code file} search. With
+         * the concurrency set up to that many ranges are requested at once and
+         * records are emitted as ranges complete. A concurrency of
+         * {@link Integer#MAX_VALUE} requests every range at once, leaving it to the
+         * fetcher to bound how many run together (for example
+         * {@link AsyncFileRangeFetcher} by its thread pool).
+         * 
+         * @param fetcher fetches ranges of the sorted data file
+         * @return stream
+         */
+        public Flowable<T> fetcher(AsyncRangeFetcher fetcher) {
+            return searchAsync(bounds, fetcher, maxRanges, rangesBufferSize, costModel,
+                    fetcherConcurrency(), !concurrencySpecified,
+                    lane(FetchScheduler.DEFAULT_ENDPOINT));
+        }
+
+        private int fetcherConcurrency() {
+            return concurrencySpecified ? concurrency : DEFAULT_FETCHER_CONCURRENCY;
+        }
+
+        private Flowable<T> search(InputStreamFactories factories, String endpoint,
+                Object source) {
+            if (adaptive != null) {
+                return searchAdaptive(bounds, factories, maxRanges, rangesBufferSize, costModel,
+                        decorator(source), adaptive, lane(endpoint));
+            } else if (concurrency == 1) {
+                return Index.this.search(bounds, factories, maxRanges, rangesBufferSize,
+                        costModel, decorator(source), prefetch, lane(endpoint));
             } else {
                 return advanced() //
-                        .inputStreamFactory(inputStreamFactory) //
+                        .search(factories, endpoint, source) //
                         .flatMap(x -> x.subscribeOn(Schedulers.io()), concurrency);
             }
         }
 
+        private Lane lane(String endpoint) {
+            return scheduler == null ? null : scheduler.lane(endpoint, priority);
+        }
+
+        private DiskCache.Source diskCached(URL url) {
+            return diskCache == null ? null : diskCache.source(url, diskCacheVersion);
+        }
+
+        private Object urlSource(URL url) {
+            // the bytes at a url change when the data is replaced so chunks are
+            // shared only by searches of the same dataset version or index
+            return Arrays.asList(url.toExternalForm(),
+                    diskCacheVersion.isPresent() ? diskCacheVersion.get() : Index.this);
+        }
+
+        private FactoryDecorator decorator(Object source) {
+            return new FactoryDecorator(hedgePolicy,
+                    singleFlight == null ? null : singleFlight.source(source),
+                    cache == null ? null : cache.source(source));
+        }
+
         /**
          * Specify an HTTP url to use (server must support Range HTTP header)
          * @param url address
@@ -638,7 +1738,81 @@ public final class Index<T> {
          * @return stream
          */
         public Flowable<T> url(URL url) {
-            return inputStreamFactory(inputStreamForRange(url));
+            return search(urlFactories(url, maxRangesPerRequest, diskCached(url)),
+                    FetchScheduler.endpoint(url), urlSource(url));
+        }
+    }
+
+    public final class SearchBuilderCount {
+
+        private final Index<T>.SearchBuilder b;
+
+        SearchBuilderCount(Index<T>.SearchBuilder b) {
+            this.b = b;
+        }
+
+        public Single<Long> file(File file) {
+            return Single.defer(() -> count(ranges -> rafInputStreamFactory(file),
+                    FetchScheduler.FILE_ENDPOINT, file.getAbsoluteFile()));
+        }
+
+        public Single<Long> file(String filename) {
+            return file(new File(filename));
+        }
+
+        /**
+         * Counts the records in a local file opened once and shared by searches
+         * (see {@link SharedFile}).
+         * 
+         * @param file shared file
+         * @return count
+         */
+        public Single<Long> file(SharedFile file) {
+            return count(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
+        /**
+         * Counts the records in a local file mapped into memory (see
+         * {@link MappedFile}).
+         * 
+         * @param file mapped file
+         * @return count
+         */
+        public Single<Long> file(MappedFile file) {
+            return count(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
+        public Single<Long> inputStreamFactory(
+                BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory) {
+            return count(ranges -> inputStreamFactory, FetchScheduler.DEFAULT_ENDPOINT,
+                    inputStreamFactory);
+        }
+
+        public Single<Long> url(String url) {
+            try {
+                return url(new URL(url));
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public Single<Long> url(URL url) {
+            return count(urlFactories(url, b.maxRangesPerRequest, b.diskCached(url)),
+                    FetchScheduler.endpoint(url), b.urlSource(url));
+        }
+
+        private Single<Long> count(InputStreamFactories factories, String endpoint,
+                Object source) {
+            return Index.this.count(b.bounds, factories, b.maxRanges, b.rangesBufferSize,
+                    b.costModel, b.decorator(source), b.concurrency, b.adaptive,
+                    b.lane(endpoint));
+        }
+
+        public Single<Long> fetcher(AsyncRangeFetcher fetcher) {
+            return countAsync(b.bounds, fetcher, b.maxRanges, b.rangesBufferSize, b.costModel,
+                    b.fetcherConcurrency(), b.lane(FetchScheduler.DEFAULT_ENDPOINT));
         }
     }
 
@@ -664,17 +1838,79 @@ public final class Index<T> {
             return this;
         }
 
+        public SearchBuilderAdvanced coalesce(CostModel costModel) {
+            b.coalesce(costModel);
+            return this;
+        }
+
+        public SearchBuilderAdvanced maxRangesPerRequest(int maxRangesPerRequest) {
+            b.maxRangesPerRequest(maxRangesPerRequest);
+            return this;
+        }
+
+        public SearchBuilderAdvanced hedge(HedgePolicy hedgePolicy) {
+            b.hedge(hedgePolicy);
+            return this;
+        }
+
+        public SearchBuilderAdvanced scheduler(FetchScheduler scheduler) {
+            return scheduler(scheduler, Priority.NORMAL);
+        }
+
+        public SearchBuilderAdvanced scheduler(FetchScheduler scheduler, Priority priority) {
+            b.scheduler(scheduler, priority);
+            return this;
+        }
+
+        public SearchBuilderAdvanced singleFlight(SingleFlight singleFlight) {
+            b.singleFlight(singleFlight);
+            return this;
+        }
+
+        public SearchBuilderAdvanced cache(ChunkCache cache) {
+            b.cache(cache);
+            return this;
+        }
+
+        public SearchBuilderAdvanced diskCache(DiskCache diskCache) {
+            b.diskCache(diskCache);
+            return this;
+        }
+
+        public SearchBuilderAdvanced diskCache(DiskCache diskCache, String version) {
+            b.diskCache(diskCache, version);
+            return this;
+        }
+
         public Flowable<Flowable<T>> file(File file) {
-            return Flowable.defer(() -> inputStreamFactory(rafInputStreamFactory(file)));
+            return Flowable.defer(() -> search(ranges -> rafInputStreamFactory(file),
+                    FetchScheduler.FILE_ENDPOINT, file.getAbsoluteFile()));
         }
 
         public Flowable<Flowable<T>> file(String filename) {
             return file(new File(filename));
         }
 
+        public Flowable<Flowable<T>> file(SharedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
+        public Flowable<Flowable<T>> file(MappedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
         public Flowable<Flowable<T>> inputStreamFactory(
                 BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory) {
-            return searchAdvanced(b.bounds, inputStreamFactory, b.maxRanges, b.rangesBufferSize);
+            return search(ranges -> inputStreamFactory, FetchScheduler.DEFAULT_ENDPOINT,
+                    inputStreamFactory);
+        }
+
+        private Flowable<Flowable<T>> search(InputStreamFactories factories, String endpoint,
+                Object source) {
+            return searchAdvanced(b.bounds, factories, b.maxRanges, b.rangesBufferSize,
+                    b.costModel, b.decorator(source), b.lane(endpoint));
         }
 
         /**
@@ -696,7 +1932,8 @@ public final class Index<T> {
          * @return stream of streams
          */
         public Flowable<Flowable<T>> url(URL url) {
-            return inputStreamFactory(inputStreamForRange(url));
+            return search(urlFactories(url, b.maxRangesPerRequest, b.diskCached(url)),
+                    FetchScheduler.endpoint(url), b.urlSource(url));
         }
 
     }
@@ -719,27 +1956,97 @@ public final class Index<T> {
             return this;
         }
 
+        public SearchBuilderWithStats coalesce(CostModel costModel) {
+            b.coalesce(costModel);
+            return this;
+        }
+
+        public SearchBuilderWithStats maxRangesPerRequest(int maxRangesPerRequest) {
+            b.maxRangesPerRequest(maxRangesPerRequest);
+            return this;
+        }
+
+        public SearchBuilderWithStats hedge(HedgePolicy hedgePolicy) {
+            b.hedge(hedgePolicy);
+            return this;
+        }
+
+        public SearchBuilderWithStats scheduler(FetchScheduler scheduler) {
+            return scheduler(scheduler, Priority.NORMAL);
+        }
+
+        public SearchBuilderWithStats scheduler(FetchScheduler scheduler, Priority priority) {
+            b.scheduler(scheduler, priority);
+            return this;
+        }
+
+        public SearchBuilderWithStats singleFlight(SingleFlight singleFlight) {
+            b.singleFlight(singleFlight);
+            return this;
+        }
+
+        public SearchBuilderWithStats cache(ChunkCache cache) {
+            b.cache(cache);
+            return this;
+        }
+
+        public SearchBuilderWithStats diskCache(DiskCache diskCache) {
+            b.diskCache(diskCache);
+            return this;
+        }
+
+        public SearchBuilderWithStats diskCache(DiskCache diskCache, String version) {
+            b.diskCache(diskCache, version);
+            return this;
+        }
+
         public SearchBuilderWithStats concurrency(int concurrency) {
             b.concurrency(concurrency);
             return this;
         }
 
+        public SearchBuilderWithStats prefetch(int prefetch) {
+            b.prefetch(prefetch);
+            return this;
+        }
+
         public SearchBuilderWithStatsAdvanced advanced() {
             return new SearchBuilderWithStatsAdvanced(b);
         }
 
         public Flowable<WithStats<T>> file(File file) {
-            return Flowable.defer(() -> inputStreamFactory(rafInputStreamFactory(file)));
+            return Flowable.defer(() -> search(ranges -> rafInputStreamFactory(file),
+                    FetchScheduler.FILE_ENDPOINT, file.getAbsoluteFile()));
+        }
+
+        public Flowable<WithStats<T>> file(SharedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
+        public Flowable<WithStats<T>> file(MappedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
         }
 
         public Flowable<WithStats<T>> inputStreamFactory(
                 BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory) {
-            if (b.concurrency == 1) {
-                return searchWithStats(b.bounds, inputStreamFactory, b.maxRanges,
-                        b.rangesBufferSize);
+            return search(ranges -> inputStreamFactory, FetchScheduler.DEFAULT_ENDPOINT,
+                    inputStreamFactory);
+        }
+
+        private Flowable<WithStats<T>> search(InputStreamFactories factories, String endpoint,
+                Object source) {
+            if (b.adaptive != null) {
+                return searchWithStatsAdaptive(b.bounds, factories, b.maxRanges,
+                        b.rangesBufferSize, b.costModel, b.decorator(source), b.adaptive,
+                        b.lane(endpoint));
+            } else if (b.concurrency == 1) {
+                return searchWithStats(b.bounds, factories, b.maxRanges, b.rangesBufferSize,
+                        b.costModel, b.decorator(source), b.prefetch, b.lane(endpoint));
             } else {
                 return advanced() //
-                        .inputStreamFactory(inputStreamFactory) //
+                        .search(factories, endpoint, source) //
                         .flatMap(x -> x.subscribeOn(Schedulers.io()), b.concurrency);
             }
         }
@@ -753,7 +2060,8 @@ public final class Index<T> {
         }
 
         public Flowable<WithStats<T>> url(URL url) {
-            return inputStreamFactory(inputStreamForRange(url));
+            return search(urlFactories(url, b.maxRangesPerRequest, b.diskCached(url)),
+                    FetchScheduler.endpoint(url), b.urlSource(url));
         }
 
     }
@@ -776,18 +2084,80 @@ public final class Index<T> {
             return this;
         }
 
+        public SearchBuilderWithStatsAdvanced coalesce(CostModel costModel) {
+            b.coalesce(costModel);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced maxRangesPerRequest(int maxRangesPerRequest) {
+            b.maxRangesPerRequest(maxRangesPerRequest);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced hedge(HedgePolicy hedgePolicy) {
+            b.hedge(hedgePolicy);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced scheduler(FetchScheduler scheduler) {
+            return scheduler(scheduler, Priority.NORMAL);
+        }
+
+        public SearchBuilderWithStatsAdvanced scheduler(FetchScheduler scheduler,
+                Priority priority) {
+            b.scheduler(scheduler, priority);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced singleFlight(SingleFlight singleFlight) {
+            b.singleFlight(singleFlight);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced cache(ChunkCache cache) {
+            b.cache(cache);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced diskCache(DiskCache diskCache) {
+            b.diskCache(diskCache);
+            return this;
+        }
+
+        public SearchBuilderWithStatsAdvanced diskCache(DiskCache diskCache, String version) {
+            b.diskCache(diskCache, version);
+            return this;
+        }
+
         public Flowable<Flowable<WithStats<T>>> file(File file) {
-            return Flowable.defer(() -> inputStreamFactory(rafInputStreamFactory(file)));
+            return Flowable.defer(() -> search(ranges -> rafInputStreamFactory(file),
+                    FetchScheduler.FILE_ENDPOINT, file.getAbsoluteFile()));
         }
 
         public Flowable<Flowable<WithStats<T>>> file(String filename) {
             return file(new File(filename));
         }
 
+        public Flowable<Flowable<WithStats<T>>> file(SharedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
+        public Flowable<Flowable<WithStats<T>>> file(MappedFile file) {
+            return search(ranges -> file, FetchScheduler.FILE_ENDPOINT,
+                    file.file().getAbsoluteFile());
+        }
+
         public Flowable<Flowable<WithStats<T>>> inputStreamFactory(
                 BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory) {
-            return searchWithStatsAdvanced(b.bounds, inputStreamFactory, b.maxRanges,
-                    b.rangesBufferSize);
+            return search(ranges -> inputStreamFactory, FetchScheduler.DEFAULT_ENDPOINT,
+                    inputStreamFactory);
+        }
+
+        private Flowable<Flowable<WithStats<T>>> search(InputStreamFactories factories,
+                String endpoint, Object source) {
+            return searchWithStatsAdvanced(b.bounds, factories, b.maxRanges, b.rangesBufferSize,
+                    b.costModel, b.decorator(source), b.lane(endpoint));
         }
 
         public Flowable<Flowable<WithStats<T>>> url(String url) {
@@ -799,7 +2169,8 @@ public final class Index<T> {
         }
 
         public Flowable<Flowable<WithStats<T>>> url(URL url) {
-            return inputStreamFactory(inputStreamForRange(url));
+            return search(urlFactories(url, b.maxRangesPerRequest, b.diskCached(url)),
+                    FetchScheduler.endpoint(url), b.urlSource(url));
         }
 
     }
@@ -812,78 +2183,340 @@ public final class Index<T> {
         }
     }
 
+    /**
+     * Returns the hilbert index ranges of {@link #hilbertCurve()} that cover the
+     * query bounds. If the curve is too fine to visit every cell on the perimeter
+     * of the bounds the ranges are refined level by level where they span index
+     * entries (see {@link RangeQuery}).
+     * 
+     * @param queryBounds search bounds
+     * @param maxRanges   maximum number of ranges (0 for unlimited)
+     * @param rangesBufferSize ranges buffer size (0 for unlimited)
+     * @return ranges in ascending order
+     */
+    @VisibleForTesting
+    Ranges ranges(Bounds queryBounds, int maxRanges, int rangesBufferSize) {
+        long[] a = ordinates(queryBounds.mins());
+        long[] b = ordinates(queryBounds.maxes());
+        if (rangeQuery == null) {
+            return hc.query(a, b, maxRanges, rangesBufferSize);
+        } else {
+            return rangeQuery.query(a, b, maxRanges, rangesBufferSize);
+        }
+    }
+
     private Flowable<T> search(Bounds queryBounds,
-            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory, int maxRanges,
-            int rangesBufferSize) {
+            InputStreamFactories factories, int maxRanges, int rangesBufferSize,
+            CostModel costModel, FactoryDecorator decorator, int prefetch, Lane lane) {
+        return Flowable.defer(() -> {
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            List<PositionRange> list = positionRanges(queryBounds, ranges, costModel);
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list), null);
+            return concatInOrder(Flowable.fromIterable(list) //
+                    .map(pr -> schedule(lane, search(queryBounds, inputStreamFactory, pr))),
+                    prefetch);
+        });
+    }
+
+    /**
+     * Concatenates the searches of position ranges in order. With prefetch the
+     * next {@code prefetch} searches are subscribed to (on io threads) while the
+     * current one is emitting and their records are buffered (bounded by
+     * backpressure) until their turn.
+     */
+    private static <S> Flowable<S> concatInOrder(Flowable<Flowable<S>> searches,
+            int prefetch) {
+        if (prefetch == 0) {
+            return searches.concatMap(x -> x);
+        } else {
+            return searches.concatMapEager(x -> x.subscribeOn(Schedulers.io()), prefetch + 1,
+                    Flowable.bufferSize());
+        }
+    }
+
+    private Flowable<T> searchAdaptive(Bounds queryBounds, InputStreamFactories factories,
+            int maxRanges, int rangesBufferSize, CostModel costModel, FactoryDecorator decorator,
+            Adaptive adaptive, Lane lane) {
+        return Flowable.defer(() -> {
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            List<PositionRange> list = positionRanges(queryBounds, ranges, costModel);
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list), null);
+            return Flowable.fromIterable(list) //
+                    .flatMap(pr -> adaptive.limit(schedule(lane,
+                            searchMeasured(queryBounds, inputStreamFactory, pr, adaptive))),
+                            adaptive.maxConcurrency());
+        });
+    }
+
+    private Flowable<T> searchMeasured(Bounds queryBounds,
+            BiFunction<Long, Optional<Long>, InputStream> factory, PositionRange pr,
+            Adaptive adaptive) {
+        return measured(factory, adaptive, f -> search(queryBounds, f, pr));
+    }
+
+    /**
+     * Runs the search of a position range on an io thread and records the bytes
+     * read and the time it took with the adaptive concurrency.
+     */
+    private static <S> Flowable<S> measured(
+            BiFunction<Long, Optional<Long>, InputStream> factory, Adaptive adaptive,
+            io.reactivex.functions.Function<BiFunction<Long, Optional<Long>, InputStream>,
+                    Flowable<S>> search) {
         return Flowable.defer(() -> {
-            long[] a = ordinates(queryBounds.mins());
-            long[] b = ordinates(queryBounds.maxes());
-            Ranges ranges = hc.query(a, b, maxRanges, rangesBufferSize);
-            return Flowable.fromIterable(positionRanges(ranges)) //
-                    .flatMap(pr -> search(queryBounds, inputStreamFactory, pr));
+            long startTime = System.currentTimeMillis();
+            CountingInputStream[] in = new CountingInputStream[1];
+            BiFunction<Long, Optional<Long>, InputStream> factoryWithCount = (x, y) -> {
+                in[0] = new CountingInputStream(factory.apply(x, y), System.currentTimeMillis());
+                return in[0];
+            };
+            return search.apply(factoryWithCount) //
+                    .subscribeOn(Schedulers.io()) //
+                    .doFinally(() -> {
+                        if (in[0] != null) {
+                            adaptive.record(in[0].count(), in[0].readTimeToFirstByteAndSetToZero(),
+                                    System.currentTimeMillis() - startTime);
+                        }
+                    });
         });
     }
 
+    private Single<Long> count(Bounds queryBounds,
+            InputStreamFactories factories, int maxRanges, int rangesBufferSize,
+            CostModel costModel, FactoryDecorator decorator, int concurrency, Adaptive adaptive,
+            Lane lane) {
+        return Flowable.defer(() -> {
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            List<PositionRange> list = positionRangesForCount(queryBounds, ranges, costModel);
+            // only the ranges whose count is not known are read
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list.stream().filter(pr -> knownCount(pr) < 0)
+                            .collect(Collectors.toList())), null);
+            return Flowable.fromIterable(list) //
+                    .map(pr -> {
+                        long n = knownCount(pr);
+                        if (n >= 0) {
+                            return Flowable.just(n);
+                        } else if (adaptive != null) {
+                            return adaptive.limit(schedule(lane,
+                                    searchMeasured(queryBounds, inputStreamFactory, pr, adaptive)
+                                            .count().toFlowable()));
+                        } else {
+                            Flowable<Long> f = schedule(lane,
+                                    search(queryBounds, inputStreamFactory, pr).count()
+                                            .toFlowable());
+                            return concurrency == 1 ? f : f.subscribeOn(Schedulers.io());
+                        }
+                    }) //
+                    .flatMap(x -> x, adaptive != null ? adaptive.maxConcurrency() : concurrency);
+        }) //
+                .reduce(0L, (x, y) -> x + y);
+    }
+
+    /**
+     * Wraps the input stream factory of a search with the options that act on
+     * each chunk request.
+     */
+    private static final class FactoryDecorator {
+
+        // null means don't hedge
+        private final HedgePolicy hedgePolicy;
+        // null means don't share requests in flight
+        private final SingleFlight.Source shared;
+        // null means don't cache
+        private final ChunkCache.Source cached;
+
+        FactoryDecorator(HedgePolicy hedgePolicy, SingleFlight.Source shared,
+                ChunkCache.Source cached) {
+            this.hedgePolicy = hedgePolicy;
+            this.shared = shared;
+            this.cached = cached;
+        }
+
+        BiFunction<Long, Optional<Long>, InputStream> decorate(
+                BiFunction<Long, Optional<Long>, InputStream> factory, Counts counts) {
+            BiFunction<Long, Optional<Long>, InputStream> f = factory;
+            if (hedgePolicy != null) {
+                f = new HedgingInputStreamFactory(f, hedgePolicy, counts);
+            }
+            // shares requests above hedging so that a hedge is a separate request
+            if (shared != null) {
+                f = shared.wrap(f);
+            }
+            if (cached != null) {
+                f = cached.wrap(f, counts);
+            }
+            return f;
+        }
+    }
+
+    private static <S> Flowable<S> schedule(Lane lane, Flowable<S> request) {
+        return lane == null ? request : lane.schedule(request);
+    }
+
+    private Flowable<T> searchAsync(Bounds queryBounds, AsyncRangeFetcher fetcher,
+            int maxRanges, int rangesBufferSize, CostModel costModel, int concurrency,
+            boolean ordered, Lane lane) {
+        return Flowable.defer(() -> {
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            Flowable<Flowable<T>> searches = Flowable
+                    .fromIterable(positionRanges(queryBounds, ranges, costModel)) //
+                    .map(pr -> schedule(lane, searchAsync(queryBounds, fetcher, pr)));
+            if (ordered) {
+                // ranges ahead of the one being emitted buffer their records
+                return searches.concatMapEager(x -> x, concurrency, Flowable.bufferSize());
+            } else {
+                return searches.flatMap(x -> x, concurrency);
+            }
+        }) //
+                .onErrorResumeNext((Throwable e) -> Flowable.error(firstError(e)));
+    }
+
+    // fetches in flight at the same time can fail together (typically with the
+    // same cause) and are then combined, report the first failure as the search
+    // error
+    private static Throwable firstError(Throwable e) {
+        if (e instanceof CompositeException) {
+            return ((CompositeException) e).getExceptions().get(0);
+        } else {
+            return e;
+        }
+    }
+
+    private Single<Long> countAsync(Bounds queryBounds, AsyncRangeFetcher fetcher,
+            int maxRanges, int rangesBufferSize, CostModel costModel, int concurrency,
+            Lane lane) {
+        return Flowable.defer(() -> {
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            return Flowable.fromIterable(positionRangesForCount(queryBounds, ranges, costModel)) //
+                    .flatMap(pr -> {
+                        long n = knownCount(pr);
+                        if (n >= 0) {
+                            return Flowable.just(n);
+                        } else {
+                            return schedule(lane,
+                                    searchAsync(queryBounds, fetcher, pr).count().toFlowable());
+                        }
+                    }, concurrency);
+        }) //
+                .onErrorResumeNext((Throwable e) -> Flowable.error(firstError(e))) //
+                .reduce(0L, (x, y) -> x + y);
+    }
+
     private Flowable<Flowable<T>> searchAdvanced(Bounds queryBounds,
-            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory, int maxRanges,
-            int rangesBufferSize) {
+            InputStreamFactories factories, int maxRanges, int rangesBufferSize,
+            CostModel costModel, FactoryDecorator decorator, Lane lane) {
         return Flowable.defer(() -> {
-            long[] a = ordinates(queryBounds.mins());
-            long[] b = ordinates(queryBounds.maxes());
             // TODO make hc.query return a Flowable (lazy calculation)?
-            Ranges ranges = hc.query(a, b, maxRanges, rangesBufferSize);
-            return Flowable.fromIterable(positionRanges(ranges)) //
-                    .map(pr -> search(queryBounds, inputStreamFactory, pr));
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            List<PositionRange> list = positionRanges(queryBounds, ranges, costModel);
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list), null);
+            return Flowable.fromIterable(list) //
+                    .map(pr -> schedule(lane, search(queryBounds, inputStreamFactory, pr)));
         });
     }
 
     private Flowable<Flowable<WithStats<T>>> searchWithStatsAdvanced(Bounds queryBounds,
-            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory, int maxRanges,
-            int rangesBufferSize) {
+            InputStreamFactories factories, int maxRanges, int rangesBufferSize,
+            CostModel costModel, FactoryDecorator decorator, Lane lane) {
         return Flowable.defer(() -> {
-            long[] a = ordinates(queryBounds.mins());
-            long[] b = ordinates(queryBounds.maxes());
-            Ranges ranges = hc.query(a, b, maxRanges, rangesBufferSize);
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
             Counts counts = new Counts();
-            return Flowable.fromIterable(positionRanges(ranges)) //
-                    .map(pr -> searchWithStats(queryBounds, inputStreamFactory, pr, counts)) //
+            List<PositionRange> list = positionRanges(queryBounds, ranges, costModel);
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list), counts);
+            return Flowable.fromIterable(list) //
+                    .map(pr -> schedule(lane,
+                            searchWithStats(queryBounds, inputStreamFactory, pr, counts))) //
                     .concatWith(Flowable.just(finalStats(counts)));
         });
     }
 
     private Flowable<WithStats<T>> searchWithStats(Bounds queryBounds,
-            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory, int maxRanges,
-            int rangesBufferSize) {
+            InputStreamFactories factories, int maxRanges, int rangesBufferSize,
+            CostModel costModel, FactoryDecorator decorator, int prefetch, Lane lane) {
         return Flowable.defer(() -> {
-            long[] a = ordinates(queryBounds.mins());
-            long[] b = ordinates(queryBounds.maxes());
-            Ranges ranges = hc.query(a, b, maxRanges, rangesBufferSize);
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
             Counts counts = new Counts();
-            return Flowable.fromIterable(positionRanges(ranges)) //
-                    .flatMap(pr -> searchWithStats(queryBounds, inputStreamFactory, pr, counts))
+            List<PositionRange> list = positionRanges(queryBounds, ranges, costModel);
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list), counts);
+            return concatInOrder(Flowable.fromIterable(list) //
+                    .map(pr -> schedule(lane,
+                            searchWithStats(queryBounds, inputStreamFactory, pr, counts))),
+                    prefetch) //
                     .concatWith(finalStats(counts));
         });
     }
 
-    private Flowable<WithStats<T>> finalStats(Counts counts) {
+    private Flowable<WithStats<T>> searchWithStatsAdaptive(Bounds queryBounds,
+            InputStreamFactories factories, int maxRanges, int rangesBufferSize,
+            CostModel costModel, FactoryDecorator decorator, Adaptive adaptive, Lane lane) {
         return Flowable.defer(() -> {
-            synchronized (counts) {
-                return Flowable.just(new WithStats<T>(null, counts.recordsRead, counts.recordsFound,
-                        counts.bytesRead, counts.totalTimeToFirstByte, counts.positionRanges,
-                        System.currentTimeMillis() - counts.startTime));
-            }
+            Iterable<Range> ranges = ranges(queryBounds, maxRanges, rangesBufferSize);
+            Counts counts = new Counts();
+            List<PositionRange> list = positionRanges(queryBounds, ranges, costModel);
+            BiFunction<Long, Optional<Long>, InputStream> inputStreamFactory = decorator
+                    .decorate(factories.apply(list), counts);
+            return Flowable.fromIterable(list) //
+                    .flatMap(pr -> adaptive.limit(schedule(lane,
+                            measured(inputStreamFactory, adaptive,
+                                    f -> searchWithStats(queryBounds, f, pr, counts)))),
+                            adaptive.maxConcurrency()) //
+                    .concatWith(finalStats(counts));
         });
     }
 
+    private Flowable<WithStats<T>> finalStats(Counts counts) {
+        return Flowable.defer(() -> Flowable.just(new WithStats<T>(null, counts)));
+    }
+
     private static BiFunction<Long, Optional<Long>, InputStream> inputStreamForRange(URL u) {
         return (start, end) -> {
             URLConnection con = u.openConnection();
             String bytesRange = getRangeHeaderValue(start, end);
             con.addRequestProperty("Range", bytesRange);
-            return new BufferedInputStream(con.getInputStream());
+            InputStream in = new BufferedInputStream(con.getInputStream());
+            if (con instanceof HttpURLConnection
+                    && ((HttpURLConnection) con).getResponseCode() == HttpURLConnection.HTTP_OK) {
+                // the server ignored the Range header and returned the whole resource
+                Util.skipFully(in, start);
+                if (end.isPresent()) {
+                    return new ClosingInputStream(new LimitingInputStream(in, end.get() - start),
+                            () -> in.close());
+                }
+            }
+            return in;
         };
     }
 
+    private static InputStreamFactories urlFactories(URL url, int maxRangesPerRequest,
+            DiskCache.Source diskCached) {
+        BiFunction<Long, Optional<Long>, InputStream> single = inputStreamForRange(url);
+        InputStreamFactories factories;
+        if (maxRangesPerRequest == 1) {
+            factories = ranges -> single;
+        } else {
+            factories = ranges -> new MultiRangeInputStreamFactory(url, single, ranges,
+                    maxRangesPerRequest);
+        }
+        if (diskCached == null) {
+            return factories;
+        } else {
+            return ranges -> diskCached.wrap(factories.apply(ranges));
+        }
+    }
+
+    /**
+     * Creates the input stream factory used to read the position ranges of a
+     * search.
+     */
+    private interface InputStreamFactories extends
+            Function<List<PositionRange>, BiFunction<Long, Optional<Long>, InputStream>> {
+    }
+
     @VisibleForTesting
     static String getRangeHeaderValue(long start, Optional<Long> end) {
         return "bytes=" + start + end.map(x -> "-" + x).orElse("");
@@ -891,6 +2524,7 @@ public final class Index<T> {
 
     private static <T> Index<T> createIndex( //
             File input, //
+            InputStream inputStream, //
             Serializer<? extends T> serializer, //
             Function<? super T, double[]> point, //
             File output, //
@@ -898,35 +2532,44 @@ public final class Index<T> {
             int dimensions, //
             int numIndexEntriesApproximate, //
             int sortMaxFiles, //
-            int sortMaxItemsPerFile) //
+            int sortMaxItemsPerFile, //
+            boolean precomputeSortKeys, //
+            Bounds domain) //
             throws IOException {
 
-        Preconditions.checkArgument(bits * dimensions <= 31,
-                "bits * dimensions must be at most 31");
-
-        // scan once to get the mins, maxes, count
-        final double[] mins = new double[dimensions];
-        final double[] maxes = new double[dimensions];
-        long count = 0;
-        try (InputStream in = Util.bufferedInput(input); //
-                Reader<? extends T> reader = serializer.createReader(in)) {
-            Arrays.setAll(mins, i -> Double.MAX_VALUE);
-            Arrays.setAll(maxes, i -> Double.MIN_VALUE);
-            T t;
-            while ((t = reader.read()) != null) {
-                count++;
-                double[] p = point.apply(t);
-                if (p.length != dimensions) {
-                    throw new IllegalArgumentException(
-                            "point function should be of length equal to number of dimensions but was: "
-                                    + Arrays.toString(p));
-                }
-                for (int i = 0; i < p.length; i++) {
-                    if (p[i] < mins[i]) {
-                        mins[i] = p[i];
+        Preconditions.checkArgument(bits * dimensions <= 63,
+                "bits * dimensions must be at most 63");
+        Preconditions.checkArgument(input != null || domain != null,
+                "domain must be specified if input is an InputStream");
+
+        final double[] mins;
+        final double[] maxes;
+        if (domain != null) {
+            mins = domain.mins().clone();
+            maxes = domain.maxes().clone();
+        } else {
+            // scan once to get the mins, maxes
+            mins = new double[dimensions];
+            maxes = new double[dimensions];
+            try (InputStream in = Util.bufferedInput(input); //
+                    Reader<? extends T> reader = serializer.createReader(in)) {
+                Arrays.setAll(mins, i -> Double.MAX_VALUE);
+                Arrays.setAll(maxes, i -> Double.MIN_VALUE);
+                T t;
+                while ((t = reader.read()) != null) {
+                    double[] p = point.apply(t);
+                    if (p.length != dimensions) {
+                        throw new IllegalArgumentException(
+                                "point function should be of length equal to number of dimensions but was: "
+                                        + Arrays.toString(p));
                     }
-                    if (p[i] > maxes[i]) {
-                        maxes[i] = p[i];
+                    for (int i = 0; i < p.length; i++) {
+                        if (p[i] < mins[i]) {
+                            mins[i] = p[i];
+                        }
+                        if (p[i] > maxes[i]) {
+                            maxes[i] = p[i];
+                        }
                     }
                 }
             }
@@ -934,77 +2577,112 @@ public final class Index<T> {
 
         SmallHilbertCurve hc = HilbertCurve.small().bits(bits).dimensions(dimensions);
 
-        Sorter //
-                .serializer(serializer) //
-                .comparator((a, b) -> {
-                    double[] x = point.apply(a);
-                    double[] y = point.apply(b);
-                    return Integer.compare( //
-                            hilbertIndex(hc, x, mins, maxes), //
-                            hilbertIndex(hc, y, mins, maxes));
-                }) //
-                .input(input) //
-                .output(output) //
-                .maxFilesPerMerge(sortMaxFiles) //
-                .maxItemsPerFile(sortMaxItemsPerFile) //
-                .loggerStdOut() //
-                .sort();
-
-        long chunk = Math.max(1, count / numIndexEntriesApproximate);
-        TreeMap<Integer, Long> indexPositions = createIndexPositions(serializer, point, output,
-                mins, maxes, hc, chunk);
-        return new Index<T>(indexPositions, mins, maxes, bits, count, serializer, point);
-    }
-
-    private static <T> TreeMap<Integer, Long> createIndexPositions(Serializer<T> serializer,
-            Function<? super T, double[]> point, File output, final double[] mins,
-            final double[] maxes, SmallHilbertCurve hc, long chunk)
-            throws IOException, FileNotFoundException {
-        TreeMap<Integer, Long> indexPositions = new TreeMap<>();
-        try (//
-                InputStream in = Util.bufferedInput(output); //
-                Reader<T> reader = serializer.createReader(in);
-                CountingOutputStream counter = new CountingOutputStream();
-                Writer<T> writer = serializer.createWriter(counter)) {
-            T t;
-            long position = 0;
-            T lastT = null;
-            while ((t = reader.read()) != null) {
-                position = counter.count();
-                if (position % chunk == 0) {
-                    double[] p = point.apply(t);
-                    int index = hilbertIndex(hc, p, mins, maxes);
-                    if (!indexPositions.containsKey(index)) {
-                        // don't overwrite an earlier start position for the index
-                        indexPositions.put(index, position);
-                    }
-                }
-                writer.write(t);
+        // count is gathered while the input is read by the sort and index positions
+        // are recorded as the sorted output is written
+        long[] count = new long[1];
+        final IndexPositionsWriter<?> writer;
+        if (precomputeSortKeys) {
+            writer = sortWithPrecomputedKeys(input, inputStream, serializer, point, output,
+                    sortMaxFiles, sortMaxItemsPerFile, mins, maxes, hc, count,
+                    numIndexEntriesApproximate);
+        } else {
+            writer = sortUsingComparator(input, inputStream, serializer, point, output,
+                    sortMaxFiles, sortMaxItemsPerFile, mins, maxes, hc, count,
+                    numIndexEntriesApproximate);
+        }
+        return new Index<T>(writer.indexPositions(), writer.zoneMaps(), writer.chunkCounts(),
+                mins, maxes, bits, count[0], serializer, point);
+    }
 
-                // must flush otherwise position may be wrong for the next pass through the loop
-                writer.flush();
+    private static <T> IndexPositionsWriter<?> sortUsingComparator(File input,
+            InputStream inputStream, Serializer<T> serializer, Function<? super T, double[]> point,
+            File output, int sortMaxFiles, int sortMaxItemsPerFile, double[] mins,
+            double[] maxes, SmallHilbertCurve hc, long[] count, int numIndexEntriesApproximate)
+            throws IOException {
+        // positions are recorded as the final merge of the sort writes the output, the
+        // sorted output is not read again
+        AtomicReference<IndexPositionsWriter<T>> writer = new AtomicReference<>();
+        new ExternalSorter<T>(serializer, (a, b) -> {
+            double[] x = point.apply(a);
+            double[] y = point.apply(b);
+            return Long.compare( //
+                    hilbertIndex(hc, x, mins, maxes), //
+                    hilbertIndex(hc, y, mins, maxes));
+        }, sortMaxFiles, sortMaxItemsPerFile) //
+                .sort(serializer.createReader(input(input, inputStream)), n -> {
+                    count[0] = n;
+                    IndexPositionsWriter<T> w = new IndexPositionsWriter<T>(
+                            Util.bufferedOutput(output), serializer,
+                            t -> hilbertIndex(hc, point.apply(t), mins, maxes),
+                            chunk(n, numIndexEntriesApproximate), hc);
+                    writer.set(w);
+                    return w;
+                });
+        return writer.get();
+    }
 
-                lastT = t;
-            }
-            if (counter.count() % chunk != 0) {
-                // write the last record too so we know index of last position
-                double[] p = point.apply(lastT);
-                int index = hilbertIndex(hc, p, mins, maxes);
-                indexPositions.put(index, position);
-            }
+    private static <T> IndexPositionsWriter<?> sortWithPrecomputedKeys(File input,
+            InputStream inputStream, Serializer<T> serializer, Function<? super T, double[]> point,
+            File output, int sortMaxFiles, int sortMaxItemsPerFile, double[] mins,
+            double[] maxes, SmallHilbertCurve hc, long[] count, int numIndexEntriesApproximate)
+            throws IOException {
+        // decorate each record with its hilbert index as it is read, sort on the
+        // index and write just the record bytes to the output (undecorate)
+        KeyedRecord.RecordToBytes<T> recordToBytes = new KeyedRecord.RecordToBytes<T>(serializer);
+        Reader<KeyedRecord> reader = serializer.createReader(input(input, inputStream))
+                .map(t -> {
+                    try {
+                        return new KeyedRecord(hilbertIndex(hc, point.apply(t), mins, maxes),
+                                recordToBytes.toBytes(t));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        AtomicReference<IndexPositionsWriter<KeyedRecord>> writer = new AtomicReference<>();
+        new ExternalSorter<KeyedRecord>(KeyedRecord.SERIALIZER, KeyedRecord.COMPARATOR,
+                sortMaxFiles, sortMaxItemsPerFile) //
+                        .sort(reader, n -> {
+                            count[0] = n;
+                            IndexPositionsWriter<KeyedRecord> w = new IndexPositionsWriter<>(
+                                    Util.bufferedOutput(output), KeyedRecord.UNDECORATED_WRITER,
+                                    r -> r.key, chunk(n, numIndexEntriesApproximate), hc);
+                            writer.set(w);
+                            return w;
+                        });
+        return writer.get();
+    }
+
+    private static InputStream input(File input, InputStream inputStream) throws IOException {
+        if (input != null) {
+            return Util.bufferedInput(input);
+        } else {
+            return inputStream;
         }
-        return indexPositions;
     }
 
-    private static int hilbertIndex(SmallHilbertCurve hc, double[] point, double[] mins,
+    private static long chunk(long count, int numIndexEntriesApproximate) {
+        return Math.max(1, count / numIndexEntriesApproximate);
+    }
+
+    private static long hilbertIndex(SmallHilbertCurve hc, double[] point, double[] mins,
+            double[] maxes) {
+        return hc.index(curveOrdinates(hc, point, mins, maxes));
+    }
+
+    // ordinates as used to calculate the hilbert index of a record
+    private long[] curveOrdinates(double[] point) {
+        return curveOrdinates(hc, point, mins, maxes);
+    }
+
+    private static long[] curveOrdinates(SmallHilbertCurve hc, double[] point, double[] mins,
             double[] maxes) {
         long[] ordinates = new long[point.length];
         for (int i = 0; i < ordinates.length; i++) {
-            ordinates[i] = Math
-                    .round((point[i] - mins[i]) / (maxes[i] - mins[i]) * hc.maxOrdinate());
+            // clamp to the domain (only has an effect when the domain was specified)
+            double d = Math.max(mins[i], Math.min(point[i], maxes[i]));
+            ordinates[i] = Math.round((d - mins[i]) / (maxes[i] - mins[i]) * hc.maxOrdinate());
         }
-        // can do this because bits * dimensions <= 31
-        return (int) hc.index(ordinates);
+        return ordinates;
     }
 
     @Override
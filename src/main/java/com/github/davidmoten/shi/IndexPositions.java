@@ -0,0 +1,222 @@
+package com.github.davidmoten.shi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Sorted map of hilbert index to file position. Entries are held either in
+ * parallel primitive arrays or in a (typically memory-mapped) buffer of
+ * fixed-width entries. Floor and higher lookups are done by binary search.
+ */
+abstract class IndexPositions {
+
+    static IndexPositions of(long[] keys, long[] positions, int size) {
+        Preconditions.checkArgument(keys.length >= size && positions.length >= size);
+        return new ArrayIndexPositions(keys, positions, size);
+    }
+
+    /**
+     * Returns positions read in place from {@code buffer} which holds
+     * {@code size} consecutive entries each of which is a key (int or long)
+     * followed by a position (int or long).
+     * 
+     * @param buffer     entries, read from absolute offset zero
+     * @param size       number of entries
+     * @param longKeys   true if keys are longs, false if ints
+     * @param longPositions true if positions are longs, false if ints
+     * @return positions backed by the buffer
+     */
+    static IndexPositions of(ByteBuffer buffer, int size, boolean longKeys,
+            boolean longPositions) {
+        return new BufferIndexPositions(buffer, size, longKeys, longPositions);
+    }
+
+    static IndexPositions from(TreeMap<Long, Long> map) {
+        Builder b = new Builder();
+        for (Entry<Long, Long> entry : map.entrySet()) {
+            b.add(entry.getKey(), entry.getValue());
+        }
+        return b.build();
+    }
+
+    abstract int size();
+
+    abstract long key(int i);
+
+    abstract long position(int i);
+
+    final boolean isEmpty() {
+        return size() == 0;
+    }
+
+    long firstKey() {
+        return key(0);
+    }
+
+    long lastKey() {
+        return key(size() - 1);
+    }
+
+    /**
+     * Returns the index of the greatest key less than or equal to the given key or
+     * -1 if there is no such key.
+     *
+     * @param key hilbert index
+     * @return array index or -1
+     */
+    int floorIndex(long key) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key(mid) <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    /**
+     * Returns the index of the least key strictly greater than the given key or
+     * {@link #size()} if there is no such key.
+     *
+     * @param key hilbert index
+     * @return array index or size
+     */
+    final int higherIndex(long key) {
+        return floorIndex(key) + 1;
+    }
+
+    final TreeMap<Long, Long> toMap() {
+        TreeMap<Long, Long> map = new TreeMap<>();
+        for (int i = 0; i < size(); i++) {
+            map.put(key(i), position(i));
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexPositions [size=" + size() + "]";
+    }
+
+    private static final class ArrayIndexPositions extends IndexPositions {
+
+        private final long[] keys;
+        private final long[] positions;
+        private final int size;
+
+        ArrayIndexPositions(long[] keys, long[] positions, int size) {
+            this.keys = keys;
+            this.positions = positions;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long key(int i) {
+            return keys[i];
+        }
+
+        @Override
+        long position(int i) {
+            return positions[i];
+        }
+    }
+
+    private static final class BufferIndexPositions extends IndexPositions {
+
+        private final ByteBuffer buffer;
+        private final int size;
+        private final boolean longKeys;
+        private final boolean longPositions;
+        private final int keyBytes;
+        private final int entryBytes;
+
+        BufferIndexPositions(ByteBuffer buffer, int size, boolean longKeys,
+                boolean longPositions) {
+            this.keyBytes = longKeys ? Long.BYTES : Integer.BYTES;
+            this.entryBytes = keyBytes + (longPositions ? Long.BYTES : Integer.BYTES);
+            Preconditions.checkArgument((long) size * entryBytes <= buffer.capacity(),
+                    "buffer too small for " + size + " entries");
+            this.buffer = buffer;
+            this.size = size;
+            this.longKeys = longKeys;
+            this.longPositions = longPositions;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long key(int i) {
+            // absolute gets so the buffer can be shared between threads
+            int offset = i * entryBytes;
+            return longKeys ? buffer.getLong(offset) : buffer.getInt(offset);
+        }
+
+        @Override
+        long position(int i) {
+            int offset = i * entryBytes + keyBytes;
+            return longPositions ? buffer.getLong(offset) : buffer.getInt(offset);
+        }
+    }
+
+    /**
+     * Accumulates entries that arrive in non-decreasing key order. If a key is the
+     * same as the previous key the position is replaced.
+     */
+    static final class Builder {
+
+        private long[] keys = new long[16];
+        private long[] positions = new long[16];
+        private int size;
+
+        Builder add(long key, long position) {
+            if (size > 0 && keys[size - 1] == key) {
+                positions[size - 1] = position;
+                return this;
+            }
+            Preconditions.checkArgument(size == 0 || key > keys[size - 1],
+                    "keys must be added in ascending order");
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            keys[size] = key;
+            positions[size] = position;
+            size++;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long lastKey() {
+            return keys[size - 1];
+        }
+
+        IndexPositions build() {
+            return new ArrayIndexPositions(Arrays.copyOf(keys, size),
+                    Arrays.copyOf(positions, size), size);
+        }
+    }
+
+}
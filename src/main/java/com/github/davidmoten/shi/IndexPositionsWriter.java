@@ -0,0 +1,169 @@
+package com.github.davidmoten.shi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+import org.davidmoten.hilbert.SmallHilbertCurve;
+
+import com.github.davidmoten.bigsorter.OutputStreamWriterFactory;
+import com.github.davidmoten.bigsorter.Writer;
+
+/**
+ * Writes the sorted output and records the index positions (hilbert index to
+ * file position) as it goes so that the sorted output does not have to be read
+ * again to build the index. The position of a record is the number of bytes
+ * written before it so the output is only flushed when this writer is. The number of records in each chunk is recorded and
+ * if a hilbert curve is supplied the bounding box (zone map) of each chunk is
+ * recorded too.
+ *
+ * @param <T> record type
+ */
+final class IndexPositionsWriter<T> implements Writer<T> {
+
+    private final OutputStream out;
+    private final RecordWriter<? super T> recordWriter;
+    private final ToLongFunction<? super T> hilbertIndex;
+    private final long chunk;
+    private final IndexPositions.Builder indexPositions = new IndexPositions.Builder();
+    // null if zone maps are not recorded
+    private final SmallHilbertCurve hc;
+    private final ZoneMaps.Builder zoneMaps;
+    private final long[] ordinates;
+    // number of records in each chunk
+    private long[] counts = new long[16];
+    private T last;
+    // Long.MIN_VALUE if not calculated for the last record
+    private long lastIndex;
+    private long lastPosition;
+    // number of bytes written
+    private long position;
+
+    IndexPositionsWriter(OutputStream out, OutputStreamWriterFactory<T> factory,
+            ToLongFunction<? super T> hilbertIndex, long chunk) {
+        this(out, factory, hilbertIndex, chunk, null);
+    }
+
+    IndexPositionsWriter(OutputStream out, OutputStreamWriterFactory<T> factory,
+            ToLongFunction<? super T> hilbertIndex, long chunk, SmallHilbertCurve hc) {
+        this(out, new KeyedRecord.RecordToBytes<T>(factory)::writeTo, hilbertIndex, chunk, hc);
+    }
+
+    IndexPositionsWriter(OutputStream out, RecordWriter<? super T> recordWriter,
+            ToLongFunction<? super T> hilbertIndex, long chunk, SmallHilbertCurve hc) {
+        this.out = out;
+        this.recordWriter = recordWriter;
+        this.hilbertIndex = hilbertIndex;
+        this.chunk = chunk;
+        this.hc = hc;
+        this.zoneMaps = hc == null ? null : new ZoneMaps.Builder(hc.dimensions());
+        this.ordinates = hc == null ? null : new long[hc.dimensions()];
+    }
+
+    @Override
+    public void write(T t) throws IOException {
+        boolean boundary = position % chunk == 0;
+        if (boundary || zoneMaps != null) {
+            long index = hilbertIndex.applyAsLong(t);
+            // records arrive in index order, don't overwrite an earlier start position for
+            // the index
+            if (boundary && (indexPositions.isEmpty() || index != indexPositions.lastKey())) {
+                indexPositions.add(index, position);
+                startChunk();
+                if (zoneMaps != null) {
+                    zoneMaps.startChunk();
+                }
+            }
+            if (zoneMaps != null) {
+                // the ordinates of the record as used by the curve (clamped to the domain)
+                hc.point(index, ordinates);
+                zoneMaps.include(ordinates);
+            }
+            lastIndex = index;
+        } else {
+            lastIndex = Long.MIN_VALUE;
+        }
+        counts[indexPositions.size() - 1]++;
+        last = t;
+        lastPosition = position;
+        position += recordWriter.write(t, out);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (last != null) {
+            long index = lastIndex == Long.MIN_VALUE ? hilbertIndex.applyAsLong(last) : lastIndex;
+            // add the last record too so we know index of last position. If it has
+            // the same index as the last entry then that entry already covers it (and
+            // moving that entry's position would skip records with that index)
+            if (index != indexPositions.lastKey()) {
+                indexPositions.add(index, lastPosition);
+                // the last record now belongs to the new chunk
+                counts[indexPositions.size() - 2]--;
+                startChunk();
+                counts[indexPositions.size() - 1] = 1;
+                if (zoneMaps != null) {
+                    zoneMaps.startChunk();
+                    hc.point(index, ordinates);
+                    zoneMaps.include(ordinates);
+                }
+            }
+        }
+        out.close();
+    }
+
+    private void startChunk() {
+        int size = indexPositions.size();
+        if (size > counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+    }
+
+    IndexPositions indexPositions() {
+        return indexPositions.build();
+    }
+
+    /**
+     * Returns the number of records in each chunk, one per index entry.
+     *
+     * @return record count of each chunk
+     */
+    long[] chunkCounts() {
+        return Arrays.copyOf(counts, indexPositions.size());
+    }
+
+    /**
+     * Returns the bounding box of each chunk (in hilbert curve ordinates), one per
+     * index entry, or null if no hilbert curve was supplied.
+     *
+     * @return zone maps or null
+     */
+    ZoneMaps zoneMaps() {
+        return zoneMaps == null ? null : zoneMaps.build();
+    }
+
+    /**
+     * Writes the bytes of one record.
+     *
+     * @param <T> record type
+     */
+    interface RecordWriter<T> {
+
+        /**
+         * Writes the record to the stream.
+         *
+         * @param t   record
+         * @param out stream to write to
+         * @return number of bytes written
+         * @throws IOException on write error
+         */
+        int write(T t, OutputStream out) throws IOException;
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.github.davidmoten.shi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Comparator;
+
+import com.github.davidmoten.bigsorter.DataSerializer;
+import com.github.davidmoten.bigsorter.OutputStreamWriterFactory;
+import com.github.davidmoten.bigsorter.Serializer;
+import com.github.davidmoten.bigsorter.Writer;
+
+/**
+ * A record in serialized form decorated with its precomputed hilbert index so
+ * that sorting only has to compare longs.
+ */
+final class KeyedRecord {
+
+    static final Comparator<KeyedRecord> COMPARATOR = (a, b) -> Long.compare(a.key, b.key);
+
+    static final Serializer<KeyedRecord> SERIALIZER = new DataSerializer<KeyedRecord>() {
+
+        @Override
+        public KeyedRecord read(DataInputStream dis) throws IOException {
+            long key = dis.readLong();
+            byte[] bytes = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            return new KeyedRecord(key, bytes);
+        }
+
+        @Override
+        public void write(DataOutputStream dos, KeyedRecord r) throws IOException {
+            dos.writeLong(r.key);
+            dos.writeInt(r.bytes.length);
+            dos.write(r.bytes);
+        }
+    };
+
+    // writes the record bytes only (undecorates)
+    static final IndexPositionsWriter.RecordWriter<KeyedRecord> UNDECORATED_WRITER = (r,
+            out) -> {
+        out.write(r.bytes);
+        return r.bytes.length;
+    };
+
+    final long key;
+    final byte[] bytes;
+
+    KeyedRecord(long key, byte[] bytes) {
+        this.key = key;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Serializes single records to byte arrays reusing the one buffer and writer.
+     * Not thread-safe.
+     *
+     * @param <T> record type
+     */
+    static final class RecordToBytes<T> {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Writer<T> writer;
+
+        RecordToBytes(OutputStreamWriterFactory<T> factory) {
+            this.writer = factory.createWriter((OutputStream) bytes);
+        }
+
+        byte[] toBytes(T t) throws IOException {
+            serialize(t);
+            return bytes.toByteArray();
+        }
+
+        int writeTo(T t, OutputStream out) throws IOException {
+            serialize(t);
+            bytes.writeTo(out);
+            return bytes.size();
+        }
+
+        private void serialize(T t) throws IOException {
+            bytes.reset();
+            writer.write(t);
+            // the writer may buffer, flushes to the array only
+            writer.flush();
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.github.davidmoten.shi;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Limits the number of sources running at once without blocking a thread while
+ * waiting. Waiting sources are started in priority order (lowest value first)
+ * and within a priority the groups take turns so a group with many waiting
+ * sources doesn't hold up the others.
+ */
+final class Limiter {
+
+    private int limit;
+    private int inFlight;
+    private int queued;
+
+    // priority -> group (in turn order) -> waiting permits
+    private final TreeMap<Integer, Map<Object, Deque<Permit>>> waiting = new TreeMap<>();
+
+    Limiter(int limit) {
+        this.limit = limit;
+    }
+
+    synchronized int limit() {
+        return limit;
+    }
+
+    void setLimit(int limit) {
+        synchronized (this) {
+            this.limit = limit;
+        }
+        // the limit may have risen
+        drain();
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    synchronized int queued() {
+        return queued;
+    }
+
+    /**
+     * Returns the source that is subscribed to only when fewer than the limit of
+     * sources are running.
+     *
+     * @param source   source to limit
+     * @param priority lower values are started first
+     * @param group    sources of different groups with the same priority take
+     *                 turns
+     * @param <T>      item type
+     * @return limited source
+     */
+    <T> Flowable<T> limit(Flowable<T> source, int priority, Object group) {
+        return Flowable.defer(() -> {
+            Permit permit = new Permit(priority, group);
+            return acquire(permit) //
+                    .andThen(source) //
+                    .doFinally(() -> release(permit));
+        });
+    }
+
+    private Completable acquire(Permit permit) {
+        return Completable.create(emitter -> {
+            boolean ready;
+            synchronized (this) {
+                ready = inFlight < limit;
+                if (ready) {
+                    inFlight++;
+                    permit.acquired = true;
+                } else {
+                    permit.emitter = emitter;
+                    waiting.computeIfAbsent(permit.priority, k -> new LinkedHashMap<>()) //
+                            .computeIfAbsent(permit.group, k -> new ArrayDeque<>()) //
+                            .add(permit);
+                    queued++;
+                }
+            }
+            if (ready) {
+                emitter.onComplete();
+            } else {
+                emitter.setCancellable(() -> remove(permit));
+            }
+        });
+    }
+
+    private synchronized void remove(Permit permit) {
+        Map<Object, Deque<Permit>> groups = waiting.get(permit.priority);
+        if (groups == null) {
+            return;
+        }
+        Deque<Permit> permits = groups.get(permit.group);
+        if (permits != null && permits.remove(permit)) {
+            queued--;
+            if (permits.isEmpty()) {
+                groups.remove(permit.group);
+                if (groups.isEmpty()) {
+                    waiting.remove(permit.priority);
+                }
+            }
+        }
+    }
+
+    private void release(Permit permit) {
+        synchronized (this) {
+            if (!permit.acquired) {
+                return;
+            }
+            permit.acquired = false;
+            inFlight--;
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            Permit next;
+            synchronized (this) {
+                if (inFlight >= limit || queued == 0) {
+                    return;
+                }
+                next = poll();
+                inFlight++;
+                next.acquired = true;
+            }
+            // don't run the waiting source on the thread of the source that finished
+            Schedulers.io().scheduleDirect(next.emitter::onComplete);
+        }
+    }
+
+    // guarded by this
+    private Permit poll() {
+        Entry<Integer, Map<Object, Deque<Permit>>> entry = waiting.firstEntry();
+        Map<Object, Deque<Permit>> groups = entry.getValue();
+        Iterator<Entry<Object, Deque<Permit>>> it = groups.entrySet().iterator();
+        Entry<Object, Deque<Permit>> group = it.next();
+        Permit permit = group.getValue().poll();
+        it.remove();
+        if (!group.getValue().isEmpty()) {
+            // to the back of the turn order
+            groups.put(group.getKey(), group.getValue());
+        } else if (groups.isEmpty()) {
+            waiting.remove(entry.getKey());
+        }
+        queued--;
+        return permit;
+    }
+
+    private static final class Permit {
+        final int priority;
+        final Object group;
+        // guarded by the Limiter
+        boolean acquired;
+        CompletableEmitter emitter;
+
+        Permit(int priority, Object group) {
+            this.priority = priority;
+            this.group = group;
+        }
+    }
+
+}
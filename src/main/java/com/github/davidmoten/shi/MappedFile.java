@@ -0,0 +1,144 @@
+package com.github.davidmoten.shi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import com.github.davidmoten.guavamini.Preconditions;
+import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
+
+/**
+ * A local sorted data file mapped into memory. Each chunk is read from a slice
+ * of the mapping so there is no system call or copy into a read buffer per
+ * chunk, and chunks read recently by any search are served from the page
+ * cache. The file is mapped in segments of up to 1GB so files larger than 2GB
+ * can be mapped. The file should not change while mapped.
+ *
+ * <pre>
+ * try (MappedFile data = MappedFile.map(new File("sorted.bin"))) {
+ *     index.search(a, b).file(data).count().blockingGet();
+ *     ...
+ * }
+ * </pre>
+ */
+public final class MappedFile
+        implements Closeable, BiFunction<Long, Optional<Long>, InputStream> {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private final File file;
+    private final long length;
+    private final int segmentSize;
+    private volatile List<MappedByteBuffer> segments;
+
+    private MappedFile(File file, int segmentSize) throws IOException {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.length = channel.size();
+            List<MappedByteBuffer> list = new ArrayList<>();
+            for (long position = 0; position < length; position += segmentSize) {
+                // the mapping stays valid after the channel is closed
+                list.add(channel.map(MapMode.READ_ONLY, position,
+                        Math.min(segmentSize, length - position)));
+            }
+            this.segments = Collections.unmodifiableList(list);
+        }
+    }
+
+    /**
+     * Maps the file into memory.
+     *
+     * @param file sorted data file
+     * @return mapped file
+     * @throws IOException if the file can't be mapped
+     */
+    public static MappedFile map(File file) throws IOException {
+        return map(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @VisibleForTesting
+    static MappedFile map(File file, int segmentSize) throws IOException {
+        Preconditions.checkNotNull(file, "file cannot be null");
+        Preconditions.checkArgument(segmentSize > 0, "segmentSize must be greater than zero");
+        return new MappedFile(file, segmentSize);
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns a stream of the bytes from {@code start} (inclusive) to {@code end}
+     * (exclusive, or the end of the file if empty) read from the mapping.
+     */
+    @Override
+    public InputStream apply(Long start, Optional<Long> end) throws IOException {
+        List<MappedByteBuffer> list = segments;
+        if (list == null) {
+            throw new ClosedChannelException();
+        }
+        long finish = Math.min(length, end.orElse(length));
+        long position = Math.min(start, finish);
+        int index = (int) (position / segmentSize);
+        if (finish <= (long) (index + 1) * segmentSize) {
+            return new ByteBufferInputStream(slice(list, index, position, finish));
+        }
+        // the range crosses segments
+        List<InputStream> streams = new ArrayList<>();
+        while (position < finish) {
+            long segmentEnd = Math.min(finish, (long) (index + 1) * segmentSize);
+            streams.add(new ByteBufferInputStream(slice(list, index, position, segmentEnd)));
+            position = segmentEnd;
+            index++;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    private ByteBuffer slice(List<MappedByteBuffer> list, int index, long start, long end) {
+        if (start == end) {
+            return ByteBuffer.allocate(0);
+        }
+        long segmentStart = (long) index * segmentSize;
+        // each reader has its own position
+        ByteBuffer b = list.get(index).duplicate();
+        ((Buffer) b).limit((int) (end - segmentStart));
+        ((Buffer) b).position((int) (start - segmentStart));
+        return b;
+    }
+
+    /**
+     * Stops searches from using the mapping. The memory is unmapped when the
+     * mapping is garbage collected.
+     */
+    @Override
+    public void close() {
+        segments = null;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFile [file=" + file + ", length=" + length + ", segments="
+                + ((length + segmentSize - 1) / segmentSize) + "]";
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.github.davidmoten.shi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import com.github.davidmoten.guavamini.Preconditions;
+import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
+
+/**
+ * Reads the position ranges of a search from an HTTP url using requests for
+ * several ranges at once ({@code Range: bytes=a-b,c-d,...}). The server
+ * responds with a {@code multipart/byteranges} body which is split back into
+ * the individual ranges. The parts of a request are held in memory until read.
+ *
+ * <p>
+ * If the server responds with a single part then only the ranges that it
+ * covers are served from it. If the server ignores the Range header (status
+ * 200) then no more batched requests are made. Any range not served by a
+ * batched response is requested on its own.
+ */
+final class MultiRangeInputStreamFactory implements BiFunction<Long, Optional<Long>, InputStream> {
+
+    private final URL url;
+    private final BiFunction<Long, Optional<Long>, InputStream> single;
+    // keyed by start position of each position range
+    private final Map<Long, Batch> batches = new HashMap<>();
+    private final AtomicBoolean supported = new AtomicBoolean(true);
+
+    /**
+     * Constructor.
+     *
+     * @param url                 HTTP url of the sorted data file
+     * @param single              opens a stream for a single range of the url
+     * @param positionRanges      the position ranges that will be requested
+     * @param maxRangesPerRequest maximum number of ranges in one request
+     */
+    MultiRangeInputStreamFactory(URL url, BiFunction<Long, Optional<Long>, InputStream> single,
+            List<PositionRange> positionRanges, int maxRangesPerRequest) {
+        Preconditions.checkArgument(maxRangesPerRequest > 1,
+                "maxRangesPerRequest must be greater than one");
+        this.url = url;
+        this.single = single;
+        Batch batch = null;
+        for (PositionRange pr : positionRanges) {
+            if (batch == null || batch.ranges.size() == maxRangesPerRequest) {
+                batch = new Batch();
+            }
+            batch.ranges.add(new long[] { pr.floorPosition(), pr.ceilingPosition() });
+            batches.put(pr.floorPosition(), batch);
+        }
+    }
+
+    @Override
+    public InputStream apply(Long start, Optional<Long> end) throws Exception {
+        Batch batch;
+        synchronized (batches) {
+            batch = batches.remove(start);
+        }
+        if (batch != null && supported.get()) {
+            byte[] bytes = batch.get(start, end.orElse(Long.MAX_VALUE));
+            if (bytes != null) {
+                return new ByteArrayInputStream(bytes);
+            }
+        }
+        return single.apply(start, end);
+    }
+
+    private final class Batch {
+
+        final List<long[]> ranges = new ArrayList<>();
+        // null until fetched
+        private List<Part> parts;
+
+        synchronized byte[] get(long start, long end) throws IOException {
+            if (parts == null) {
+                parts = fetch(ranges);
+            }
+            for (Part part : parts) {
+                if (part.start <= start && (end == Long.MAX_VALUE ? part.isLast()
+                        : end <= part.start + part.bytes.length)) {
+                    int from = (int) (start - part.start);
+                    int to = end == Long.MAX_VALUE ? part.bytes.length
+                            : (int) (end - part.start);
+                    if (from == 0 && to == part.bytes.length) {
+                        return part.bytes;
+                    } else {
+                        byte[] b = new byte[to - from];
+                        System.arraycopy(part.bytes, from, b, 0, b.length);
+                        return b;
+                    }
+                }
+            }
+            return null;
+        }
+
+    }
+
+    private List<Part> fetch(List<long[]> ranges) throws IOException {
+        URLConnection con = url.openConnection();
+        con.addRequestProperty("Range", rangeHeaderValue(ranges));
+        if (!(con instanceof HttpURLConnection)) {
+            supported.set(false);
+            con.getInputStream().close();
+            return new ArrayList<>();
+        }
+        HttpURLConnection c = (HttpURLConnection) con;
+        int status = c.getResponseCode();
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            // whole resource returned (or an error), don't read it
+            supported.set(false);
+            c.disconnect();
+            return new ArrayList<>();
+        }
+        String contentType = c.getContentType();
+        try (InputStream in = new BufferedInputStream(c.getInputStream())) {
+            String boundary = boundary(contentType);
+            if (boundary == null) {
+                // a single part (the server may have merged the ranges)
+                return parseSinglePart(c.getHeaderField("Content-Range"), in);
+            } else {
+                return parseMultipart(in, boundary);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static String rangeHeaderValue(List<long[]> ranges) {
+        StringBuilder s = new StringBuilder("bytes=");
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            if (i > 0) {
+                s.append(",");
+            }
+            s.append(r[0]).append("-");
+            if (r[1] != Long.MAX_VALUE) {
+                // HTTP range ends are inclusive
+                s.append(r[1] - 1);
+            }
+        }
+        return s.toString();
+    }
+
+    @VisibleForTesting
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/byteranges")) {
+            return null;
+        }
+        for (String item : contentType.split(";")) {
+            item = item.trim();
+            if (item.toLowerCase().startsWith("boundary=")) {
+                String b = item.substring("boundary=".length());
+                if (b.startsWith("\"") && b.endsWith("\"") && b.length() >= 2) {
+                    b = b.substring(1, b.length() - 1);
+                }
+                return b;
+            }
+        }
+        return null;
+    }
+
+    private static List<Part> parseSinglePart(String contentRange, InputStream in)
+            throws IOException {
+        List<Part> list = new ArrayList<>();
+        if (contentRange != null) {
+            list.add(readPart(contentRange, in));
+        }
+        return list;
+    }
+
+    @VisibleForTesting
+    static List<Part> parseMultipart(InputStream in, String boundary) throws IOException {
+        String delimiter = "--" + boundary;
+        List<Part> list = new ArrayList<>();
+        String line;
+        // skip preamble
+        while ((line = readLine(in)) != null && !line.startsWith(delimiter)) {
+        }
+        while (line != null && !line.equals(delimiter + "--")) {
+            String contentRange = null;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0
+                        && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+                    contentRange = line.substring(colon + 1).trim();
+                }
+            }
+            if (line == null || contentRange == null) {
+                throw new IOException("malformed multipart/byteranges response");
+            }
+            list.add(readPart(contentRange, in));
+            // skip the line break after the part up to the next delimiter
+            while ((line = readLine(in)) != null && !line.startsWith(delimiter)) {
+            }
+        }
+        return list;
+    }
+
+    private static Part readPart(String contentRange, InputStream in) throws IOException {
+        long[] r = parseContentRange(contentRange);
+        long length = r[1] - r[0] + 1;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("part too large: " + contentRange);
+        }
+        byte[] bytes = new byte[(int) length];
+        new DataInputStream(in).readFully(bytes);
+        return new Part(r[0], bytes, r[2]);
+    }
+
+    /**
+     * Parses a Content-Range header value like {@code bytes 0-99/1234}.
+     *
+     * @param value header value
+     * @return first position, last position (inclusive) and total length (-1 if
+     *         unknown)
+     * @throws IOException if malformed
+     */
+    @VisibleForTesting
+    static long[] parseContentRange(String value) throws IOException {
+        try {
+            String s = value.trim();
+            if (!s.startsWith("bytes ")) {
+                throw new IOException("unexpected Content-Range: " + value);
+            }
+            s = s.substring("bytes ".length()).trim();
+            int slash = s.indexOf('/');
+            int dash = s.indexOf('-');
+            long first = Long.parseLong(s.substring(0, dash).trim());
+            long last = Long.parseLong(s.substring(dash + 1, slash).trim());
+            String total = s.substring(slash + 1).trim();
+            return new long[] { first, last, total.equals("*") ? -1 : Long.parseLong(total) };
+        } catch (RuntimeException e) {
+            throw new IOException("unexpected Content-Range: " + value, e);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            bytes.write(b);
+        }
+        if (b == -1 && bytes.size() == 0) {
+            return null;
+        }
+        String line = new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    @VisibleForTesting
+    static final class Part {
+        final long start;
+        final byte[] bytes;
+        // -1 if unknown
+        final long total;
+
+        Part(long start, byte[] bytes, long total) {
+            this.start = start;
+            this.bytes = bytes;
+            this.total = total;
+        }
+
+        boolean isLast() {
+            return total != -1 && start + bytes.length == total;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.github.davidmoten.shi;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Index positions of a hierarchical index. The root (the first key of every
+ * leaf page) is held in memory and leaf pages of fixed-width entries (long key,
+ * long position) are fetched on demand by range request and cached.
+ */
+final class PagedIndexPositions extends IndexPositions {
+
+    static final int ENTRY_BYTES = 2 * Long.BYTES;
+
+    private final long[] pageFirstKeys;
+    private final int entriesPerPage;
+    private final int size;
+    private final long lastKey;
+    private final long entriesStart;
+    private final BiFunction<Long, Optional<Long>, InputStream> factory;
+    private final Map<Integer, long[]> cache;
+
+    /**
+     * Constructor.
+     *
+     * @param pageFirstKeys  first key of each leaf page
+     * @param entriesPerPage number of entries in each leaf page (the last page
+     *                       may have fewer)
+     * @param size           total number of entries
+     * @param lastKey        last key in the last page
+     * @param entriesStart   file position of the first leaf page
+     * @param factory        opens a stream for a range of positions (end
+     *                       exclusive) in the index file
+     * @param maxCachedPages maximum number of leaf pages to keep in memory
+     */
+    PagedIndexPositions(long[] pageFirstKeys, int entriesPerPage, int size, long lastKey,
+            long entriesStart, BiFunction<Long, Optional<Long>, InputStream> factory,
+            int maxCachedPages) {
+        Preconditions.checkArgument(entriesPerPage > 0, "entriesPerPage must be positive");
+        Preconditions.checkArgument(maxCachedPages > 0, "maxCachedPages must be positive");
+        this.pageFirstKeys = pageFirstKeys;
+        this.entriesPerPage = entriesPerPage;
+        this.size = size;
+        this.lastKey = lastKey;
+        this.entriesStart = entriesStart;
+        this.factory = factory;
+        this.cache = new LinkedHashMap<Integer, long[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+                return size() > maxCachedPages;
+            }
+        };
+    }
+
+    static int numPages(int size, int entriesPerPage) {
+        return (size + entriesPerPage - 1) / entriesPerPage;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long key(int i) {
+        return page(i / entriesPerPage)[2 * (i % entriesPerPage)];
+    }
+
+    @Override
+    long position(int i) {
+        return page(i / entriesPerPage)[2 * (i % entriesPerPage) + 1];
+    }
+
+    @Override
+    long firstKey() {
+        return pageFirstKeys[0];
+    }
+
+    @Override
+    long lastKey() {
+        return lastKey;
+    }
+
+    @Override
+    int floorIndex(long key) {
+        // find the page using the root then search only within that page
+        int p = Arrays.binarySearch(pageFirstKeys, key);
+        if (p < 0) {
+            p = -p - 2;
+            if (p < 0) {
+                return -1;
+            }
+        }
+        long[] page = page(p);
+        int lo = 0;
+        int hi = page.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (page[2 * mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return p * entriesPerPage + hi;
+    }
+
+    private long[] page(int p) {
+        synchronized (cache) {
+            long[] page = cache.get(p);
+            if (page != null) {
+                return page;
+            }
+        }
+        // fetch outside the lock so that other pages can be served meanwhile
+        long[] page = fetch(p);
+        synchronized (cache) {
+            cache.put(p, page);
+        }
+        return page;
+    }
+
+    private long[] fetch(int p) {
+        int n = Math.min(entriesPerPage, size - p * entriesPerPage);
+        long start = entriesStart + (long) p * entriesPerPage * ENTRY_BYTES;
+        long end = start + (long) n * ENTRY_BYTES;
+        long[] page = new long[2 * n];
+        try (DataInputStream dis = new DataInputStream(open(factory, start, Optional.of(end)))) {
+            for (int i = 0; i < page.length; i++) {
+                page[i] = dis.readLong();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return page;
+    }
+
+    static InputStream open(BiFunction<Long, Optional<Long>, InputStream> factory, long start,
+            Optional<Long> end) throws IOException {
+        try {
+            return factory.apply(start, end);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
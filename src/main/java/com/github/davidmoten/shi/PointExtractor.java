@@ -0,0 +1,61 @@
+package com.github.davidmoten.shi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the point of a fixed size record straight from its serialized bytes.
+ * Set on an index with {@link Index#withPointExtractor(PointExtractor)} so that
+ * searches test each record against the search bounds without deserializing it
+ * and only the records found are deserialized. Must give the same point as the
+ * point mapper of the index.
+ *
+ * <pre>
+ * // lat and lon are floats at offsets 4 and 8, time is a long at offset 12
+ * PointExtractor extractor = PointExtractor.recordSize(35, (bb, offset, point) -> {
+ *     point[0] = bb.getFloat(offset + 4);
+ *     point[1] = bb.getFloat(offset + 8);
+ *     point[2] = bb.getLong(offset + 12);
+ * });
+ * </pre>
+ */
+public interface PointExtractor {
+
+    /**
+     * Returns the size in bytes of every record.
+     *
+     * @return record size in bytes
+     */
+    int recordSize();
+
+    /**
+     * Writes the point of the record starting at {@code offset} in the buffer to
+     * {@code point}. Must not change the position or limit of the buffer.
+     *
+     * @param bb     buffer holding the record
+     * @param offset position in the buffer of the first byte of the record
+     * @param point  array (with length equal to the number of dimensions) to
+     *               write the point to
+     */
+    void extract(ByteBuffer bb, int offset, double[] point);
+
+    static PointExtractor recordSize(int recordSize, Extractor extractor) {
+        return new PointExtractor() {
+
+            @Override
+            public int recordSize() {
+                return recordSize;
+            }
+
+            @Override
+            public void extract(ByteBuffer bb, int offset, double[] point) {
+                extractor.extract(bb, offset, point);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    interface Extractor {
+        void extract(ByteBuffer bb, int offset, double[] point);
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.github.davidmoten.shi;
+
+/**
+ * Writes the point of a record to an array supplied by the caller. Set on an
+ * index with {@link Index#withPointMapper(PointMapper)} so that searches reuse
+ * one array for the points of all the records they read rather than allocating
+ * an array per record. Must give the same point as the point mapper of the
+ * index.
+ *
+ * @param <T> record type
+ */
+@FunctionalInterface
+public interface PointMapper<T> {
+
+    /**
+     * Writes the point of the record to {@code point}.
+     *
+     * @param value record
+     * @param point array (with length equal to the number of dimensions) to write
+     *              the point to
+     */
+    void map(T value, double[] point);
+
+}
@@ -15,11 +15,28 @@ public final class PositionRange {
     // highest known position if nothing higher
     private final long ceilingPosition;
 
+    // true if all records in the position range are known to be within the query
+    // bounds
+    private final boolean withinQueryBounds;
+
+    // chunks (index entries) firstChunk inclusive to endChunk exclusive covered by
+    // this position range, -1 if not known
+    private final int firstChunk;
+    private final int endChunk;
+
     PositionRange(long maxHilbertIndex, long floorPosition, long ceilingPosition) {
+        this(maxHilbertIndex, floorPosition, ceilingPosition, false, -1, -1);
+    }
+
+    PositionRange(long maxHilbertIndex, long floorPosition, long ceilingPosition,
+            boolean withinQueryBounds, int firstChunk, int endChunk) {
         Preconditions.checkArgument(maxHilbertIndex >= 0);
         this.maxHilbertIndex = maxHilbertIndex;
         this.floorPosition = floorPosition;
         this.ceilingPosition = ceilingPosition;
+        this.withinQueryBounds = withinQueryBounds;
+        this.firstChunk = firstChunk;
+        this.endChunk = endChunk;
     }
 
     public long maxHilbertIndex() {
@@ -34,16 +51,50 @@ public final class PositionRange {
         return ceilingPosition;
     }
 
+    public boolean withinQueryBounds() {
+        return withinQueryBounds;
+    }
+
+    int firstChunk() {
+        return firstChunk;
+    }
+
+    int endChunk() {
+        return endChunk;
+    }
+
     PositionRange join(PositionRange other) {
+        boolean chunksKnown = firstChunk >= 0 && other.firstChunk >= 0;
         return new PositionRange(Math.max(maxHilbertIndex, other.maxHilbertIndex), //
                 Math.min(floorPosition, other.floorPosition), //
-                Math.max(ceilingPosition, other.ceilingPosition));
+                Math.max(ceilingPosition, other.ceilingPosition), //
+                withinQueryBounds && other.withinQueryBounds, //
+                chunksKnown ? Math.min(firstChunk, other.firstChunk) : -1, //
+                chunksKnown ? Math.max(endChunk, other.endChunk) : -1);
+    }
+
+    /**
+     * Returns a position range covering this, the other and the gap between them.
+     * Records in the gap are not known to be within the query bounds.
+     * 
+     * @param other position range following this one
+     * @return joined range
+     */
+    PositionRange joinAcrossGap(PositionRange other) {
+        PositionRange p = join(other);
+        if (other.floorPosition > ceilingPosition) {
+            return new PositionRange(p.maxHilbertIndex, p.floorPosition, p.ceilingPosition,
+                    false, p.firstChunk, p.endChunk);
+        } else {
+            return p;
+        }
     }
 
     @Override
     public String toString() {
         return "PositionRange [maxHilbertIndex=" + maxHilbertIndex + ", floorPosition=" + floorPosition
-                + ", ceilingPosition=" + ceilingPosition + "]";
+                + ", ceilingPosition=" + ceilingPosition + ", withinQueryBounds="
+                + withinQueryBounds + "]";
     }
 
 }
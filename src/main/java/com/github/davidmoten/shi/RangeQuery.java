@@ -0,0 +1,158 @@
+package com.github.davidmoten.shi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.davidmoten.hilbert.HilbertCurve;
+import org.davidmoten.hilbert.Range;
+import org.davidmoten.hilbert.Ranges;
+import org.davidmoten.hilbert.SmallHilbertCurve;
+
+/**
+ * Calculates the hilbert index ranges that cover a search box by descending the
+ * levels of the curve. The cells of a level are the cells of a curve with that
+ * many bits and the index of a cell is a prefix of the indexes of the cells
+ * it contains on finer curves, so each cell is a contiguous range of indexes.
+ * Cells inside the box are added as ranges, cells outside it are dropped and
+ * cells crossing its edge are split into the cells of the next level.
+ *
+ * <p>
+ * Unlike {@link SmallHilbertCurve#query(long[], long[], int, int)}, which
+ * visits every cell on the perimeter of the box at the full resolution of the
+ * curve, a cell crossing the edge is only split if its range spans a chunk
+ * boundary (an index entry). Splitting a cell within one chunk can't change the
+ * chunks read because a cell crossing the edge holds some of the box. So the
+ * ranges are as tight as at the full resolution of the curve while the number
+ * of cells split at a level is at most the number of index entries. As a guard
+ * the descent stops at the first level with more than {@code maxCells} cells to
+ * split and adds those cells whole.
+ */
+final class RangeQuery {
+
+    private final SmallHilbertCurve hc;
+    private final IndexPositions indexPositions;
+    private final int maxCells;
+    // curve of each level, the curve with that many bits
+    private final SmallHilbertCurve[] levels;
+
+    RangeQuery(SmallHilbertCurve hc, IndexPositions indexPositions, int maxCells) {
+        this.hc = hc;
+        this.indexPositions = indexPositions;
+        this.maxCells = maxCells;
+        this.levels = new SmallHilbertCurve[hc.bits() + 1];
+        for (int bits = 1; bits <= hc.bits(); bits++) {
+            levels[bits] = HilbertCurve.small().bits(bits).dimensions(hc.dimensions());
+        }
+    }
+
+    /**
+     * Returns the ranges of the curve that cover the box in ascending order.
+     *
+     * @param a          a corner of the box (ordinates of the curve)
+     * @param b          the opposite corner of the box
+     * @param maxRanges  maximum number of ranges (0 for unlimited), the ranges
+     *                   separated by the smallest gaps are joined
+     * @param bufferSize ranges buffer size (0 for unlimited)
+     * @return ranges
+     */
+    Ranges query(long[] a, long[] b, int maxRanges, int bufferSize) {
+        int dimensions = hc.dimensions();
+        long[] mins = new long[dimensions];
+        long[] maxes = new long[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            mins[i] = Math.min(a[i], b[i]);
+            maxes[i] = Math.max(a[i], b[i]);
+        }
+        List<Range> found = new ArrayList<>();
+        // cells of the current level to split, ascending
+        long[] cells = new long[] { 0 };
+        int size = 1;
+        int level = 0;
+        long[] ordinates = new long[dimensions];
+        while (size > 0 && size <= maxCells) {
+            SmallHilbertCurve curve = levels[level + 1];
+            int shift = hc.bits() - level - 1;
+            long[] next = new long[Math.max(16, size)];
+            int nextSize = 0;
+            for (int j = 0; j < size; j++) {
+                for (long k = 0; k < 1L << dimensions; k++) {
+                    long cell = (cells[j] << dimensions) | k;
+                    curve.point(cell, ordinates);
+                    boolean inside = true;
+                    boolean outside = false;
+                    for (int i = 0; i < dimensions; i++) {
+                        long low = ordinates[i] << shift;
+                        long high = ((ordinates[i] + 1) << shift) - 1;
+                        if (high < mins[i] || low > maxes[i]) {
+                            outside = true;
+                            break;
+                        }
+                        if (low < mins[i] || high > maxes[i]) {
+                            inside = false;
+                        }
+                    }
+                    if (outside) {
+                        continue;
+                    }
+                    Range range = range(cell, shift * dimensions);
+                    if (inside || shift == 0 || !spansChunks(range)) {
+                        found.add(range);
+                    } else {
+                        if (nextSize == next.length) {
+                            next = Arrays.copyOf(next, next.length * 2);
+                        }
+                        next[nextSize++] = cell;
+                    }
+                }
+            }
+            cells = next;
+            size = nextSize;
+            level++;
+        }
+        int shift = (hc.bits() - level) * dimensions;
+        for (int j = 0; j < size; j++) {
+            found.add(range(cells[j], shift));
+        }
+        found.sort((x, y) -> Long.compare(x.low(), y.low()));
+        return ranges(found, maxRanges, bufferSize);
+    }
+
+    private boolean spansChunks(Range range) {
+        return indexPositions.floorIndex(range.low()) != indexPositions.floorIndex(range.high());
+    }
+
+    private static Range range(long cell, int indexShift) {
+        // (cell + 1) << indexShift may overflow to Long.MIN_VALUE when using 63
+        // bits but then subtracting 1 gives Long.MAX_VALUE as required
+        return Range.create(cell << indexShift, ((cell + 1) << indexShift) - 1);
+    }
+
+    // joins adjacent ranges then limits the number of ranges as the curve query does
+    private static Ranges ranges(List<Range> list, int maxRanges, int bufferSize) {
+        Ranges ranges = new Ranges(maxRanges == 0 ? 0 : bufferSize);
+        Range r = null;
+        for (Range x : list) {
+            if (r == null) {
+                r = x;
+            } else if (r.high() + 1 == x.low()) {
+                r = Range.create(r.low(), x.high());
+            } else {
+                ranges.add(r);
+                r = x;
+            }
+        }
+        if (r != null) {
+            ranges.add(r);
+        }
+        if (maxRanges == 0 || ranges.size() <= maxRanges) {
+            return ranges;
+        }
+        Ranges limited = new Ranges(maxRanges);
+        for (Range x : ranges) {
+            limited.add(x);
+        }
+        return limited;
+    }
+
+}
@@ -0,0 +1,268 @@
+package com.github.davidmoten.shi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.kool.function.BiFunction;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A local sorted data file opened once and read by many searches at the same
+ * time. Chunks are read with positional reads of one {@link FileChannel} into
+ * pooled direct buffers so a search doesn't open and close the file or
+ * allocate a read buffer for every chunk.
+ *
+ * <pre>
+ * try (SharedFile data = SharedFile.open(new File("sorted.bin"))) {
+ *     index.search(a, b).file(data).count().blockingGet();
+ *     ...
+ * }
+ * </pre>
+ */
+public final class SharedFile
+        implements Closeable, BiFunction<Long, Optional<Long>, InputStream> {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+
+    private final File file;
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    // replaced (guarded by this) when closed by an interrupted reader
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+
+    private SharedFile(File file, int bufferSize, int maxPooledBuffers) throws IOException {
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Opens the file with read buffers of 8192 bytes.
+     *
+     * @param file sorted data file
+     * @return shared file
+     * @throws IOException if the file can't be opened
+     */
+    public static SharedFile open(File file) throws IOException {
+        return open(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens the file.
+     *
+     * @param file       sorted data file
+     * @param bufferSize size in bytes of each read buffer
+     * @return shared file
+     * @throws IOException if the file can't be opened
+     */
+    public static SharedFile open(File file, int bufferSize) throws IOException {
+        Preconditions.checkNotNull(file, "file cannot be null");
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be greater than zero");
+        return new SharedFile(file, bufferSize, DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Returns the number of direct buffers allocated so far (buffers are reused
+     * after a chunk has been read).
+     *
+     * @return number of buffers allocated
+     */
+    public int buffersAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Opens a stream of the bytes from {@code start} (inclusive) to {@code end}
+     * (exclusive, or the end of the file if empty). Closing the stream returns
+     * its buffer to the pool.
+     */
+    @Override
+    public InputStream apply(Long start, Optional<Long> end) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        return new ChannelInputStream(start, end.orElse(Long.MAX_VALUE) - start);
+    }
+
+    private int readAt(ByteBuffer buffer, long position) throws IOException {
+        while (true) {
+            FileChannel c = channel;
+            try {
+                return c.read(buffer, position);
+            } catch (ClosedByInterruptException e) {
+                // the channel is closed for every reader when a reading thread is
+                // interrupted (for example by cancelling a search) so reopen it
+                reopen(c);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    throw e;
+                }
+                // closed by an interrupt of another reader
+                reopen(c);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel c) throws IOException {
+        if (!closed && channel == c) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    private ByteBuffer borrow() {
+        ByteBuffer b = buffers.poll();
+        if (b == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            pooled.decrementAndGet();
+            return b;
+        }
+    }
+
+    private void release(ByteBuffer b) {
+        if (pooled.incrementAndGet() <= maxPooledBuffers) {
+            buffers.offer(b);
+        } else {
+            // the buffer is freed when collected
+            pooled.decrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        buffers.clear();
+        pooled.set(0);
+        channel.close();
+    }
+
+    // methods are synchronized so that a close from another thread (cancelling a
+    // search) doesn't return the buffer to the pool while a read is using it
+    private final class ChannelInputStream extends InputStream {
+
+        // guarded by this
+        private long position;
+        private long remaining;
+        // null when closed
+        private ByteBuffer buffer;
+
+        ChannelInputStream(long position, long remaining) {
+            this.position = position;
+            this.remaining = remaining;
+            this.buffer = borrow();
+            ((Buffer) buffer).limit(0);
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer == null) {
+                throw new IOException("stream closed");
+            }
+            if (remaining == 0) {
+                return false;
+            }
+            ((Buffer) buffer).clear();
+            if (remaining < buffer.capacity()) {
+                ((Buffer) buffer).limit((int) remaining);
+            }
+            int n = readAt(buffer, position);
+            ((Buffer) buffer).flip();
+            if (n <= 0) {
+                return false;
+            }
+            position += n;
+            remaining -= n;
+            return true;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (buffer == null || !buffer.hasRemaining()) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (buffer == null || !buffer.hasRemaining()) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            if (buffer == null) {
+                throw new IOException("stream closed");
+            }
+            if (n <= 0) {
+                return 0;
+            }
+            int fromBuffer = (int) Math.min(n, buffer.remaining());
+            ((Buffer) buffer).position(buffer.position() + fromBuffer);
+            long fromFile = Math.min(n - fromBuffer, remaining);
+            position += fromFile;
+            remaining -= fromFile;
+            return fromBuffer + fromFile;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (buffer != null) {
+                ByteBuffer b = buffer;
+                buffer = null;
+                release(b);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedFile [file=" + file + ", bufferSize=" + bufferSize + ", buffersAllocated="
+                + allocated.get() + "]";
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.github.davidmoten.shi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.davidmoten.kool.function.BiFunction;
+
+/**
+ * Shares a chunk request that is in flight with the searches that ask for the
+ * same chunk (or a chunk within it) of the same source at the same time, so
+ * that concurrent searches over a busy area make one request per chunk
+ * instead of one each. The bytes read so far are kept while the request is in
+ * flight so a search that joins late still gets the whole chunk.
+ *
+ * <p>
+ * Pass the same instance to the searches that should share requests:
+ *
+ * <pre>
+ * SingleFlight singleFlight = SingleFlight.create();
+ * index.search(a, b).singleFlight(singleFlight).url(url);
+ * </pre>
+ *
+ * Ranges that extend to the end of the source are not shared.
+ */
+public final class SingleFlight {
+
+    private static final int BLOCK_SIZE = 8192;
+
+    // guarded by this
+    private final Map<Object, List<Flight>> flights = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    private SingleFlight() {
+    }
+
+    public static SingleFlight create() {
+        return new SingleFlight();
+    }
+
+    /**
+     * Returns the number of chunk requests made to sources.
+     *
+     * @return number of requests
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of chunk reads that were served by a request already in
+     * flight.
+     *
+     * @return number of shared reads
+     */
+    public long joined() {
+        return joined.get();
+    }
+
+    /**
+     * Returns a factory that shares requests to the given factory with other
+     * factories for the same source.
+     *
+     * @param source  identifies the source (equal sources have equal bytes)
+     * @param factory opens ranges of the source
+     * @return sharing factory
+     */
+    BiFunction<Long, Optional<Long>, InputStream> wrap(Object source,
+            BiFunction<Long, Optional<Long>, InputStream> factory) {
+        return (start, end) -> {
+            // the shared bytes are held in an array
+            if (!end.isPresent() || end.get() - start > Integer.MAX_VALUE) {
+                requests.incrementAndGet();
+                return factory.apply(start, end);
+            }
+            Flight flight;
+            synchronized (this) {
+                List<Flight> list = flights.get(source);
+                if (list != null) {
+                    for (Flight f : list) {
+                        if (f.start <= start && end.get() <= f.end) {
+                            InputStream in = f.join(start, end.get());
+                            if (in != null) {
+                                joined.incrementAndGet();
+                                return in;
+                            }
+                        }
+                    }
+                }
+                flight = new Flight(source, start, end.get());
+                flights.computeIfAbsent(source, k -> new ArrayList<>()).add(flight);
+            }
+            requests.incrementAndGet();
+            InputStream in;
+            try {
+                in = factory.apply(start, end);
+            } catch (Throwable e) {
+                flight.fail(e);
+                throw e;
+            }
+            return flight.open(in);
+        };
+    }
+
+    Source source(Object key) {
+        return new Source(this, key);
+    }
+
+    static final class Source {
+
+        private final SingleFlight singleFlight;
+        private final Object key;
+
+        Source(SingleFlight singleFlight, Object key) {
+            this.singleFlight = singleFlight;
+            this.key = key;
+        }
+
+        BiFunction<Long, Optional<Long>, InputStream> wrap(
+                BiFunction<Long, Optional<Long>, InputStream> factory) {
+            return singleFlight.wrap(key, factory);
+        }
+    }
+
+    private synchronized void remove(Flight flight) {
+        List<Flight> list = flights.get(flight.source);
+        if (list != null && list.remove(flight) && list.isEmpty()) {
+            flights.remove(flight.source);
+        }
+    }
+
+    private final class Flight {
+
+        final Object source;
+        final long start;
+        final long end;
+
+        // guarded by this
+        private InputStream in;
+        private byte[] bytes = new byte[0];
+        private int size;
+        private boolean reading;
+        private boolean done;
+        private Throwable error;
+        // the opener counts as a consumer from the start so that consumers that
+        // join and close while the request is opening don't abandon the flight
+        private int consumers = 1;
+
+        Flight(Object source, long start, long end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        synchronized InputStream open(InputStream in) {
+            this.in = in;
+            // the source is read by the consumers so wake any that joined while
+            // the request was opening
+            notifyAll();
+            return new Consumer(this, 0, (int) (end - start));
+        }
+
+        synchronized InputStream join(long from, long to) {
+            if (done && consumers == 0 || error != null) {
+                return null;
+            }
+            consumers++;
+            return new Consumer(this, (int) (from - start), (int) (to - start));
+        }
+
+        void fail(Throwable e) {
+            synchronized (this) {
+                error = e;
+                notifyAll();
+            }
+            remove(this);
+        }
+
+        /**
+         * Copies bytes from the given position of the range, reading more from
+         * the source if needed.
+         *
+         * @return number of bytes copied or -1 if the source ended first
+         */
+        int read(int position, byte[] b, int off, int len) throws IOException {
+            while (true) {
+                InputStream source;
+                synchronized (this) {
+                    if (position < size) {
+                        int n = Math.min(len, size - position);
+                        System.arraycopy(bytes, position, b, off, n);
+                        return n;
+                    } else if (error != null) {
+                        throw new IOException(error);
+                    } else if (done) {
+                        return -1;
+                    } else if (reading || in == null) {
+                        waitForRead();
+                        continue;
+                    }
+                    reading = true;
+                    source = in;
+                }
+                readBlock(source);
+            }
+        }
+
+        private void waitForRead() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        private void readBlock(InputStream source) {
+            byte[] block = new byte[BLOCK_SIZE];
+            int n;
+            try {
+                n = source.read(block);
+            } catch (Throwable e) {
+                Index.closeSilently(source);
+                synchronized (this) {
+                    if (bytes == null) {
+                        // the last consumer closed the source while it was
+                        // being read
+                        reading = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+                fail(e);
+                return;
+            }
+            boolean finished;
+            synchronized (this) {
+                reading = false;
+                if (bytes == null) {
+                    // the last consumer closed the flight (and the source) while
+                    // the block was being read so discard it
+                    notifyAll();
+                    return;
+                } else if (n == -1) {
+                    done = true;
+                } else {
+                    if (size + n > bytes.length) {
+                        bytes = Arrays.copyOf(bytes,
+                                Math.max(size + n, Math.min(bytes.length * 2,
+                                        (int) (end - start))));
+                    }
+                    System.arraycopy(block, 0, bytes, size, n);
+                    size += n;
+                    done = size >= end - start;
+                }
+                finished = done;
+                notifyAll();
+            }
+            if (finished) {
+                Index.closeSilently(source);
+                remove(this);
+            }
+        }
+
+        void close() {
+            InputStream source;
+            synchronized (this) {
+                consumers--;
+                if (consumers > 0 || error != null) {
+                    return;
+                }
+                source = done ? null : in;
+                // nobody else reads this flight
+                done = true;
+                bytes = null;
+            }
+            Index.closeSilently(source);
+            remove(this);
+        }
+    }
+
+    private static final class Consumer extends InputStream {
+
+        private final Flight flight;
+        private final int to;
+        private int position;
+        private boolean closed;
+
+        Consumer(Flight flight, int from, int to) {
+            this.flight = flight;
+            this.position = from;
+            this.to = to;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            } else if (len == 0) {
+                return 0;
+            } else if (position >= to) {
+                return -1;
+            }
+            int n = flight.read(position, b, off, Math.min(len, to - position));
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                flight.close();
+            }
+        }
+    }
+
+}
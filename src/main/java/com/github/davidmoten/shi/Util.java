@@ -1,13 +1,20 @@
 package com.github.davidmoten.shi;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 final class Util {
-    
+
+    private static final int BUFFER_SIZE = 8192;
+
     private Util() {
         // prevent instantiation
     }
@@ -15,4 +22,102 @@ final class Util {
     static InputStream bufferedInput(File file) throws IOException {
         return new BufferedInputStream(new FileInputStream(file));
     }
+
+    static OutputStream bufferedOutput(File file) throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    /**
+     * Reads bytes until the given number have been read or the end of the stream
+     * is reached.
+     * 
+     * @param in     stream to read
+     * @param length maximum number of bytes to read
+     * @return bytes read
+     * @throws IOException on read error
+     */
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(length, BUFFER_SIZE));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while (out.size() < length
+                && (n = in.read(buffer, 0, Math.min(buffer.length, length - out.size()))) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Skips the given number of bytes of the stream.
+     * 
+     * @param in stream to read
+     * @param n  number of bytes to skip
+     * @throws EOFException if the stream ends first
+     * @throws IOException  on read error
+     */
+    static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Returns the index on a Hilbert curve of the given ordinates. Gives the same
+     * result as {@code SmallHilbertCurve.index} but overwrites the ordinates
+     * instead of copying them so that no allocation is made per call.
+     * 
+     * @param bits      bits per dimension of the curve
+     * @param ordinates ordinates of the point (overwritten)
+     * @return index on the curve
+     */
+    static long hilbertIndex(int bits, long[] ordinates) {
+        long[] x = ordinates;
+        int n = x.length;
+        long m = 1L << (bits - 1);
+        // inverse undo excess work (Skilling's transposed index)
+        for (long q = m; q > 1; q >>= 1) {
+            long p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    long t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        // gray encode
+        for (int i = 1; i < n; i++) {
+            x[i] ^= x[i - 1];
+        }
+        long t = 0;
+        for (long q = m; q > 1; q >>= 1) {
+            if ((x[n - 1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] ^= t;
+        }
+        // interleave the bits of the transposed index
+        long index = 0;
+        int bit = bits * n - 1;
+        for (long mask = m; mask != 0; mask >>>= 1) {
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & mask) != 0) {
+                    index |= 1L << bit;
+                }
+                bit--;
+            }
+        }
+        return index;
+    }
 }
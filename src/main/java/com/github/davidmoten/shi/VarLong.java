@@ -0,0 +1,51 @@
+package com.github.davidmoten.shi;
+
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of longs, 7 bits per byte with the high bit set on
+ * all but the last byte. Signed values are zigzag encoded first so that small
+ * negative values are also short.
+ */
+final class VarLong {
+
+    private VarLong() {
+        // prevent instantiation
+    }
+
+    static void writeUnsigned(DataOutput out, long x) throws IOException {
+        while ((x & ~0x7FL) != 0) {
+            out.writeByte((int) ((x & 0x7F) | 0x80));
+            x >>>= 7;
+        }
+        out.writeByte((int) x);
+    }
+
+    static long readUnsigned(ByteBuffer bb) throws IOException {
+        long x = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!bb.hasRemaining()) {
+                throw new EOFException();
+            }
+            byte b = bb.get();
+            x |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return x;
+            }
+        }
+        throw new IOException("malformed variable length long");
+    }
+
+    static void writeSigned(DataOutput out, long x) throws IOException {
+        writeUnsigned(out, (x << 1) ^ (x >> 63));
+    }
+
+    static long readSigned(ByteBuffer bb) throws IOException {
+        long x = readUnsigned(bb);
+        return (x >>> 1) ^ -(x & 1);
+    }
+
+}
@@ -11,17 +11,29 @@ public final class WithStats<T> {
     private final long timeToFirstByte;
     private final long chunksRead;
     private final long elapsedTime;
-
-    WithStats(T value, long recordsRead, long recordsFound, long bytesRead, long timeToFirstByte,
-            long chunksRead, long elapsedTime) {
-
+    private final long hedges;
+    private final long hedgesWon;
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final long cacheEvictions;
+    private final long transferTimeNanos;
+
+    WithStats(T value, Index.Counts counts) {
         this.value = value;
-        this.recordsRead = recordsRead;
-        this.recordsFound = recordsFound;
-        this.bytesRead = bytesRead;
-        this.timeToFirstByte = timeToFirstByte;
-        this.chunksRead = chunksRead;
-        this.elapsedTime = elapsedTime;
+        synchronized (counts) {
+            this.recordsRead = counts.recordsRead;
+            this.recordsFound = counts.recordsFound;
+            this.bytesRead = counts.bytesRead;
+            this.timeToFirstByte = counts.totalTimeToFirstByte;
+            this.chunksRead = counts.positionRanges;
+            this.elapsedTime = System.currentTimeMillis() - counts.startTime;
+            this.hedges = counts.hedges;
+            this.hedgesWon = counts.hedgesWon;
+            this.cacheHits = counts.cacheHits;
+            this.cacheMisses = counts.cacheMisses;
+            this.cacheEvictions = counts.cacheEvictions;
+            this.transferTimeNanos = counts.totalTransferNanos;
+        }
     }
 
     public boolean hasValue() {
@@ -64,6 +76,66 @@ public final class WithStats<T> {
         return elapsedTime;
     }
 
+    /**
+     * Returns the time spent reading the bytes of chunks after their first byte
+     * arrived, summed over the chunks. When chunks are read concurrently this
+     * can be more than the elapsed time.
+     * 
+     * @return transfer time in nanoseconds
+     */
+    public long transferTimeNanos() {
+        return transferTimeNanos;
+    }
+
+    /**
+     * Returns the number of hedge requests sent because the first byte of a chunk
+     * request was slow to arrive.
+     * 
+     * @return number of hedge requests
+     */
+    public long hedges() {
+        return hedges;
+    }
+
+    /**
+     * Returns the number of hedge requests that produced a first byte before the
+     * request they duplicated.
+     * 
+     * @return number of hedge requests used
+     */
+    public long hedgesWon() {
+        return hedgesWon;
+    }
+
+    /**
+     * Returns the number of chunks read from the {@link ChunkCache}.
+     * 
+     * @return number of cache hits
+     */
+    public long cacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of chunks that were not in the {@link ChunkCache} and
+     * were read from the source.
+     * 
+     * @return number of cache misses
+     */
+    public long cacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Returns the number of chunks evicted from the {@link ChunkCache} to make
+     * room for chunks read by this search.
+     * 
+     * @return number of cache evictions
+     */
+    public long cacheEvictions() {
+        return cacheEvictions;
+    }
+
     @Override
     public String toString() {
         DecimalFormat df = new DecimalFormat("0.0000");
@@ -86,6 +158,20 @@ public final class WithStats<T> {
         b.append(df.format(timeToFirstByteMsAverage()));
         b.append(", chunksRead=");
         b.append(chunksRead);
+        if (hedges > 0) {
+            b.append(", hedges=");
+            b.append(hedges);
+            b.append(", hedgesWon=");
+            b.append(hedgesWon);
+        }
+        if (cacheHits + cacheMisses > 0) {
+            b.append(", cacheHits=");
+            b.append(cacheHits);
+            b.append(", cacheMisses=");
+            b.append(cacheMisses);
+            b.append(", cacheEvictions=");
+            b.append(cacheEvictions);
+        }
         b.append("]");
         return b.toString();
     }
@@ -0,0 +1,154 @@
+package com.github.davidmoten.shi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Bounding box of the records in each chunk of the sorted file (the records
+ * from one index entry's position up to the next entry's position). Boxes are
+ * held as hilbert curve ordinates which are a monotonic function of the
+ * record's point so comparisons with the ordinates of a query box are
+ * conservative.
+ */
+final class ZoneMaps {
+
+    private final int dimensions;
+    private final int size;
+    // entry i, dimension d is at i * dimensions + d
+    private final long[] mins;
+    private final long[] maxes;
+
+    ZoneMaps(int dimensions, int size, long[] mins, long[] maxes) {
+        Preconditions.checkArgument(mins.length >= size * dimensions);
+        Preconditions.checkArgument(maxes.length >= size * dimensions);
+        this.dimensions = dimensions;
+        this.size = size;
+        this.mins = mins;
+        this.maxes = maxes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Returns false only if no record in chunk {@code i} can lie in the query box
+     * with ordinates {@code a} to {@code b} (inclusive).
+     *
+     * @param i chunk
+     * @param a query box lower ordinates
+     * @param b query box upper ordinates
+     * @return false if the chunk can be skipped
+     */
+    boolean intersects(int i, long[] a, long[] b) {
+        int offset = i * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            if (maxes[offset + d] < a[d] || mins[offset + d] > b[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true only if every record in chunk {@code i} lies in the query box
+     * with ordinates {@code a} to {@code b}. The comparison is strict because
+     * records sharing an ordinate with the query boundary may be on either side
+     * of it.
+     *
+     * @param i chunk
+     * @param a query box lower ordinates
+     * @param b query box upper ordinates
+     * @return true if no record in the chunk needs to be checked against the
+     *         query box
+     */
+    boolean within(int i, long[] a, long[] b) {
+        int offset = i * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            if (mins[offset + d] <= a[d] || maxes[offset + d] >= b[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < size * dimensions; i++) {
+            VarLong.writeUnsigned(out, mins[i]);
+            VarLong.writeUnsigned(out, maxes[i] - mins[i]);
+        }
+        dos.writeInt(bytes.size());
+        bytes.writeTo(dos);
+    }
+
+    private static ZoneMaps read(ByteBuffer bb, int dimensions, int size) throws IOException {
+        long[] mins = new long[size * dimensions];
+        long[] maxes = new long[size * dimensions];
+        for (int i = 0; i < mins.length; i++) {
+            mins[i] = VarLong.readUnsigned(bb);
+            maxes[i] = mins[i] + VarLong.readUnsigned(bb);
+        }
+        return new ZoneMaps(dimensions, size, mins, maxes);
+    }
+
+    static ZoneMaps read(DataInputStream dis, int dimensions, int size) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return read(ByteBuffer.wrap(bytes), dimensions, size);
+    }
+
+    /**
+     * Accumulates the boxes of chunks in order. Call {@link #startChunk()} before
+     * including the ordinates of the first record of each chunk.
+     */
+    static final class Builder {
+
+        private final int dimensions;
+        private long[] mins;
+        private long[] maxes;
+        private int size;
+
+        Builder(int dimensions) {
+            this.dimensions = dimensions;
+            this.mins = new long[16 * dimensions];
+            this.maxes = new long[16 * dimensions];
+        }
+
+        void startChunk() {
+            if ((size + 1) * dimensions > mins.length) {
+                mins = Arrays.copyOf(mins, mins.length * 2);
+                maxes = Arrays.copyOf(maxes, maxes.length * 2);
+            }
+            int offset = size * dimensions;
+            Arrays.fill(mins, offset, offset + dimensions, Long.MAX_VALUE);
+            Arrays.fill(maxes, offset, offset + dimensions, Long.MIN_VALUE);
+            size++;
+        }
+
+        void include(long[] ordinates) {
+            int offset = (size - 1) * dimensions;
+            for (int d = 0; d < dimensions; d++) {
+                mins[offset + d] = Math.min(mins[offset + d], ordinates[d]);
+                maxes[offset + d] = Math.max(maxes[offset + d], ordinates[d]);
+            }
+        }
+
+        ZoneMaps build() {
+            return new ZoneMaps(dimensions, size, Arrays.copyOf(mins, size * dimensions),
+                    Arrays.copyOf(maxes, size * dimensions));
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.github.davidmoten.shi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Fetches ranges of an HTTP url asynchronously using {@link HttpClient} (Java
+ * 11+). Requests are multiplexed over HTTP/2 connections when the server
+ * supports it and complete without a thread blocked per request, so a search
+ * with high concurrency doesn't need a thread for each chunk in flight.
+ *
+ * <pre>
+ * index.search(a, b).concurrency(128).fetcher(HttpClientRangeFetcher.create(uri))
+ * </pre>
+ */
+public final class HttpClientRangeFetcher implements AsyncRangeFetcher {
+
+    private final URI uri;
+    private final HttpClient[] clients;
+    private final Optional<Duration> timeout;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private HttpClientRangeFetcher(URI uri, HttpClient[] clients, Optional<Duration> timeout) {
+        this.uri = uri;
+        this.clients = clients;
+        this.timeout = timeout;
+    }
+
+    public static HttpClientRangeFetcher create(URI uri) {
+        return uri(uri).build();
+    }
+
+    public static Builder uri(URI uri) {
+        return new Builder(uri);
+    }
+
+    public static final class Builder {
+
+        private final URI uri;
+        private int connections = 1;
+        private Optional<Duration> timeout = Optional.empty();
+
+        Builder(URI uri) {
+            this.uri = uri;
+        }
+
+        /**
+         * Sets the number of clients (and so HTTP/2 connections) that requests are
+         * spread over. Default is 1.
+         *
+         * @param connections number of connections
+         * @return this
+         */
+        public Builder connections(int connections) {
+            Preconditions.checkArgument(connections > 0, "connections must be greater than zero");
+            this.connections = connections;
+            return this;
+        }
+
+        public Builder timeout(Duration timeout) {
+            this.timeout = Optional.of(timeout);
+            return this;
+        }
+
+        public HttpClientRangeFetcher build() {
+            HttpClient[] clients = new HttpClient[connections];
+            for (int i = 0; i < connections; i++) {
+                clients[i] = HttpClient.newBuilder() //
+                        .version(HttpClient.Version.HTTP_2) //
+                        .followRedirects(HttpClient.Redirect.NORMAL) //
+                        .build();
+            }
+            return new HttpClientRangeFetcher(uri, clients, timeout);
+        }
+    }
+
+    @Override
+    public CompletionStage<InputStream> fetch(long start, Optional<Long> end) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri) //
+                // HTTP range ends are inclusive
+                .header("Range", "bytes=" + start + "-" + end.map(x -> "" + (x - 1)).orElse(""));
+        timeout.ifPresent(b::timeout);
+        HttpClient client = clients[Math.floorMod(next.getAndIncrement(), clients.length)];
+        return client.sendAsync(b.build(), BodyHandlers.ofInputStream()) //
+                .thenCompose(response -> body(response, start, end));
+    }
+
+    private static CompletableFuture<InputStream> body(HttpResponse<InputStream> response,
+            long start, Optional<Long> end) {
+        InputStream in = response.body();
+        if (response.statusCode() == 206) {
+            return CompletableFuture.completedFuture(in);
+        } else if (response.statusCode() == 200) {
+            // the server ignored the Range header and is returning the whole resource
+            try {
+                Util.skipFully(in, start);
+            } catch (IOException e) {
+                close(in);
+                return CompletableFuture.failedFuture(e);
+            }
+            if (end.isPresent()) {
+                return CompletableFuture.completedFuture(new ClosingInputStream(
+                        new LimitingInputStream(in, end.get() - start), () -> in.close()));
+            } else {
+                return CompletableFuture.completedFuture(in);
+            }
+        } else {
+            close(in);
+            return CompletableFuture.failedFuture(new IOException(
+                    "unexpected status code " + response.statusCode() + " from " + response.uri()));
+        }
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
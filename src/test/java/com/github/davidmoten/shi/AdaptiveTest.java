@@ -0,0 +1,126 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class AdaptiveTest {
+
+    @Test
+    public void testIncreasesWhileThroughputRises() {
+        Adaptive a = Adaptive.builder().initialConcurrency(2).build();
+        long t = 0;
+        // each window completes faster than the last
+        for (int i = 0; i < 3; i++) {
+            int n = a.concurrency();
+            for (int j = 0; j < n; j++) {
+                t += 100 - 20 * i;
+                a.record(1000, 50, 100 - 20 * i, t);
+            }
+        }
+        assertEquals(5, a.concurrency());
+    }
+
+    @Test
+    public void testHoldsWhenThroughputStopsRising() {
+        Adaptive a = Adaptive.builder().initialConcurrency(2).build();
+        recordWindow(a, 1000, 50, 100);
+        assertEquals(3, a.concurrency());
+        // same throughput
+        recordWindow(a, 1000, 50, 100);
+        assertEquals(3, a.concurrency());
+    }
+
+    @Test
+    public void testBacksOffWhenLatencyGrows() {
+        Adaptive a = Adaptive.builder().initialConcurrency(8).build();
+        recordWindow(a, 1000, 50, 100);
+        assertEquals(9, a.concurrency());
+        recordWindow(a, 1000, 200, 100);
+        assertEquals(6, a.concurrency());
+    }
+
+    @Test
+    public void testDoesNotBackOffForSmallLatencies() {
+        Adaptive a = Adaptive.builder().initialConcurrency(8).build();
+        recordWindow(a, 1000, 1, 100);
+        recordWindow(a, 1000, 15, 10);
+        assertEquals(10, a.concurrency());
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        Adaptive a = Adaptive.builder().initialConcurrency(2).minConcurrency(2)
+                .maxConcurrency(3).build();
+        recordWindow(a, 1000, 50, 10);
+        recordWindow(a, 1000, 50, 5);
+        assertEquals(3, a.concurrency());
+        recordWindow(a, 1000, 5000, 5);
+        assertEquals(2, a.concurrency());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitialConcurrencyOutOfBounds() {
+        Adaptive.builder().initialConcurrency(200).build();
+    }
+
+    @Test
+    public void testLimitsSourcesInFlight() throws InterruptedException {
+        Adaptive a = Adaptive.builder().initialConcurrency(3).minConcurrency(3)
+                .maxConcurrency(3).build();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        Flowable.range(1, 20) //
+                .flatMap(i -> a.limit(Flowable.defer(() -> {
+                    max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    return Flowable.just(i).delay(20, TimeUnit.MILLISECONDS)
+                            .doOnNext(x -> running.decrementAndGet());
+                }).subscribeOn(Schedulers.io())), 20) //
+                .test() //
+                .awaitDone(10, TimeUnit.SECONDS) //
+                .assertValueCount(20) //
+                .assertComplete();
+        assertEquals(3, max.get());
+        // the last permit is released just after completion is signalled
+        long t = System.currentTimeMillis();
+        while (a.inFlight() > 0 && System.currentTimeMillis() - t < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, a.inFlight());
+    }
+
+    @Test
+    public void testCancelReleasesPermits() throws InterruptedException {
+        Adaptive a = Adaptive.builder().initialConcurrency(1).minConcurrency(1)
+                .maxConcurrency(1).build();
+        TestSubscriber<Object> ts = Flowable.range(1, 5) //
+                .flatMap(i -> a.limit(Flowable.never()), 5) //
+                .test();
+        assertEquals(1, a.inFlight());
+        ts.cancel();
+        assertEquals(0, a.inFlight());
+        a.limit(Flowable.just(1)).test().assertValue(1).assertComplete();
+        assertEquals(0, a.inFlight());
+        assertTrue(a.toString().startsWith("Adaptive [concurrency=1"));
+    }
+
+    // simulated time
+    private long time = 1000;
+
+    private void recordWindow(Adaptive a, long bytes, long ttfb, long intervalMs) {
+        int n = a.concurrency();
+        for (int j = 0; j < n; j++) {
+            time += intervalMs;
+            a.record(bytes, ttfb, intervalMs, time);
+        }
+    }
+
+}
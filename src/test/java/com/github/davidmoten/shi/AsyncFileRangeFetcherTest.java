@@ -0,0 +1,120 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class AsyncFileRangeFetcherTest {
+
+    private static final byte[] BYTES = bytes(100000);
+
+    @Test
+    public void testFetchRanges() throws Exception {
+        try (AsyncFileRangeFetcher f = AsyncFileRangeFetcher.open(file())) {
+            check(f.fetch(0, Optional.of(10L)), 0, 10);
+            check(f.fetch(50, Optional.of(70050L)), 50, 70050);
+            check(f.fetch(99990, Optional.empty()), 99990, 100000);
+            // end beyond the end of the file
+            check(f.fetch(99990, Optional.of(200000L)), 99990, 100000);
+            check(f.fetch(200000, Optional.empty()), 0, 0);
+        }
+    }
+
+    @Test
+    public void testManyFetchesAtOnce() throws Exception {
+        try (AsyncFileRangeFetcher f = AsyncFileRangeFetcher.open(file())) {
+            List<CompletableFuture<InputStream>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(f.fetch(i * 1000, Optional.of(i * 1000 + 1000L))
+                        .toCompletableFuture());
+            }
+            for (int i = 0; i < 100; i++) {
+                check(futures.get(i), i * 1000, i * 1000 + 1000);
+            }
+        }
+    }
+
+    @Test
+    public void testThreadsAreBounded() throws Exception {
+        Set<Thread> before = readerThreads();
+        try (AsyncFileRangeFetcher f = AsyncFileRangeFetcher.open(file(), 2)) {
+            List<CompletableFuture<InputStream>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(f.fetch(i * 1000, Optional.of(i * 1000 + 1000L))
+                        .toCompletableFuture());
+            }
+            for (int i = 0; i < 100; i++) {
+                check(futures.get(i), i * 1000, i * 1000 + 1000);
+            }
+            // the threads of a fixed pool stay alive until it is shut down
+            Set<Thread> created = readerThreads();
+            created.removeAll(before);
+            assertTrue(!created.isEmpty());
+            assertTrue(created.size() <= 2);
+        }
+    }
+
+    @Test
+    public void testFetchAfterCloseFails() throws Exception {
+        AsyncFileRangeFetcher f = AsyncFileRangeFetcher.open(file());
+        f.close();
+        try {
+            f.fetch(0, Optional.of(10L)).toCompletableFuture().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+    }
+
+    private static Set<Thread> readerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith(AsyncFileRangeFetcher.THREAD_NAME_PREFIX))
+                .collect(Collectors.toSet());
+    }
+
+    private static File file() throws IOException {
+        File file = new File("target/async-file");
+        Files.write(file.toPath(), BYTES);
+        return file;
+    }
+
+    private static void check(CompletionStage<InputStream> stage, int from, int to)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[300];
+        int n;
+        try (InputStream in = stage.toCompletableFuture().get()) {
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        assertArrayEquals(Arrays.copyOfRange(BYTES, from, to), out.toByteArray());
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
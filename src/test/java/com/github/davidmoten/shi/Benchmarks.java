@@ -0,0 +1,248 @@
+package com.github.davidmoten.shi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.github.davidmoten.bigsorter.Serializer;
+
+@State(Scope.Benchmark)
+public class Benchmarks {
+
+    private static final File INPUT = new File(
+            "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400");
+    private static final File OUTPUT = new File("target/benchmark-output");
+    private static final Serializer<byte[]> SERIALIZER = Serializer.fixedSizeRecord(35);
+    private static final Function<byte[], double[]> POINT_FN = b -> {
+        Record rec = Record.read(b);
+        return new double[] { rec.lat, rec.lon, rec.time };
+    };
+
+    private static final PointExtractor POINT_EXTRACTOR = PointExtractor.recordSize(35,
+            (bb, offset, point) -> {
+                point[0] = bb.getFloat(offset + 4);
+                point[1] = bb.getFloat(offset + 8);
+                point[2] = bb.getLong(offset + 12);
+            });
+
+    private static final PointMapper<byte[]> POINT_MAPPER = (b, point) -> {
+        ByteBuffer bb = ByteBuffer.wrap(b);
+        point[0] = bb.getFloat(4);
+        point[1] = bb.getFloat(8);
+        point[2] = bb.getLong(12);
+    };
+
+    // Sydney region for the whole day
+    private static final Bounds SYDNEY = Bounds.create(
+            new double[] { -33.68, 150.86, 1557878400000L },
+            new double[] { -34.06, 151.34, 1557964800000L });
+
+    // south east Australia for the whole day
+    private static final Bounds AUSTRALIA = Bounds.create(
+            new double[] { -45, 110, 1557878400000L },
+            new double[] { -10, 155, 1557964800000L });
+
+    @State(Scope.Benchmark)
+    public static class SearchState {
+
+        static final PositionRange ALL = new PositionRange(Long.MAX_VALUE, 0, Long.MAX_VALUE);
+
+        @Param({ "10", "16", "20" })
+        public int bits;
+
+        Index<byte[]> index;
+
+        Index<byte[]> indexWithPointExtractor;
+
+        Index<byte[]> indexWithPointMapper;
+
+        File output;
+
+        SharedFile shared;
+
+        MappedFile mapped;
+
+        @Setup
+        public void setup() throws IOException {
+            output = new File("target/benchmark-output-" + bits);
+            index = Index //
+                    .serializer(SERIALIZER) //
+                    .pointMapper(POINT_FN) //
+                    .input(INPUT) //
+                    .output(output) //
+                    .bits(bits) //
+                    .dimensions(3) //
+                    .numIndexEntries(1000) //
+                    .createIndex();
+            indexWithPointExtractor = index.withPointExtractor(POINT_EXTRACTOR);
+            indexWithPointMapper = index.withPointMapper(POINT_MAPPER);
+            shared = SharedFile.open(output);
+            mapped = MappedFile.map(output);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            shared.close();
+            mapped.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class IndexLoadState {
+
+        @Param({ "10000", "1000000" })
+        public int numEntries;
+
+        @Param({ "false", "true" })
+        public boolean compressed;
+
+        File file;
+
+        @Setup
+        public void setup() {
+            // entries spaced like a real index: increasing keys and positions of
+            // roughly equal sized chunks
+            Random random = new Random(1);
+            IndexPositions.Builder b = new IndexPositions.Builder();
+            long key = 0;
+            long position = 0;
+            for (int i = 0; i < numEntries; i++) {
+                key += 1 + random.nextInt(1000);
+                b.add(key, position);
+                position += 35 * (1 + random.nextInt(200));
+            }
+            Index<byte[]> index = new Index<byte[]>(b.build(), new double[] { 0, 0, 0 },
+                    new double[] { 1, 1, 1 }, 10, position / 35, SERIALIZER, POINT_FN);
+            file = new File("target/benchmark-index-" + numEntries + "-" + compressed);
+            if (compressed) {
+                index.writeCompressed(file);
+            } else {
+                index.write(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Index<byte[]> loadIndex(IndexLoadState state) {
+        return Index.serializer(SERIALIZER).pointMapper(POINT_FN).read(state.file);
+    }
+
+    @Benchmark
+    public long searchSydney(SearchState state) {
+        return state.index.search(SYDNEY).file(state.output).count().blockingGet();
+    }
+
+    // calculates the ranges of a search only, with more than 31 bits in total
+    // (16 and 20 bits) the ranges are refined on the full curve
+    @Benchmark
+    public long rangesSydney(SearchState state) {
+        return state.index.ranges(SYDNEY, 0, 0).size();
+    }
+
+    @Benchmark
+    public long rangesAustralia(SearchState state) {
+        return state.index.ranges(AUSTRALIA, 0, 0).size();
+    }
+
+    // reports records read and found per iteration so that the read amplification
+    // (recordsRead / recordsFound) can be compared across bits
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ReadCounts {
+
+        public long recordsRead;
+
+        public long recordsFound;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            recordsRead = 0;
+            recordsFound = 0;
+        }
+    }
+
+    @Benchmark
+    public long searchSydneyWithStats(SearchState state, ReadCounts counts) {
+        WithStats<byte[]> stats = state.index.search(SYDNEY).withStats().file(state.output)
+                .lastOrError().blockingGet();
+        counts.recordsRead += stats.recordsRead();
+        counts.recordsFound += stats.recordsFound();
+        return stats.recordsFound();
+    }
+
+    @Benchmark
+    public long searchSydneyPointExtractor(SearchState state) {
+        return state.indexWithPointExtractor.search(SYDNEY).file(state.output).count()
+                .blockingGet();
+    }
+
+    @Benchmark
+    public long searchSydneyPointMapper(SearchState state) {
+        return state.indexWithPointMapper.search(SYDNEY).file(state.output).count().blockingGet();
+    }
+
+    // reads every record of the sorted file and tests it against the Sydney bounds
+    // to measure the per record cost of a search (run with -prof gc for allocations)
+    @Benchmark
+    public long scanRecords(SearchState state) throws IOException {
+        return state.index.search(SYDNEY, state.output, SearchState.ALL).count().blockingGet();
+    }
+
+    @Benchmark
+    public long scanRecordsPointMapper(SearchState state) throws IOException {
+        return state.indexWithPointMapper.search(SYDNEY, state.output, SearchState.ALL).count()
+                .blockingGet();
+    }
+
+    @Benchmark
+    public long scanRecordsPointExtractor(SearchState state) throws IOException {
+        return state.indexWithPointExtractor.search(SYDNEY, state.output, SearchState.ALL)
+                .count().blockingGet();
+    }
+
+    @Benchmark
+    public long searchSydneySharedFile(SearchState state) {
+        return state.index.search(SYDNEY).file(state.shared).count().blockingGet();
+    }
+
+    @Benchmark
+    public long searchSydneyMappedFile(SearchState state) {
+        return state.index.search(SYDNEY).file(state.mapped).count().blockingGet();
+    }
+
+    @Benchmark
+    public Index<byte[]> createIndexUsingComparator() {
+        return createIndex(false);
+    }
+
+    @Benchmark
+    public Index<byte[]> createIndexUsingPrecomputedSortKeys() {
+        return createIndex(true);
+    }
+
+    private static Index<byte[]> createIndex(boolean precomputeSortKeys) {
+        return Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(INPUT) //
+                .output(OUTPUT) //
+                .bits(10) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .sortMaxItemsPerFile(10000) //
+                .precomputeSortKeys(precomputeSortKeys) //
+                .createIndex();
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.kool.function.BiFunction;
+import org.junit.Test;
+
+public class ChunkCacheTest {
+
+    private static final byte[] BYTES = bytes(1000);
+
+    @Test
+    public void testHitAfterMiss() throws Exception {
+        for (boolean offHeap : new boolean[] { false, true }) {
+            AtomicInteger calls = new AtomicInteger();
+            ChunkCache cache = ChunkCache.maxBytes(1000).offHeap(offHeap).build();
+            BiFunction<Long, Optional<Long>, InputStream> f = cache.wrap("a", factory(calls),
+                    null);
+            check(f.apply(10L, Optional.of(110L)), 10, 110);
+            check(f.apply(10L, Optional.of(110L)), 10, 110);
+            // concurrent readers of the cached chunk don't interfere
+            InputStream a = f.apply(10L, Optional.of(110L));
+            InputStream b = f.apply(10L, Optional.of(110L));
+            assertEquals(10, a.read());
+            check(b, 10, 110);
+            assertEquals(11, a.read());
+            assertEquals(1, calls.get());
+            assertEquals(3, cache.hits());
+            assertEquals(1, cache.misses());
+            assertEquals(100, cache.bytes());
+            assertEquals(1, cache.chunks());
+        }
+    }
+
+    @Test
+    public void testKeyedBySourceAndRange() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ChunkCache cache = ChunkCache.create(1000);
+        check(cache.wrap("a", factory(calls), null).apply(0L, Optional.of(100L)), 0, 100);
+        check(cache.wrap("b", factory(calls), null).apply(0L, Optional.of(100L)), 0, 100);
+        check(cache.wrap("a", factory(calls), null).apply(0L, Optional.of(50L)), 0, 50);
+        check(cache.wrap("a", factory(calls), null).apply(0L, Optional.of(100L)), 0, 100);
+        assertEquals(3, calls.get());
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedWithinBudget() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ChunkCache cache = ChunkCache.create(250);
+        Index.Counts counts = new Index.Counts();
+        BiFunction<Long, Optional<Long>, InputStream> f = cache.wrap("a", factory(calls),
+                counts);
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        check(f.apply(100L, Optional.of(200L)), 100, 200);
+        // use the first so the second is least recently used
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        check(f.apply(200L, Optional.of(300L)), 200, 300);
+        assertEquals(1, cache.evictions());
+        assertEquals(200, cache.bytes());
+        assertEquals(3, calls.get());
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        assertEquals(3, calls.get());
+        check(f.apply(100L, Optional.of(200L)), 100, 200);
+        assertEquals(4, calls.get());
+        assertEquals(2, counts.cacheHits);
+        assertEquals(4, counts.cacheMisses);
+        assertEquals(2, counts.cacheEvictions);
+        assertTrue(cache.toString().contains("hits=2, misses=4, evictions=2"));
+    }
+
+    @Test
+    public void testChunksLargerThanBudgetOrUnboundedAreNotCached() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ChunkCache cache = ChunkCache.create(100);
+        BiFunction<Long, Optional<Long>, InputStream> f = cache.wrap("a", factory(calls),
+                null);
+        check(f.apply(0L, Optional.of(200L)), 0, 200);
+        check(f.apply(0L, Optional.of(200L)), 0, 200);
+        check(f.apply(900L, Optional.empty()), 900, 1000);
+        check(f.apply(900L, Optional.empty()), 900, 1000);
+        assertEquals(4, calls.get());
+        assertEquals(0, cache.chunks());
+        assertEquals(0, cache.hits() + cache.misses());
+    }
+
+    @Test
+    public void testChunksLargerThanAnArrayAreNotCached() throws Exception {
+        ChunkCache cache = ChunkCache.create(10_000_000_000L);
+        InputStream source = new ByteArrayInputStream(BYTES);
+        BiFunction<Long, Optional<Long>, InputStream> f = cache.wrap("a",
+                (start, end) -> source, null);
+        assertTrue(source == f.apply(0L, Optional.of(3_000_000_000L)));
+        assertEquals(0, cache.chunks());
+        assertEquals(0, cache.hits() + cache.misses());
+    }
+
+    @Test
+    public void testWholeChunkCachedWhenReaderStopsEarly() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ChunkCache cache = ChunkCache.create(1000);
+        BiFunction<Long, Optional<Long>, InputStream> f = cache.wrap("a", factory(calls),
+                null);
+        try (InputStream in = f.apply(0L, Optional.of(100L))) {
+            assertEquals(0, in.read());
+        }
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        ChunkCache cache = ChunkCache.create(1000);
+        check(cache.wrap("a", factory(new AtomicInteger()), null).apply(0L, Optional.of(100L)),
+                0, 100);
+        cache.clear();
+        assertEquals(0, cache.bytes());
+        assertEquals(0, cache.chunks());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBytesMustBePositive() {
+        ChunkCache.create(0);
+    }
+
+    private static BiFunction<Long, Optional<Long>, InputStream> factory(AtomicInteger calls) {
+        return (start, end) -> {
+            calls.incrementAndGet();
+            int to = end.orElse((long) BYTES.length).intValue();
+            return new ByteArrayInputStream(BYTES, start.intValue(), to - start.intValue());
+        };
+    }
+
+    private static void check(InputStream in, int from, int to) throws IOException {
+        byte[] b = new byte[to - from + 10];
+        int n = 0;
+        int k;
+        while ((k = in.read(b, n, b.length - n)) > 0) {
+            n += k;
+        }
+        assertArrayEquals(Arrays.copyOfRange(BYTES, from, to), Arrays.copyOf(b, n));
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChunkedRangeInputStreamTest {
+
+    @Test
+    public void testRequestsDoublingChunksUntilEnd() throws IOException {
+        byte[] bytes = new byte[10];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        List<String> requests = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ChunkedRangeInputStream in = new ChunkedRangeInputStream((start, end) -> {
+            requests.add(start + "-" + end.get());
+            int to = (int) Math.min(bytes.length, end.get());
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        }, 1, 2)) {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        }
+        assertArrayEquals(Arrays.copyOfRange(bytes, 1, 10), out.toByteArray());
+        assertEquals(Arrays.asList("1-3", "3-7", "7-15"), requests);
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.kool.function.BiFunction;
+import org.junit.Test;
+
+public class DiskCacheTest {
+
+    private static final byte[] BYTES = bytes(1000);
+
+    @Test
+    public void testHitAfterMiss() throws Exception {
+        DiskCache cache = cache("hit", 1000);
+        AtomicInteger calls = new AtomicInteger();
+        BiFunction<Long, Optional<Long>, InputStream> f = cache
+                .source(url(), Optional.of("1")).wrap(factory(calls));
+        check(f.apply(10L, Optional.of(110L)), 10, 110);
+        check(f.apply(10L, Optional.of(110L)), 10, 110);
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(100, cache.bytes());
+        assertEquals(1, cache.chunks());
+        // the whole chunk is cached even if the reader stops early
+        try (InputStream in = f.apply(200L, Optional.of(300L))) {
+            assertEquals(200 % 256, in.read());
+        }
+        check(f.apply(200L, Optional.of(300L)), 200, 300);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testNewVersionIsNotReadFromCache() throws Exception {
+        DiskCache cache = cache("version", 1000);
+        AtomicInteger calls = new AtomicInteger();
+        check(cache.source(url(), Optional.of("1")).wrap(factory(calls)).apply(0L,
+                Optional.of(100L)), 0, 100);
+        check(cache.source(url(), Optional.of("2")).wrap(factory(calls)).apply(0L,
+                Optional.of(100L)), 0, 100);
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void testChunksSurviveRestart() throws Exception {
+        DiskCache cache = cache("restart", 1000);
+        AtomicInteger calls = new AtomicInteger();
+        check(cache.source(url(), Optional.of("1")).wrap(factory(calls)).apply(0L,
+                Optional.of(100L)), 0, 100);
+        DiskCache cache2 = DiskCache.directory(cache.directory()).maxBytes(1000).build();
+        assertEquals(100, cache2.bytes());
+        check(cache2.source(url(), Optional.of("1")).wrap(factory(calls)).apply(0L,
+                Optional.of(100L)), 0, 100);
+        assertEquals(1, calls.get());
+        assertEquals(1, cache2.hits());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedWithinBudget() throws Exception {
+        DiskCache cache = cache("evict", 250);
+        AtomicInteger calls = new AtomicInteger();
+        BiFunction<Long, Optional<Long>, InputStream> f = cache
+                .source(url(), Optional.of("1")).wrap(factory(calls));
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        check(f.apply(100L, Optional.of(200L)), 100, 200);
+        // use the first so the second is least recently used
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        check(f.apply(200L, Optional.of(300L)), 200, 300);
+        assertEquals(1, cache.evictions());
+        assertEquals(200, cache.bytes());
+        assertEquals(2, cache.directory().listFiles().length);
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        assertEquals(3, calls.get());
+        check(f.apply(100L, Optional.of(200L)), 100, 200);
+        assertEquals(4, calls.get());
+        assertTrue(cache.toString().contains("evictions=2"));
+    }
+
+    @Test
+    public void testChunksLargerThanBudgetOrUnboundedAreNotCached() throws Exception {
+        DiskCache cache = cache("large", 100);
+        AtomicInteger calls = new AtomicInteger();
+        BiFunction<Long, Optional<Long>, InputStream> f = cache
+                .source(url(), Optional.of("1")).wrap(factory(calls));
+        check(f.apply(0L, Optional.of(200L)), 0, 200);
+        check(f.apply(900L, Optional.empty()), 900, 1000);
+        check(f.apply(900L, Optional.empty()), 900, 1000);
+        assertEquals(3, calls.get());
+        assertEquals(0, cache.chunks());
+    }
+
+    @Test
+    public void testUnfinishedWritesAreDeletedOnLoad() throws Exception {
+        DiskCache cache = cache("temp", 1000);
+        File temp = File.createTempFile(DiskCache.fileName("http://a", "1", 0, 100), ".tmp",
+                cache.directory());
+        DiskCache.directory(cache.directory()).build();
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void testFilesNotWrittenByCacheAreLeftAlone() throws Exception {
+        DiskCache cache = cache("foreign", 1000);
+        File other = new File(cache.directory(), "other.bin");
+        File otherTemp = new File(cache.directory(), "other.tmp");
+        Files.write(other.toPath(), new byte[2000]);
+        assertTrue(otherTemp.createNewFile());
+        DiskCache c = DiskCache.directory(cache.directory()).maxBytes(100).build();
+        assertEquals(0, c.chunks());
+        assertEquals(0, c.bytes());
+        check(c.source(url(), Optional.of("1")).wrap(factory(new AtomicInteger())).apply(0L,
+                Optional.of(100L)), 0, 100);
+        assertEquals(1, c.chunks());
+        assertTrue(other.exists());
+        assertTrue(otherTemp.exists());
+    }
+
+    @Test
+    public void testChunkThatCannotBeDeletedIsStillCounted() throws Exception {
+        DiskCache cache = cache("undeletable", 150);
+        BiFunction<Long, Optional<Long>, InputStream> f = cache
+                .source(url(), Optional.of("1")).wrap(factory(new AtomicInteger()));
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        // a non-empty directory can't be deleted
+        File chunk = new File(cache.directory(),
+                DiskCache.fileName(url().toExternalForm(), "1", 0, 100));
+        assertTrue(chunk.delete());
+        assertTrue(new File(chunk, "x").mkdirs());
+        check(f.apply(100L, Optional.of(200L)), 100, 200);
+        assertEquals(200, cache.bytes());
+        assertEquals(2, cache.chunks());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void testVersionFromServerETag() throws Exception {
+        DiskCache cache = cache("etag", 1000);
+        try (RangeServer server = new RangeServer(BYTES, RangeServer.Mode.SINGLE_PART)) {
+            AtomicInteger calls = new AtomicInteger();
+            // version is read again on every range
+            DiskCache c = DiskCache.directory(cache.directory()).validateAfterMs(0).build();
+            BiFunction<Long, Optional<Long>, InputStream> f = c
+                    .source(server.url(), Optional.empty()).wrap(factory(calls));
+            check(f.apply(0L, Optional.of(100L)), 0, 100);
+            check(f.apply(0L, Optional.of(100L)), 0, 100);
+            assertEquals(1, calls.get());
+            server.etag("\"2\"");
+            check(f.apply(0L, Optional.of(100L)), 0, 100);
+            assertEquals(2, calls.get());
+        }
+    }
+
+    @Test
+    public void testFileName() {
+        String a = DiskCache.fileName("http://a", "1", 0, 100);
+        assertEquals(64, a.length());
+        assertEquals(a, DiskCache.fileName("http://a", "1", 0, 100));
+        assertNotEquals(a, DiskCache.fileName("http://a", "2", 0, 100));
+        assertNotEquals(a, DiskCache.fileName("http://a", "1", 0, 101));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBytesMustBePositive() {
+        DiskCache.directory(new File("target")).maxBytes(0);
+    }
+
+    private static DiskCache cache(String name, long maxBytes) {
+        File directory = new File("target/disk-cache-" + name);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                File[] children = f.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        child.delete();
+                    }
+                }
+                f.delete();
+            }
+        }
+        return DiskCache.directory(directory).maxBytes(maxBytes).build();
+    }
+
+    private static URL url() throws IOException {
+        return new URL("http://localhost/data");
+    }
+
+    private static BiFunction<Long, Optional<Long>, InputStream> factory(AtomicInteger calls) {
+        return (start, end) -> {
+            calls.incrementAndGet();
+            int to = end.orElse((long) BYTES.length).intValue();
+            return new ByteArrayInputStream(BYTES, start.intValue(), to - start.intValue());
+        };
+    }
+
+    private static void check(InputStream in, int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int n;
+        try {
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(BYTES, from, to), out.toByteArray());
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
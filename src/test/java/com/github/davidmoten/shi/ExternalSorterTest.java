@@ -0,0 +1,98 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.github.davidmoten.bigsorter.Serializer;
+
+public class ExternalSorterTest {
+
+    private static final Serializer<String> SERIALIZER = Serializer.linesUtf8();
+
+    @Test
+    public void testSortInMemory() throws IOException {
+        check(1000, 10, 1000);
+    }
+
+    @Test
+    public void testSortWithOneMerge() throws IOException {
+        check(1000, 100, 30);
+    }
+
+    @Test
+    public void testSortWithIntermediateMerges() throws IOException {
+        check(1000, 2, 7);
+    }
+
+    @Test
+    public void testSortEmpty() throws IOException {
+        check(0, 2, 7);
+    }
+
+    @Test
+    public void testEqualRecordsKeepInputOrder() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add((i % 3) + "," + i);
+        }
+        // compare on the first field only
+        List<String> sorted = sort(lines, Comparator.comparing(x -> x.split(",")[0]), 3, 7);
+        assertEquals(
+                lines.stream().sorted(Comparator.comparing(x -> x.split(",")[0]))
+                        .collect(Collectors.toList()),
+                sorted);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxFilesPerMergeOfOneFails() {
+        new ExternalSorter<String>(SERIALIZER, Comparator.naturalOrder(), 1, 10);
+    }
+
+    private static void check(int n, int maxFilesPerMerge, int maxItemsPerFile)
+            throws IOException {
+        Random random = new Random(1);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            lines.add(String.valueOf(random.nextInt(100000)));
+        }
+        List<String> sorted = sort(lines, Comparator.naturalOrder(), maxFilesPerMerge,
+                maxItemsPerFile);
+        assertEquals(lines.stream().sorted().collect(Collectors.toList()), sorted);
+    }
+
+    private static List<String> sort(List<String> lines, Comparator<String> comparator,
+            int maxFilesPerMerge, int maxItemsPerFile) throws IOException {
+        byte[] input = lines.stream().map(x -> x + "\n").collect(Collectors.joining())
+                .getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long[] count = new long[1];
+        long n = new ExternalSorter<String>(SERIALIZER, comparator, maxFilesPerMerge,
+                maxItemsPerFile).sort(SERIALIZER.createReader(new ByteArrayInputStream(input)),
+                        c -> {
+                            count[0] = c;
+                            return SERIALIZER.createWriter(bytes);
+                        });
+        assertEquals(lines.size(), n);
+        assertEquals(lines.size(), count[0]);
+        String s = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        List<String> list = new ArrayList<>();
+        for (String line : s.split("\n")) {
+            if (!line.isEmpty()) {
+                list.add(line);
+            }
+        }
+        return list;
+    }
+
+}
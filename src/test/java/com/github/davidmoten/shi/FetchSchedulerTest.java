@@ -0,0 +1,152 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.davidmoten.shi.FetchScheduler.Lane;
+import com.github.davidmoten.shi.FetchScheduler.Priority;
+
+import io.reactivex.Flowable;
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class FetchSchedulerTest {
+
+    @Test
+    public void testCapsRequestsInFlightAcrossSearches() throws InterruptedException {
+        FetchScheduler scheduler = FetchScheduler.create(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        // four searches each with concurrency 4
+        Flowable.range(1, 4) //
+                .flatMap(search -> {
+                    Lane lane = scheduler.lane("a", Priority.NORMAL);
+                    return Flowable.range(1, 10) //
+                            .flatMap(i -> lane.schedule(Flowable.defer(() -> {
+                                max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                                return Flowable.just(i).delay(5, TimeUnit.MILLISECONDS)
+                                        .doOnNext(x -> running.decrementAndGet());
+                            }).subscribeOn(Schedulers.io())), 4);
+                }) //
+                .test() //
+                .awaitDone(10, TimeUnit.SECONDS) //
+                .assertValueCount(40) //
+                .assertComplete();
+        assertEquals(3, max.get());
+        waitUntilNoneInFlight(scheduler, "a");
+        assertEquals(0, scheduler.queued("a"));
+    }
+
+    @Test
+    public void testEndpointsAreCappedSeparately() {
+        FetchScheduler scheduler = FetchScheduler.create(1);
+        TestSubscriber<Object> a = scheduler.lane("a", Priority.NORMAL)
+                .schedule(Flowable.never()).test();
+        TestSubscriber<Object> b = scheduler.lane("b", Priority.NORMAL)
+                .schedule(Flowable.never()).test();
+        assertEquals(1, scheduler.inFlight("a"));
+        assertEquals(1, scheduler.inFlight("b"));
+        assertEquals(0, scheduler.queued("a"));
+        assertEquals(0, scheduler.inFlight("c"));
+        a.cancel();
+        b.cancel();
+        assertEquals(0, scheduler.inFlight("a"));
+        assertEquals(0, scheduler.inFlight("b"));
+    }
+
+    @Test
+    public void testHigherPriorityStartsFirst() {
+        FetchScheduler scheduler = FetchScheduler.create(1);
+        PublishProcessor<String> blocker = PublishProcessor.create();
+        List<String> started = new CopyOnWriteArrayList<>();
+        Lane low = scheduler.lane("a", Priority.LOW);
+        Lane high = scheduler.lane("a", Priority.HIGH);
+        TestSubscriber<String> ts = Flowable.mergeDelayError(Arrays.asList( //
+                low.schedule(blocker), //
+                low.schedule(request("low", started)), //
+                high.schedule(request("high", started)))) //
+                .test();
+        assertEquals(2, scheduler.queued("a"));
+        blocker.onComplete();
+        ts.awaitDone(5, TimeUnit.SECONDS).assertValueCount(2).assertComplete();
+        assertEquals(Arrays.asList("high", "low"), started);
+    }
+
+    @Test
+    public void testSearchesOfSamePriorityTakeTurns() {
+        FetchScheduler scheduler = FetchScheduler.create(1);
+        PublishProcessor<String> blocker = PublishProcessor.create();
+        List<String> started = new CopyOnWriteArrayList<>();
+        Lane a = scheduler.lane("x", Priority.NORMAL);
+        Lane b = scheduler.lane("x", Priority.NORMAL);
+        TestSubscriber<String> ts = Flowable.mergeDelayError(Arrays.asList( //
+                a.schedule(blocker), //
+                a.schedule(request("a1", started)), //
+                a.schedule(request("a2", started)), //
+                a.schedule(request("a3", started)), //
+                b.schedule(request("b1", started)), //
+                b.schedule(request("b2", started)))) //
+                .test();
+        assertEquals(5, scheduler.queued("x"));
+        blocker.onComplete();
+        ts.awaitDone(5, TimeUnit.SECONDS).assertValueCount(5).assertComplete();
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3"), started);
+    }
+
+    @Test
+    public void testCancelWhileQueued() {
+        FetchScheduler scheduler = FetchScheduler.create(1);
+        TestSubscriber<Object> running = scheduler.lane("a", Priority.NORMAL)
+                .schedule(Flowable.never()).test();
+        TestSubscriber<Object> waiting = scheduler.lane("a", Priority.HIGH)
+                .schedule(Flowable.never()).test();
+        assertEquals(1, scheduler.inFlight("a"));
+        assertEquals(1, scheduler.queued("a"));
+        waiting.cancel();
+        assertEquals(0, scheduler.queued("a"));
+        running.cancel();
+        assertEquals(0, scheduler.inFlight("a"));
+        assertTrue(scheduler.toString().contains("a=0/0"));
+    }
+
+    @Test
+    public void testEndpointOfUrl() throws Exception {
+        assertEquals("https://mybucket.s3.amazonaws.com", FetchScheduler
+                .endpoint(new URL("https://mybucket.s3.amazonaws.com/data/2019.bin")));
+        assertEquals("http://localhost:8080",
+                FetchScheduler.endpoint(new URL("http://localhost:8080/data")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxInFlightMustBePositive() {
+        FetchScheduler.create(0);
+    }
+
+    static void waitUntilNoneInFlight(FetchScheduler scheduler, String endpoint)
+            throws InterruptedException {
+        // the last permit is released just after completion is signalled
+        long t = System.currentTimeMillis();
+        while (scheduler.inFlight(endpoint) > 0 && System.currentTimeMillis() - t < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, scheduler.inFlight(endpoint));
+    }
+
+    private static Flowable<String> request(String name, List<String> started) {
+        return Flowable.defer(() -> {
+            started.add(name);
+            return Flowable.just(name);
+        });
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HedgePolicyTest {
+
+    @Test
+    public void testInitialDelayUntilEnoughSamples() {
+        HedgePolicy p = HedgePolicy.percentile(90).initialDelayMs(500).minSamples(3).build();
+        assertEquals(500, p.delayMs());
+        p.record(100);
+        p.record(200);
+        assertEquals(500, p.delayMs());
+        p.record(300);
+        assertEquals(300, p.delayMs());
+    }
+
+    @Test
+    public void testPercentile() {
+        HedgePolicy p = HedgePolicy.percentile(95).minSamples(1).minDelayMs(0).build();
+        for (int i = 100; i >= 1; i--) {
+            p.record(i);
+        }
+        assertEquals(95, p.delayMs());
+    }
+
+    @Test
+    public void testMinDelay() {
+        HedgePolicy p = HedgePolicy.percentile(50).minSamples(1).minDelayMs(20).build();
+        p.record(1);
+        assertEquals(20, p.delayMs());
+    }
+
+    @Test
+    public void testWindowKeepsLatestSamples() {
+        HedgePolicy p = HedgePolicy.percentile(50).minSamples(1).minDelayMs(0).window(2)
+                .build();
+        p.record(1000);
+        p.record(1000);
+        p.record(10);
+        p.record(10);
+        assertEquals(10, p.delayMs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPercentileOutOfRange() {
+        HedgePolicy.percentile(100);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.kool.function.BiFunction;
+import org.junit.Test;
+
+public class HedgingInputStreamFactoryTest {
+
+    @Test
+    public void testFastRequestIsNotHedged() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Index.Counts counts = new Index.Counts();
+        HedgingInputStreamFactory f = new HedgingInputStreamFactory(
+                factory(calls, 0), HedgePolicy.percentile(95).initialDelayMs(1000).build(),
+                counts);
+        try (InputStream in = f.apply(0L, Optional.of(3L))) {
+            assertEquals(0, in.read());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, counts.hedges);
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Index.Counts counts = new Index.Counts();
+        // first call is slow, the rest are fast
+        HedgingInputStreamFactory f = new HedgingInputStreamFactory(factory(calls, 3000),
+                HedgePolicy.percentile(95).initialDelayMs(50).build(), counts);
+        long t = System.currentTimeMillis();
+        try (InputStream in = f.apply(1L, Optional.of(3L))) {
+            assertEquals(1, in.read());
+            assertEquals(2, in.read());
+            assertEquals(-1, in.read());
+        }
+        assertTrue(System.currentTimeMillis() - t < 2000);
+        assertEquals(2, calls.get());
+        assertEquals(1, counts.hedges);
+        assertEquals(1, counts.hedgesWon);
+    }
+
+    @Test(expected = IOException.class)
+    public void testErrorIsThrown() throws Exception {
+        HedgingInputStreamFactory f = new HedgingInputStreamFactory((start, end) -> {
+            throw new IOException("boo");
+        }, HedgePolicy.percentile(95).build(), null);
+        f.apply(0L, Optional.empty());
+    }
+
+    @Test
+    public void testHedgeUsedWhenFirstRequestFailsSlowly() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HedgingInputStreamFactory f = new HedgingInputStreamFactory((start, end) -> {
+            if (calls.incrementAndGet() == 1) {
+                Thread.sleep(200);
+                throw new IOException("boo");
+            }
+            return new ByteArrayInputStream(new byte[] { 7 });
+        }, HedgePolicy.percentile(95).initialDelayMs(20).build(), null);
+        try (InputStream in = f.apply(0L, Optional.empty())) {
+            assertEquals(7, in.read());
+        }
+    }
+
+    private static BiFunction<Long, Optional<Long>, InputStream> factory(AtomicInteger calls,
+            long firstCallDelayMs) {
+        byte[] bytes = new byte[] { 0, 1, 2, 3, 4 };
+        return (start, end) -> {
+            if (calls.incrementAndGet() == 1) {
+                Thread.sleep(firstCallDelayMs);
+            }
+            int to = end.orElse((long) bytes.length).intValue();
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        };
+    }
+
+}
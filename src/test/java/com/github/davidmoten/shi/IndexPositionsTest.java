@@ -0,0 +1,68 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class IndexPositionsTest {
+
+    private static final IndexPositions POSITIONS = new IndexPositions.Builder() //
+            .add(10, 0) //
+            .add(20, 100) //
+            .add(30, 200) //
+            .build();
+
+    @Test
+    public void testFloorIndex() {
+        assertEquals(-1, POSITIONS.floorIndex(9));
+        assertEquals(0, POSITIONS.floorIndex(10));
+        assertEquals(0, POSITIONS.floorIndex(19));
+        assertEquals(1, POSITIONS.floorIndex(20));
+        assertEquals(2, POSITIONS.floorIndex(30));
+        assertEquals(2, POSITIONS.floorIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testHigherIndex() {
+        assertEquals(0, POSITIONS.higherIndex(9));
+        assertEquals(1, POSITIONS.higherIndex(10));
+        assertEquals(2, POSITIONS.higherIndex(29));
+        assertEquals(3, POSITIONS.higherIndex(30));
+    }
+
+    @Test
+    public void testBuilderReplacesPositionOfRepeatedKey() {
+        IndexPositions p = new IndexPositions.Builder().add(1, 0).add(1, 5).add(2, 7).build();
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 5L);
+        map.put(2L, 7L);
+        assertEquals(map, p.toMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilderRejectsDescendingKeys() {
+        new IndexPositions.Builder().add(2, 0).add(1, 5);
+    }
+
+    @Test
+    public void testBufferWithIntKeysAndLongPositions() {
+        ByteBuffer bb = ByteBuffer.allocate(3 * 12);
+        bb.putInt(10).putLong(0).putInt(20).putLong(100).putInt(30).putLong(200);
+        IndexPositions p = IndexPositions.of(bb, 3, false, true);
+        assertEquals(POSITIONS.toMap(), p.toMap());
+        assertEquals(1, p.floorIndex(25));
+        assertEquals(2, p.higherIndex(25));
+    }
+
+    @Test
+    public void testEmpty() {
+        IndexPositions p = new IndexPositions.Builder().build();
+        assertEquals(0, p.size());
+        assertEquals(-1, p.floorIndex(1));
+        assertEquals(0, p.higherIndex(1));
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+
+import org.davidmoten.hilbert.HilbertCurve;
+import org.davidmoten.hilbert.SmallHilbertCurve;
+import org.junit.Test;
+
+import com.github.davidmoten.bigsorter.Serializer;
+
+public class IndexPositionsWriterTest {
+
+    @Test
+    public void testPositionsRecordedAtChunkBoundariesAndLastRecord() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IndexPositionsWriter<String> w = new IndexPositionsWriter<String>(bytes,
+                Serializer.linesUtf8(), Integer::parseInt, 3);
+        try {
+            // each line is 2 bytes
+            w.write("1");
+            w.write("1");
+            w.write("3");
+            w.write("4");
+            w.write("5");
+        } finally {
+            w.close();
+        }
+        assertEquals("1\n1\n3\n4\n5\n", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(4L, 6L);
+        map.put(5L, 8L);
+        assertEquals(map, w.indexPositions().toMap());
+        // last record has its own chunk
+        assertArrayEquals(new long[] { 3, 1, 1 }, w.chunkCounts());
+    }
+
+    @Test
+    public void testLastRecordWithSameIndexAsLastEntryDoesNotMoveEntry() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IndexPositionsWriter<String> w = new IndexPositionsWriter<String>(bytes,
+                Serializer.linesUtf8(), Integer::parseInt, 4);
+        try {
+            w.write("1");
+            w.write("2");
+            w.write("3");
+            w.write("3");
+        } finally {
+            w.close();
+        }
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(3L, 4L);
+        assertEquals(map, w.indexPositions().toMap());
+        assertArrayEquals(new long[] { 2, 2 }, w.chunkCounts());
+    }
+
+    @Test
+    public void testZoneMapsRecordedPerEntry() throws IOException {
+        SmallHilbertCurve hc = HilbertCurve.small().bits(4).dimensions(2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // lines are hilbert indexes, each line is 3 bytes
+        IndexPositionsWriter<String> w = new IndexPositionsWriter<String>(bytes,
+                Serializer.linesUtf8(), Integer::parseInt, 6, hc);
+        try {
+            w.write("10");
+            w.write("11");
+            w.write("20");
+            w.write("21");
+        } finally {
+            w.close();
+        }
+        ZoneMaps z = w.zoneMaps();
+        assertEquals(w.indexPositions().size(), z.size());
+        assertEquals(3, z.size());
+        long[] p = hc.point(21);
+        // last entry is just the last record
+        assertTrue(z.within(2, new long[] { p[0] - 1, p[1] - 1 },
+                new long[] { p[0] + 1, p[1] + 1 }));
+        for (long index : new long[] { 20, 21 }) {
+            long[] q = hc.point(index);
+            assertTrue(z.intersects(1, q, q));
+        }
+    }
+
+}
@@ -12,12 +12,16 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -25,8 +29,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import org.davidmoten.hilbert.Range;
@@ -37,8 +48,12 @@ import org.junit.Test;
 import com.github.davidmoten.bigsorter.Reader;
 import com.github.davidmoten.bigsorter.Serializer;
 import com.github.davidmoten.guavamini.Lists;
+import com.github.davidmoten.shi.FetchScheduler.Priority;
 
 import io.reactivex.Flowable;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
 
 public class IndexTest {
 
@@ -61,9 +76,9 @@ public class IndexTest {
 
     @Test
     public void test() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(237, 0L);
-        map.put(472177237, 4082820L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(237L, 0L);
+        map.put(472177237L, 4082820L);
         Index<String> index = new Index<String>(map,
                 new double[] { -85.14174, -115.24912, 1557868858000L },
                 new double[] { 47.630283, 179.99948, 1557964800000L }, 10, 2,
@@ -74,9 +89,9 @@ public class IndexTest {
 
     @Test
     public void testRoundTripIndexCreationWithLongPositions() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(237, 0L);
-        map.put(472177237, Integer.MAX_VALUE * 2L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(237L, 0L);
+        map.put(472177237L, Integer.MAX_VALUE * 2L);
         Index<String> index = new Index<String>(map,
                 new double[] { -85.14174, -115.2912, 1557868858000L },
                 new double[] { 47.630283, 179.99948, 1557964800000L }, 10, 2,
@@ -87,22 +102,86 @@ public class IndexTest {
         index = Index.<String>serializer(index.serializer()).pointMapper(index.pointMapper())
                 .read(file);
         assertEquals(map, index.indexPositions());
+        index = Index.<String>serializer(index.serializer()).pointMapper(index.pointMapper())
+                .map(file);
+        assertEquals(map, index.indexPositions());
+    }
+
+    @Test
+    public void testRoundTripIndexCreationWithLongKeys() throws IOException {
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(237L, 0L);
+        map.put(Integer.MAX_VALUE * 1000L, 4082820L);
+        Index<String> index = new Index<String>(map,
+                new double[] { -85.14174, -115.2912, 1557868858000L },
+                new double[] { 47.630283, 179.99948, 1557964800000L }, 20, 2,
+                Serializer.linesUtf8(), x -> new double[] { 0, 0, 0 });
+        File file = new File("target/index");
+        index.write(file);
+        try (DataInputStream dis = new DataInputStream(Util.bufferedInput(file))) {
+            // version
+            assertEquals(2, dis.readShort());
+        }
+        index = Index.<String>serializer(index.serializer()).pointMapper(index.pointMapper())
+                .read(file);
+        assertEquals(map, index.indexPositions());
+        index = Index.<String>serializer(index.serializer()).pointMapper(index.pointMapper())
+                .map(file);
+        assertEquals(map, index.indexPositions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapTruncatedIndexThrows() throws IOException {
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(237L, 0L);
+        map.put(472177237L, 100L);
+        Index<String> index = new Index<String>(map, new double[] { 0, 0 },
+                new double[] { 1, 1 }, 10, 2, Serializer.linesUtf8(), x -> new double[] { 0, 0 });
+        File file = new File("target/index-truncated");
+        index.write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        Index.serializer(Serializer.linesUtf8()).pointMapper(x -> new double[] { 0, 0 })
+                .map(file);
+    }
+
+    @Test
+    public void testCoalesceJoinsRangesSeparatedBySmallGaps() {
+        List<PositionRange> ranges = Lists.newArrayList( //
+                new PositionRange(10, 0, 100, true, 0, 1), //
+                new PositionRange(20, 150, 200, true, 3, 4), //
+                new PositionRange(30, 300, 400, true, 6, 7), //
+                new PositionRange(40, 500, Long.MAX_VALUE, true, 8, 9));
+        List<PositionRange> list = Index.coalesce(ranges, 50);
+        assertEquals(3, list.size());
+        PositionRange pr = list.get(0);
+        assertEquals(0, pr.floorPosition());
+        assertEquals(200, pr.ceilingPosition());
+        assertEquals(20, pr.maxHilbertIndex());
+        // records in the gap must be checked against the query bounds
+        assertFalse(pr.withinQueryBounds());
+        assertEquals(300, list.get(1).floorPosition());
+        assertTrue(list.get(1).withinQueryBounds());
+        assertEquals(Long.MAX_VALUE, list.get(2).ceilingPosition());
+        assertEquals(1, Index.coalesce(ranges, 100).size());
+        assertEquals(ranges, Index.coalesce(ranges, 49));
     }
 
     @Test
     public void testGetPositionRangesForEmptyRanges() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(1, 0L);
-        map.put(8, 5L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(8L, 5L);
         List<PositionRange> ranges = Index.positionRanges(map, Collections.emptyList());
         assertTrue(ranges.isEmpty());
     }
 
     @Test
     public void testGetPositionRangesSingleRangeAboveMax() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(1, 0L);
-        map.put(8, 5L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(8L, 5L);
         List<PositionRange> ranges = Index.positionRanges(map,
                 Collections.singletonList(Range.create(10, 12)));
         assertTrue(ranges.isEmpty());
@@ -110,9 +189,9 @@ public class IndexTest {
 
     @Test
     public void testGetPositionRangesSingleRangeBelowMin() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(1, 0L);
-        map.put(8, 5L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(8L, 5L);
         List<PositionRange> ranges = Index.positionRanges(map,
                 Collections.singletonList(Range.create(-3, -1)));
         assertTrue(ranges.isEmpty());
@@ -120,11 +199,11 @@ public class IndexTest {
 
     @Test
     public void testGetPositionRanges1() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(1, 0L);
-        map.put(8, 5L);
-        map.put(16, 10L);
-        map.put(20, 16L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(8L, 5L);
+        map.put(16L, 10L);
+        map.put(20L, 16L);
         List<PositionRange> ranges = Index.positionRanges(map,
                 Collections.singletonList(Range.create(5, 9)));
         System.out.println(ranges);
@@ -136,11 +215,11 @@ public class IndexTest {
 
     @Test
     public void testGetPositionRanges2() {
-        TreeMap<Integer, Long> map = new TreeMap<>();
-        map.put(1, 0L);
-        map.put(8, 5L);
-        map.put(16, 10L);
-        map.put(20, 16L);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        map.put(8L, 5L);
+        map.put(16L, 10L);
+        map.put(20L, 16L);
         List<PositionRange> ranges = Index.positionRanges(map,
                 Lists.newArrayList(Range.create(2, 3), Range.create(18, 22)));
         System.out.println(ranges);
@@ -235,10 +314,10 @@ public class IndexTest {
                 Math.round((5 - 2.0) / (7 - 2) * hc.maxOrdinate()), //
                 Math.round((600 - 100.0) / (600 - 100) * hc.maxOrdinate()));
         assertEquals(17, firstIndex);
-        Map<Integer, Long> map = new HashMap<>();
-        map.put(17, 0L);
-        map.put(35, 8L);
-        map.put(56, 16L);
+        Map<Long, Long> map = new HashMap<>();
+        map.put(17L, 0L);
+        map.put(35L, 8L);
+        map.put(56L, 16L);
         assertEquals(map, index.indexPositions());
         {
             // query to get 2nd record from sorted input 8,7,100
@@ -316,6 +395,11 @@ public class IndexTest {
                 .read(idx2.toURI().toURL());
         assertEquals(NUM_SIMPLE_ROWS,
                 index3.search(queryBounds).file(OUTPUT).count().blockingGet().intValue());
+        Index<String> index4 = Index.serializer(SIMPLE_SERIALIZER).pointMapper(SIMPLE_POINT_MAPPER)
+                .map(idx2);
+        assertEquals(index.indexPositions(), index4.indexPositions());
+        assertEquals(NUM_SIMPLE_ROWS,
+                index4.search(queryBounds).file(OUTPUT).count().blockingGet().intValue());
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -506,7 +590,7 @@ public class IndexTest {
     public void testInputStreamFactoryThrows() throws FileNotFoundException, IOException {
         Index<String> idx = createSimpleIndex();
         idx //
-                .search(new double[3], new double[3]) //
+                .search(SIMPLE_BOUNDS_WHOLE_DOMAIN) //
                 .inputStreamFactory((x, y) -> {
                     throw new IOException("boo");
                 }).count().blockingGet();
@@ -516,7 +600,7 @@ public class IndexTest {
     public void testSearchFileDoesNotExist() throws FileNotFoundException, IOException {
         Index<String> idx = createSimpleIndex();
         idx //
-                .search(new double[3], new double[3]) //
+                .search(SIMPLE_BOUNDS_WHOLE_DOMAIN) //
                 .file("target/doesnotexist") //
                 .count().blockingGet();
     }
@@ -737,6 +821,1133 @@ public class IndexTest {
         assertEquals(expectedFound, list.size());
     }
 
+    @Test
+    public void testPrecomputedSortKeysProducesSameOutputAndIndex() throws IOException {
+        Index<byte[]> index = createIndex();
+        byte[] sorted = Files.readAllBytes(OUTPUT.toPath());
+        File output2 = new File("target/output-precomputed");
+        Index<byte[]> index2 = Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(new File(
+                        "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400")) //
+                .output(output2) //
+                .bits(10) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .sortMaxFilesPerMerge(10000) //
+                .sortMaxItemsPerFile(100000) //
+                .precomputeSortKeys(true) //
+                .createIndex();
+        assertArrayEquals(sorted, Files.readAllBytes(output2.toPath()));
+        assertEquals(index.indexPositions(), index2.indexPositions());
+        checkIndex(index2);
+    }
+
+    @Test
+    public void testPrecomputedSortKeysWithMultipleMerges() throws IOException {
+        Index<byte[]> index = Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(new File(
+                        "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400")) //
+                .output(OUTPUT) //
+                .bits(10) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .sortMaxFilesPerMerge(3) //
+                .sortMaxItemsPerFile(1000) //
+                .precomputeSortKeys(true) //
+                .createIndex();
+        checkIndex(index);
+        Bounds bounds = createQueryBounds(Math.round(index.mins()[2]),
+                Math.round(index.maxes()[2]));
+        assertEquals(countInside(bounds), //
+                index.search(bounds).file(OUTPUT).count().blockingGet().intValue());
+    }
+
+    @Test
+    public void testPrecomputedSortKeysWithLines() throws IOException {
+        String s = "10,2,300\n4,5,600\n8,7,100\n";
+        File input = new File("target/input");
+        Files.write(input.toPath(), s.getBytes(StandardCharsets.UTF_8));
+        Index<String> index = Index //
+                .serializer(SIMPLE_SERIALIZER) //
+                .pointMapper(SIMPLE_POINT_MAPPER) //
+                .input(input) //
+                .output(OUTPUT) //
+                .bits(2) //
+                .dimensions(3) //
+                .numIndexEntries(2) //
+                .precomputeSortKeys(true) //
+                .createIndex();
+        assertEquals("4,5,600\n8,7,100\n10,2,300\n",
+                new String(Files.readAllBytes(OUTPUT.toPath()), StandardCharsets.UTF_8));
+        assertEquals(NUM_SIMPLE_ROWS, index.search(SIMPLE_BOUNDS_WHOLE_DOMAIN).file(OUTPUT)
+                .count().blockingGet().intValue());
+    }
+
+    @Test
+    public void testCreateIndexWithDomainMatchesScannedDomain() throws IOException {
+        Index<byte[]> index = createIndex();
+        byte[] sorted = Files.readAllBytes(OUTPUT.toPath());
+        File output2 = new File("target/output-domain");
+        Index<byte[]> index2 = Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(new File(
+                        "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400")) //
+                .output(output2) //
+                .bits(10) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .sortMaxFilesPerMerge(10000) //
+                .sortMaxItemsPerFile(100000) //
+                .domain(index.mins(), index.maxes()) //
+                .createIndex();
+        assertArrayEquals(sorted, Files.readAllBytes(output2.toPath()));
+        assertEquals(index.indexPositions(), index2.indexPositions());
+        checkIndex(index2);
+    }
+
+    @Test
+    public void testCreateIndexFromInputStreamWithDomainClampsPoints() throws IOException {
+        // last point is outside the domain
+        String s = "10,2,300\n4,5,600\n8,7,100\n12,9,700";
+        Index<String> index = Index //
+                .serializer(SIMPLE_SERIALIZER) //
+                .pointMapper(SIMPLE_POINT_MAPPER) //
+                .input(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8))) //
+                .output(OUTPUT) //
+                .bits(2) //
+                .dimensions(3) //
+                .numIndexEntries(2) //
+                .domain(new double[] { 4, 2, 100 }, new double[] { 10, 7, 600 }) //
+                .createIndex();
+        assertEquals(4, index.count());
+        assertArrayEquals(new double[] { 4, 2, 100 }, index.mins(), PRECISION);
+        assertArrayEquals(new double[] { 10, 7, 600 }, index.maxes(), PRECISION);
+        assertEquals(NUM_SIMPLE_ROWS, index.search(SIMPLE_BOUNDS_WHOLE_DOMAIN).file(OUTPUT)
+                .count().blockingGet().intValue());
+    }
+
+    @Test
+    public void testSearchFindsPointsWhenSomeAreOutsideDomainOnEitherSide()
+            throws IOException {
+        Random random = new Random(1);
+        List<double[]> points = new ArrayList<>();
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            double[] p = new double[] { -20 + random.nextDouble() * 140,
+                    -20 + random.nextDouble() * 140 };
+            points.add(p);
+            s.append(p[0]).append(",").append(p[1]).append("\n");
+        }
+        Index<String> index = Index //
+                .serializer(SIMPLE_SERIALIZER) //
+                .pointMapper(SIMPLE_POINT_MAPPER) //
+                .input(new ByteArrayInputStream(s.toString().getBytes(StandardCharsets.UTF_8))) //
+                .output(OUTPUT) //
+                .bits(10) //
+                .dimensions(2) //
+                .numIndexEntries(100) //
+                .domain(new double[] { 0, 0 }, new double[] { 100, 100 }) //
+                .createIndex();
+        for (Bounds b : Arrays.asList(
+                Bounds.create(new double[] { 0, 30 }, new double[] { 10, 80 }),
+                Bounds.create(new double[] { 0, 0 }, new double[] { 50, 50 }),
+                Bounds.create(new double[] { 60, 90 }, new double[] { 100, 100 }))) {
+            long expected = points.stream().filter(b::contains).count();
+            assertTrue(expected > 0);
+            assertEquals(expected, (long) index.search(b).file(OUTPUT).count().blockingGet());
+            assertEquals(expected, (long) index.search(b).count().file(OUTPUT).blockingGet());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateIndexFromInputStreamWithoutDomainThrows() {
+        Index //
+                .serializer(SIMPLE_SERIALIZER) //
+                .pointMapper(SIMPLE_POINT_MAPPER) //
+                .input(new ByteArrayInputStream(new byte[0])) //
+                .output(OUTPUT) //
+                .bits(2) //
+                .dimensions(3) //
+                .createIndex();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDomainWithWrongNumberOfDimensionsThrows() {
+        Index //
+                .serializer(SIMPLE_SERIALIZER) //
+                .pointMapper(SIMPLE_POINT_MAPPER) //
+                .input(OUTPUT) //
+                .output(OUTPUT) //
+                .bits(2) //
+                .dimensions(3) //
+                .domain(new double[] { 1, 2 }, new double[] { 3, 4 });
+    }
+
+    @Test
+    public void testSearchWithMoreThan31Bits() throws IOException {
+        Index<byte[]> index10 = createIndex();
+        Bounds bounds = createQueryBounds(Math.round(index10.mins()[2]),
+                Math.round(index10.maxes()[2]));
+        int expectedFound = countInside(bounds);
+        WithStats<byte[]> stats10 = index10.search(bounds).withStats().file(OUTPUT)
+                .lastOrError().blockingGet();
+        Index<byte[]> index20 = Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(new File(
+                        "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400")) //
+                .output(OUTPUT) //
+                .bits(20) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .createIndex();
+        WithStats<byte[]> stats20 = index20.search(bounds).withStats().file(OUTPUT)
+                .lastOrError().blockingGet();
+        System.out.println(stats10);
+        System.out.println(stats20);
+        assertEquals(expectedFound, stats20.recordsFound());
+        assertTrue(stats20.recordsRead() <= stats10.recordsRead());
+    }
+
+    @Test
+    public void testPagedIndexRoundTrip() throws IOException {
+        Index<byte[]> index = createIndex();
+        File file = new File("target/created-index-paged");
+        index.writePaged(file, 10);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int[] requests = new int[1];
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> factory = (
+                start, end) -> {
+            requests[0]++;
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        };
+        Index<byte[]> paged = Index.serializer(SERIALIZER).pointMapper(POINT_FN)
+                .readPaged(factory, 100);
+        // root only
+        assertEquals(1, requests[0]);
+        Bounds bounds = createQueryBounds(Math.round(index.mins()[2]),
+                Math.round(index.maxes()[2]));
+        assertEquals(countInside(bounds),
+                paged.search(bounds).file(OUTPUT).count().blockingGet().intValue());
+        int numPages = (index.numEntries() + 9) / 10;
+        // only the pages needed by the search were fetched
+        assertTrue(requests[0] - 1 < numPages);
+
+        assertEquals(index.indexPositions(), paged.indexPositions());
+        assertEquals(index.indexPositions(),
+                Index.serializer(SERIALIZER).pointMapper(POINT_FN).readPaged(file)
+                        .indexPositions());
+        assertEquals(index.indexPositions(),
+                Index.serializer(SERIALIZER).pointMapper(POINT_FN).read(file).indexPositions());
+        assertEquals(index.indexPositions(),
+                Index.serializer(SERIALIZER).pointMapper(POINT_FN).map(file).indexPositions());
+    }
+
+    @Test
+    public void testZoneMapsReduceRecordsRead() throws IOException {
+        Index<byte[]> index = createIndex();
+        // without zone maps
+        Index<byte[]> plain = new Index<byte[]>(index.indexPositions(), index.mins(),
+                index.maxes(), index.hilbertCurve().bits(), index.count(), SERIALIZER, POINT_FN);
+        // a large area for an hour
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.mins()[2] + TimeUnit.HOURS.toMillis(1) });
+        int expectedFound = countInside(bounds);
+        WithStats<byte[]> stats = index.search(bounds).withStats().file(OUTPUT).lastOrError()
+                .blockingGet();
+        WithStats<byte[]> plainStats = plain.search(bounds).withStats().file(OUTPUT)
+                .lastOrError().blockingGet();
+        System.out.println("with zone maps: " + stats);
+        System.out.println("without zone maps: " + plainStats);
+        assertEquals(expectedFound, stats.recordsFound());
+        assertEquals(expectedFound, plainStats.recordsFound());
+        assertTrue(stats.recordsRead() < plainStats.recordsRead());
+
+        // zone maps survive a round trip through the index file
+        Index<byte[]> index2 = Index.serializer(SERIALIZER).pointMapper(POINT_FN)
+                .read(new File("target/created-index"));
+        assertEquals(stats.recordsRead(), index2.search(bounds).withStats().file(OUTPUT)
+                .lastOrError().blockingGet().recordsRead());
+        File compressed = new File("target/created-index-compressed");
+        index.writeCompressed(compressed);
+        Index<byte[]> index3 = Index.serializer(SERIALIZER).pointMapper(POINT_FN)
+                .read(compressed);
+        assertEquals(stats.recordsRead(), index3.search(bounds).withStats().file(OUTPUT)
+                .lastOrError().blockingGet().recordsRead());
+    }
+
+    @Test
+    public void testCoalescingReducesRequests() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.mins()[2] + TimeUnit.HOURS.toMillis(1) });
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        int[] requests = new int[1];
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> factory = (
+                start, end) -> {
+            requests[0]++;
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        };
+        WithStats<byte[]> stats = index.search(bounds).withStats().inputStreamFactory(factory)
+                .lastOrError().blockingGet();
+        int plainRequests = requests[0];
+        requests[0] = 0;
+        // 150ms latency at 1MB/s is worth reading a gap of up to 150KB
+        CostModel costModel = CostModel.create(150, 1000000);
+        assertEquals(150000, costModel.maxGapBytes());
+        WithStats<byte[]> coalescedStats = index.search(bounds).withStats()
+                .coalesce(costModel).inputStreamFactory(factory).lastOrError().blockingGet();
+        System.out.println("requests=" + plainRequests + ", coalesced requests=" + requests[0]);
+        assertEquals(countInside(bounds), coalescedStats.recordsFound());
+        assertEquals(stats.recordsFound(), coalescedStats.recordsFound());
+        assertTrue(requests[0] < plainRequests);
+        assertTrue(coalescedStats.chunksRead() < stats.chunksRead());
+        assertEquals(stats.recordsFound(), (long) index.search(bounds).coalesce(costModel)
+                .inputStreamFactory(factory).count().blockingGet());
+        // counts read only ranges whose count is not known from the index
+        requests[0] = 0;
+        assertEquals(stats.recordsFound(), (long) index.search(bounds).count()
+                .inputStreamFactory(factory).blockingGet());
+        int plainCountRequests = requests[0];
+        requests[0] = 0;
+        assertEquals(stats.recordsFound(), (long) index.search(bounds).coalesce(costModel)
+                .count().inputStreamFactory(factory).blockingGet());
+        assertTrue(requests[0] < plainCountRequests);
+    }
+
+    @Test
+    public void testSearchUrlWithMultipleRangesPerRequest() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.mins()[2] + TimeUnit.HOURS.toMillis(1) });
+        long expected = countInside(bounds);
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        for (RangeServer.Mode mode : RangeServer.Mode.values()) {
+            try (RangeServer server = new RangeServer(bytes, mode)) {
+                assertEquals(expected, (long) index.search(bounds).url(server.url()).count()
+                        .blockingGet());
+                int singleRequests = server.requests();
+                assertEquals(expected, (long) index.search(bounds).maxRangesPerRequest(8)
+                        .url(server.url()).count().blockingGet());
+                int batchedRequests = server.requests() - singleRequests;
+                System.out.println(mode + ": requests=" + singleRequests
+                        + ", batched requests=" + batchedRequests);
+                if (mode == RangeServer.Mode.IGNORE_RANGE) {
+                    assertEquals(singleRequests + 1, batchedRequests);
+                } else {
+                    assertTrue(batchedRequests < singleRequests);
+                }
+                assertEquals(expected, (long) index.search(bounds).withStats()
+                        .maxRangesPerRequest(8).concurrency(4).url(server.url())
+                        .filter(x -> x.value() != null).count().blockingGet());
+                assertEquals(expected, (long) index.search(bounds).maxRangesPerRequest(8)
+                        .count().url(server.url()).blockingGet());
+            }
+        }
+    }
+
+    @Test
+    public void testSearchUrlThatIgnoresRangeStopsAtEndOfRange() throws IOException {
+        // zone maps mark ranges lying entirely inside the search bounds whose
+        // records are not checked against the bounds
+        Index<byte[]> index = createIndex();
+        double[] mins = index.mins();
+        double[] maxes = index.maxes();
+        Bounds bounds = Bounds.create(mins, new double[] { maxes[0], maxes[1],
+                mins[2] + (maxes[2] - mins[2]) / 2 });
+        assertTrue(index.positionRanges(bounds, index.ranges(bounds, 0, 0)).stream()
+                .anyMatch(PositionRange::withinQueryBounds));
+        long expected = countInside(bounds);
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        try (RangeServer server = new RangeServer(bytes, RangeServer.Mode.IGNORE_RANGE)) {
+            assertEquals(expected,
+                    (long) index.search(bounds).url(server.url()).count().blockingGet());
+            assertEquals(expected, (long) index.search(bounds).concurrency(4)
+                    .url(server.url()).count().blockingGet());
+        }
+    }
+
+    @Test
+    public void testSearchWithAsyncRangeFetcher() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.mins()[2] + TimeUnit.HOURS.toMillis(6) });
+        long expected = countInside(bounds);
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        AsyncRangeFetcher fetcher = (start, end) -> CompletableFuture.supplyAsync(() -> {
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            return new ByteArrayInputStream(bytes, (int) start, to - (int) start);
+        });
+        assertEquals(expected,
+                (long) index.search(bounds).fetcher(fetcher).count().blockingGet());
+        assertEquals(expected, (long) index.search(bounds).concurrency(8).fetcher(fetcher)
+                .count().blockingGet());
+        assertEquals(expected, (long) index.search(bounds).count().fetcher(fetcher).blockingGet());
+    }
+
+    @Test
+    public void testSearchWithAsyncRangeFetcherRequestsWindowOfRanges() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        // completes the request when run
+        List<Runnable> requested = new CopyOnWriteArrayList<>();
+        AsyncRangeFetcher fetcher = (start, end) -> {
+            CompletableFuture<InputStream> f = new CompletableFuture<>();
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            requested.add(() -> f.complete(
+                    new ByteArrayInputStream(bytes, (int) (long) start, to - (int) (long) start)));
+            return f;
+        };
+        int n = index.positionRanges(bounds, index.ranges(bounds, 0, 0)).size();
+        assertTrue(n > Index.DEFAULT_FETCHER_CONCURRENCY);
+        TestSubscriber<byte[]> ts = index.search(bounds).fetcher(fetcher).test();
+        // nothing has completed yet a window of ranges has been requested
+        assertEquals(Index.DEFAULT_FETCHER_CONCURRENCY, requested.size());
+        ts.assertNoValues();
+        int completed = 0;
+        while (completed < requested.size()) {
+            // complete in reverse order, records are still emitted in range order
+            int size = requested.size();
+            assertTrue(size - completed <= Index.DEFAULT_FETCHER_CONCURRENCY);
+            for (int i = size - 1; i >= completed; i--) {
+                requested.get(i).run();
+            }
+            completed = size;
+        }
+        assertEquals(n, requested.size());
+        List<byte[]> list = ts.awaitDone(10, TimeUnit.SECONDS).assertComplete().values();
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertArrayEquals(expected.get(i), list.get(i));
+        }
+        // every range at once when asked for
+        requested.clear();
+        index.search(bounds).concurrency(Integer.MAX_VALUE).fetcher(fetcher).test();
+        assertEquals(n, requested.size());
+    }
+
+    @Test
+    public void testSearchWithAsyncRangeFetcherError() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(index.mins(), index.maxes());
+        AsyncRangeFetcher fetcher = (start, end) -> CompletableFuture.supplyAsync(() -> {
+            throw new UncheckedIOException(new IOException("boo"));
+        });
+        index.search(bounds).fetcher(fetcher).test() //
+                .awaitDone(10, TimeUnit.SECONDS) //
+                .assertError(UncheckedIOException.class);
+    }
+
+    @Test
+    public void testSearchWithAsyncRangeFetcherFailingTogetherReportsOneError()
+            throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(index.mins(), index.maxes());
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            for (int i = 0; i < 20; i++) {
+                // the requests in flight all fail at once on different threads
+                CountDownLatch latch = new CountDownLatch(1);
+                AsyncRangeFetcher fetcher = (start, end) -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        // carry on
+                    }
+                    throw new UncheckedIOException(new IOException("boo"));
+                }, executor);
+                TestSubscriber<byte[]> ts = index.search(bounds).fetcher(fetcher).test();
+                TestObserver<Long> to = index.search(bounds).count().fetcher(fetcher).test();
+                latch.countDown();
+                ts.awaitDone(10, TimeUnit.SECONDS).assertError(UncheckedIOException.class);
+                to.awaitDone(10, TimeUnit.SECONDS).assertError(UncheckedIOException.class);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSearchWithAsyncFileRangeFetcher() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+        // two threads handle the reads of 64 chunks in flight
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (AsyncFileRangeFetcher fetcher = AsyncFileRangeFetcher.open(OUTPUT, executor)) {
+            List<byte[]> list = index.search(bounds).fetcher(fetcher).toList().blockingGet();
+            assertEquals(expected.size(), list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertArrayEquals(expected.get(i), list.get(i));
+            }
+            assertEquals(expected.size(), (long) index.search(bounds).concurrency(64)
+                    .fetcher(fetcher).count().blockingGet());
+            assertEquals(expected.size(), (long) index.search(bounds).concurrency(64).count()
+                    .fetcher(fetcher).blockingGet());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHedgedSearch() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.mins()[2] + TimeUnit.HOURS.toMillis(6) });
+        long expected = countInside(bounds);
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        int[] calls = new int[1];
+        // every third request is slow
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> factory = (
+                start, end) -> {
+            int n;
+            synchronized (calls) {
+                n = ++calls[0];
+            }
+            if (n % 3 == 1) {
+                Thread.sleep(2000);
+            }
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        };
+        HedgePolicy policy = HedgePolicy.percentile(90).initialDelayMs(100).build();
+        long t = System.currentTimeMillis();
+        WithStats<byte[]> stats = index.search(bounds).withStats().hedge(policy)
+                .inputStreamFactory(factory).lastOrError().blockingGet();
+        System.out.println(stats + " in " + (System.currentTimeMillis() - t) + "ms");
+        assertEquals(expected, stats.recordsFound());
+        assertTrue(stats.hedges() > 0);
+        assertTrue(stats.hedgesWon() > 0);
+        assertTrue(stats.hedgesWon() <= stats.hedges());
+        assertEquals(expected, (long) index.search(bounds).hedge(policy).concurrency(4)
+                .inputStreamFactory(factory).count().blockingGet());
+        assertEquals(expected, (long) index.search(bounds).hedge(policy).count()
+                .inputStreamFactory(factory).blockingGet());
+    }
+
+    @Test
+    public void testSearchWithAdaptiveConcurrency() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(index.mins(), index.maxes());
+        Adaptive adaptive = Adaptive.builder().initialConcurrency(2).build();
+        assertEquals(index.count(), (long) index.search(bounds).concurrency(adaptive)
+                .file(OUTPUT).count().blockingGet());
+        System.out.println(adaptive);
+        // fixed concurrency replaces adaptive
+        assertEquals(index.count(), (long) index.search(bounds).concurrency(adaptive)
+                .concurrency(2).file(OUTPUT).count().blockingGet());
+    }
+
+    @Test
+    public void testAdaptiveConcurrencyAppliesToStatsAndCount() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        long expected = countInside(bounds);
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        AtomicInteger opening = new AtomicInteger();
+        AtomicInteger maxOpening = new AtomicInteger();
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> factory = (
+                start, end) -> {
+            maxOpening.accumulateAndGet(opening.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            opening.decrementAndGet();
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        };
+        Adaptive adaptive = Adaptive.builder().initialConcurrency(4).build();
+        assertEquals(expected, index.search(bounds).concurrency(adaptive).withStats()
+                .inputStreamFactory(factory).lastOrError().blockingGet().recordsFound());
+        assertTrue(maxOpening.get() > 1);
+        maxOpening.set(0);
+        assertEquals(expected, (long) index.search(bounds).concurrency(adaptive).count()
+                .inputStreamFactory(factory).blockingGet());
+        assertTrue(maxOpening.get() > 1);
+    }
+
+    @Test
+    public void testSearchWithFetchScheduler() throws IOException, InterruptedException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(index.mins(), index.maxes());
+        FetchScheduler scheduler = FetchScheduler.create(2);
+        // searches running at the same time share the cap
+        List<Long> counts = Flowable.range(1, 4) //
+                .flatMapSingle(i -> index.search(bounds).concurrency(8)
+                        .scheduler(scheduler, i == 1 ? Priority.HIGH : Priority.LOW)
+                        .file(OUTPUT).count().subscribeOn(Schedulers.io())) //
+                .toList() //
+                .blockingGet();
+        assertEquals(Collections.nCopies(4, index.count()), counts);
+        assertEquals(index.count(), index.search(bounds).withStats().scheduler(scheduler)
+                .file(OUTPUT).lastOrError().blockingGet().recordsFound());
+        assertEquals(index.count(), (long) index.search(bounds).scheduler(scheduler)
+                .concurrency(Adaptive.aimd()).file(OUTPUT).count().blockingGet());
+        assertEquals(index.count(), (long) index.search(bounds).scheduler(scheduler).count()
+                .file(OUTPUT).blockingGet());
+        try (RangeServer server = new RangeServer(Files.readAllBytes(OUTPUT.toPath()),
+                RangeServer.Mode.MULTIPART)) {
+            assertEquals(index.count(), (long) index.search(bounds).concurrency(4)
+                    .scheduler(scheduler).url(server.url()).count().blockingGet());
+            FetchSchedulerTest.waitUntilNoneInFlight(scheduler,
+                    FetchScheduler.endpoint(server.url()));
+        }
+        FetchSchedulerTest.waitUntilNoneInFlight(scheduler, FetchScheduler.FILE_ENDPOINT);
+        System.out.println(scheduler);
+    }
+
+    @Test
+    public void testSearchWithPrefetch() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        AtomicInteger opening = new AtomicInteger();
+        AtomicInteger maxOpening = new AtomicInteger();
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> factory = (
+                start, end) -> {
+            maxOpening.accumulateAndGet(opening.incrementAndGet(), Math::max);
+            try {
+                // time to first byte
+                Thread.sleep(20);
+                int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+                return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+            } finally {
+                opening.decrementAndGet();
+            }
+        };
+        List<byte[]> list = index.search(bounds).prefetch(4).inputStreamFactory(factory)
+                .toList().blockingGet();
+        // same records in the same order
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertArrayEquals(expected.get(i), list.get(i));
+        }
+        // requests overlapped
+        assertTrue(maxOpening.get() > 1);
+        assertTrue(maxOpening.get() <= 5);
+        List<WithStats<byte[]>> stats = index.search(bounds).withStats().prefetch(2)
+                .file(OUTPUT).toList().blockingGet();
+        assertEquals(expected.size(), stats.size() - 1);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), stats.get(i).value());
+        }
+        assertEquals(expected.size(), stats.get(stats.size() - 1).recordsFound());
+    }
+
+    @Test
+    public void testSearchSharedFile() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+        try (SharedFile file = SharedFile.open(OUTPUT)) {
+            List<byte[]> list = index.search(bounds).file(file).toList().blockingGet();
+            assertEquals(expected.size(), list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertArrayEquals(expected.get(i), list.get(i));
+            }
+            assertEquals(expected.size(), (long) index.search(bounds).concurrency(4).file(file)
+                    .count().blockingGet());
+            assertEquals(expected.size(), (long) index.search(bounds).count().file(file)
+                    .blockingGet());
+            assertEquals(expected.size(), index.search(bounds).withStats().file(file)
+                    .lastOrError().blockingGet().recordsFound());
+            assertEquals(expected.size(), (long) index.search(bounds).advanced().file(file)
+                    .flatMap(x -> x).count().blockingGet());
+            assertEquals(expected.size() + 1, (long) index.search(bounds).withStats()
+                    .advanced().file(file).flatMap(x -> x).count().blockingGet());
+            // a buffer per chunk being read at once
+            System.out.println(file);
+            assertTrue(file.buffersAllocated() <= 8);
+        }
+    }
+
+    @Test
+    public void testSearchMappedFile() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+        // small segments so that some chunks cross segments
+        try (MappedFile file = MappedFile.map(OUTPUT, 100000)) {
+            List<byte[]> list = index.search(bounds).file(file).toList().blockingGet();
+            assertEquals(expected.size(), list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertArrayEquals(expected.get(i), list.get(i));
+            }
+            assertEquals(expected.size(), (long) index.search(bounds).concurrency(4).file(file)
+                    .count().blockingGet());
+            assertEquals(expected.size(), (long) index.search(bounds).count().file(file)
+                    .blockingGet());
+            assertEquals(expected.size(), index.search(bounds).withStats().file(file)
+                    .lastOrError().blockingGet().recordsFound());
+            assertEquals(expected.size(), (long) index.search(bounds).advanced().file(file)
+                    .flatMap(x -> x).count().blockingGet());
+            assertEquals(expected.size() + 1, (long) index.search(bounds).withStats()
+                    .advanced().file(file).flatMap(x -> x).count().blockingGet());
+        }
+    }
+
+    @Test
+    public void testSearchWithPointExtractor() throws IOException {
+        Index<byte[]> index = createIndex();
+        AtomicInteger reads = new AtomicInteger();
+        Serializer<byte[]> counting = new Serializer<byte[]>() {
+
+            @Override
+            public Reader<byte[]> createReader(InputStream in) {
+                reads.incrementAndGet();
+                return SERIALIZER.createReader(in);
+            }
+
+            @Override
+            public com.github.davidmoten.bigsorter.Writer<byte[]> createWriter(OutputStream out) {
+                return SERIALIZER.createWriter(out);
+            }
+        };
+        Index<byte[]> extracting = Index.serializer(counting).pointMapper(POINT_FN)
+                .read(new File("target/created-index"))
+                .withPointExtractor(PointExtractor.recordSize(35, (bb, offset, point) -> {
+                    point[0] = bb.getFloat(offset + 4);
+                    point[1] = bb.getFloat(offset + 8);
+                    point[2] = bb.getLong(offset + 12);
+                }));
+        for (Bounds bounds : Arrays.asList(
+                Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                        new double[] { -10, 155, index.maxes()[2] }),
+                Bounds.create(new double[] { -33.68, 150.86, index.mins()[2] },
+                        new double[] { -34.06, 151.34, index.maxes()[2] }),
+                Bounds.create(index.mins(), index.maxes()))) {
+            List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+            reads.set(0);
+            List<byte[]> list = extracting.search(bounds).file(OUTPUT).toList().blockingGet();
+            assertEquals(expected.size(), list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertArrayEquals(expected.get(i), list.get(i));
+            }
+            // only the records found are deserialized (a reader per record)
+            assertEquals(expected.size(), reads.get());
+            WithStats<byte[]> stats = index.search(bounds).withStats().file(OUTPUT)
+                    .lastOrError().blockingGet();
+            WithStats<byte[]> extractingStats = extracting.search(bounds).withStats()
+                    .file(OUTPUT).lastOrError().blockingGet();
+            assertEquals(stats.recordsFound(), extractingStats.recordsFound());
+            assertEquals(stats.recordsRead(), extractingStats.recordsRead());
+            assertEquals(expected.size(), (long) extracting.search(bounds).concurrency(4)
+                    .file(OUTPUT).count().blockingGet());
+        }
+    }
+
+    @Test
+    public void testSearchWithPointMapper() throws IOException {
+        Index<byte[]> index = createIndex();
+        AtomicInteger calls = new AtomicInteger();
+        Index<byte[]> mapping = index.withPointMapper((b, point) -> {
+            calls.incrementAndGet();
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            point[0] = bb.getFloat(4);
+            point[1] = bb.getFloat(8);
+            point[2] = bb.getLong(12);
+        });
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        List<byte[]> expected = index.search(bounds).file(OUTPUT).toList().blockingGet();
+        List<byte[]> list = mapping.search(bounds).file(OUTPUT).toList().blockingGet();
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertArrayEquals(expected.get(i), list.get(i));
+        }
+        WithStats<byte[]> stats = index.search(bounds).withStats().file(OUTPUT).lastOrError()
+                .blockingGet();
+        calls.set(0);
+        WithStats<byte[]> mappingStats = mapping.search(bounds).withStats().file(OUTPUT)
+                .lastOrError().blockingGet();
+        assertEquals(stats.recordsFound(), mappingStats.recordsFound());
+        assertEquals(stats.recordsRead(), mappingStats.recordsRead());
+        // one call per record read
+        assertEquals(stats.recordsRead(), calls.get());
+    }
+
+    @Test
+    public void testSearchWithSingleFlight() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        long expected = countInside(bounds);
+        SingleFlight singleFlight = SingleFlight.create();
+        // searches of the same area at the same time
+        List<Long> counts = Flowable.range(1, 8) //
+                .flatMapSingle(i -> index.search(bounds).singleFlight(singleFlight)
+                        .file(OUTPUT).count().subscribeOn(Schedulers.io())) //
+                .toList() //
+                .blockingGet();
+        assertEquals(Collections.nCopies(8, expected), counts);
+        System.out.println("requests=" + singleFlight.requests() + ", joined="
+                + singleFlight.joined());
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        try (RangeServer server = new RangeServer(bytes, RangeServer.Mode.MULTIPART)) {
+            assertEquals(expected, index.search(bounds).withStats().concurrency(4)
+                    .singleFlight(singleFlight).url(server.url())
+                    .filter(x -> x.value() != null).count().blockingGet().longValue());
+            assertEquals(expected, (long) index.search(bounds).advanced()
+                    .singleFlight(singleFlight).url(server.url()).flatMap(x -> x).count()
+                    .blockingGet());
+        }
+    }
+
+    @Test
+    public void testSearchWithChunkCache() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        long expected = countInside(bounds);
+        ChunkCache cache = ChunkCache.create(10 * 1024 * 1024);
+        WithStats<byte[]> first = index.search(bounds).withStats().cache(cache).file(OUTPUT)
+                .lastOrError().blockingGet();
+        WithStats<byte[]> second = index.search(bounds).withStats().cache(cache).file(OUTPUT)
+                .lastOrError().blockingGet();
+        System.out.println(first);
+        System.out.println(second);
+        System.out.println(cache);
+        assertEquals(expected, first.recordsFound());
+        assertEquals(expected, second.recordsFound());
+        assertEquals(0, first.cacheHits());
+        assertTrue(first.cacheMisses() > 0);
+        assertEquals(first.cacheMisses(), second.cacheHits());
+        assertEquals(0, second.cacheMisses());
+        assertEquals(0, second.cacheEvictions());
+        assertEquals(expected, (long) index.search(bounds).cache(cache).concurrency(4)
+                .file(OUTPUT).count().blockingGet());
+        assertEquals(expected, (long) index.search(bounds).cache(cache).count().file(OUTPUT)
+                .blockingGet());
+        // a cache smaller than the chunks read evicts
+        long maxBytes = first.bytesRead() / 4;
+        ChunkCache small = ChunkCache.create(maxBytes);
+        WithStats<byte[]> stats = index.search(bounds).withStats().cache(small).file(OUTPUT)
+                .lastOrError().blockingGet();
+        assertEquals(expected, stats.recordsFound());
+        assertTrue(stats.cacheEvictions() > 0);
+        assertTrue(small.bytes() <= maxBytes);
+    }
+
+    @Test
+    public void testChunkCacheOfUrlIsKeyedByIndexOrVersion() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        long expected = countInside(bounds);
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        try (RangeServer server = new RangeServer(bytes, RangeServer.Mode.MULTIPART)) {
+            ChunkCache cache = ChunkCache.create(10 * 1024 * 1024);
+            WithStats<byte[]> first = index.search(bounds).withStats().cache(cache)
+                    .url(server.url()).lastOrError().blockingGet();
+            WithStats<byte[]> second = index.search(bounds).withStats().cache(cache)
+                    .url(server.url()).lastOrError().blockingGet();
+            assertEquals(expected, second.recordsFound());
+            assertEquals(first.cacheMisses(), second.cacheHits());
+            // the data at the url may have been replaced for another index
+            Index<byte[]> other = createIndex();
+            WithStats<byte[]> third = other.search(bounds).withStats().cache(cache)
+                    .url(server.url()).lastOrError().blockingGet();
+            assertEquals(expected, third.recordsFound());
+            assertEquals(0, third.cacheHits());
+            assertEquals(first.cacheMisses(), third.cacheMisses());
+            // a dataset version is shared by indexes
+            DiskCache diskCache = DiskCache.directory(new File("target/disk-cache-version"))
+                    .build();
+            index.search(bounds).withStats().cache(cache).diskCache(diskCache, "v1")
+                    .url(server.url()).lastOrError().blockingGet();
+            WithStats<byte[]> fourth = other.search(bounds).withStats().cache(cache)
+                    .diskCache(diskCache, "v1").url(server.url()).lastOrError().blockingGet();
+            assertEquals(expected, fourth.recordsFound());
+            assertEquals(first.cacheMisses(), fourth.cacheHits());
+        }
+    }
+
+    @Test
+    public void testSearchWithDiskCache() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        long expected = countInside(bounds);
+        File directory = new File("target/disk-cache-search");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        try (RangeServer server = new RangeServer(bytes, RangeServer.Mode.MULTIPART)) {
+            DiskCache cache = DiskCache.directory(directory).build();
+            assertEquals(expected, (long) index.search(bounds).diskCache(cache)
+                    .url(server.url()).count().blockingGet());
+            assertTrue(cache.chunks() > 0);
+            int requests = server.requests();
+            // a new instance on the same directory as after a restart
+            DiskCache cache2 = DiskCache.directory(directory).build();
+            assertEquals(expected, (long) index.search(bounds).withStats().diskCache(cache2)
+                    .url(server.url()).filter(x -> x.value() != null).count().blockingGet());
+            assertEquals(expected, (long) index.search(bounds).diskCache(cache2).count()
+                    .url(server.url()).blockingGet());
+            assertEquals(requests, server.requests());
+            assertEquals(0, cache2.misses());
+            assertTrue(cache2.hits() > 0);
+            // a dataset version doesn't need the server for validation
+            assertEquals(expected, (long) index.search(bounds).advanced()
+                    .diskCache(cache2, "v1").url(server.url()).flatMap(x -> x).count()
+                    .blockingGet());
+            System.out.println(cache2);
+        }
+    }
+
+    @Test
+    public void testCostModelFromStats() throws IOException {
+        Index<byte[]> index = createIndex();
+        WithStats<byte[]> stats = index.search(Bounds.create(index.mins(), index.maxes()))
+                .withStats().file(OUTPUT).lastOrError().blockingGet();
+        CostModel costModel = CostModel.from(stats);
+        System.out.println(costModel);
+        assertTrue(costModel.bytesPerSecond() > 0);
+        assertTrue(costModel.requestLatencyMs() >= 0);
+    }
+
+    @Test
+    public void testCostModelFromConcurrentSearchUsesRateOfSingleRequest()
+            throws IOException {
+        Index<byte[]> index = createIndex();
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        // 20ms to first byte then at most 4096 bytes per ms
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> slow = (
+                start, end) -> {
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            InputStream in = new ByteArrayInputStream(bytes, start.intValue(),
+                    to - start.intValue());
+            return new InputStream() {
+                boolean first = true;
+                int delivered;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (first || delivered >= 4096) {
+                        try {
+                            Thread.sleep(first ? 20 : 1);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        delivered = first ? 0 : delivered - 4096;
+                        first = false;
+                    }
+                    int n = in.read(b, off, Math.min(len, 4096));
+                    delivered += Math.max(0, n);
+                    return n;
+                }
+            };
+        };
+        WithStats<byte[]> stats = index.search(Bounds.create(index.mins(), index.maxes()))
+                .concurrency(8).withStats().inputStreamFactory(slow).lastOrError()
+                .blockingGet();
+        // reads overlap so time to first byte summed over chunks exceeds the
+        // elapsed time
+        assertTrue(stats.timeToFirstByteMs() > stats.elapsedTimeMs());
+        CostModel costModel = CostModel.from(stats);
+        assertTrue(costModel.toString(), costModel.bytesPerSecond() <= 4_096_000);
+        assertTrue(costModel.toString(), costModel.bytesPerSecond() > 500_000);
+        assertTrue(costModel.requestLatencyMs() >= 20);
+    }
+
+    @Test
+    public void testCountUsesChunkCounts() throws IOException {
+        Index<byte[]> index = createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        long expected = countInside(bounds);
+        CountEstimate estimate = index.countEstimate(bounds);
+        System.out.println(estimate + ", actual=" + expected);
+        assertTrue(estimate.lower() > 0);
+        assertTrue(estimate.lower() <= expected);
+        assertTrue(expected <= estimate.upper());
+        assertTrue(estimate.upper() <= index.count());
+        assertEquals(expected, (long) index.search(bounds).count().file(OUTPUT).blockingGet());
+        assertEquals(expected, (long) index.search(bounds).concurrency(4).count().file(OUTPUT)
+                .blockingGet());
+
+        // chunks inside the bounds are not read
+        byte[] bytes = Files.readAllBytes(OUTPUT.toPath());
+        long[] requested = new long[1];
+        org.davidmoten.kool.function.BiFunction<Long, Optional<Long>, InputStream> factory = (
+                start, end) -> {
+            int to = (int) Math.min(bytes.length, end.orElse((long) bytes.length));
+            requested[0] += to - start;
+            return new ByteArrayInputStream(bytes, start.intValue(), to - start.intValue());
+        };
+        assertEquals(expected,
+                (long) index.search(bounds).count().inputStreamFactory(factory).blockingGet());
+        long requestedByCount = requested[0];
+        requested[0] = 0;
+        assertEquals(expected,
+                (long) index.search(bounds).inputStreamFactory(factory).count().blockingGet());
+        System.out.println("bytes requested by count=" + requestedByCount + ", by search="
+                + requested[0]);
+        assertTrue(requestedByCount < requested[0]);
+
+        // statistics survive a round trip through the index file
+        Index<byte[]> index2 = Index.serializer(SERIALIZER).pointMapper(POINT_FN)
+                .read(new File("target/created-index"));
+        assertEquals(estimate.toString(), index2.countEstimate(bounds).toString());
+        assertEquals(expected, (long) index2.search(bounds).count().file(OUTPUT).blockingGet());
+    }
+
+    @Test
+    public void testCountEstimateWithoutChunkStatistics() {
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(1L, 0L);
+        Index<String> index = new Index<String>(map, new double[] { 0, 0 },
+                new double[] { 1, 1 }, 10, 123, SIMPLE_SERIALIZER, x -> new double[] { 0, 0 });
+        CountEstimate estimate = index
+                .countEstimate(Bounds.create(new double[] { 0, 0 }, new double[] { 1, 1 }));
+        assertEquals(0, estimate.lower());
+        assertEquals(123, estimate.upper());
+        assertFalse(estimate.isExact());
+    }
+
+    @Test
+    public void testZoneMapsWithPrecomputedSortKeysMatchComparatorSort() throws IOException {
+        Index<byte[]> index = createIndex();
+        Index<byte[]> index2 = Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(new File(
+                        "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400")) //
+                .output(new File("target/output-precomputed")) //
+                .bits(10) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .precomputeSortKeys(true) //
+                .createIndex();
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.maxes()[2] });
+        assertEquals(index.positionRanges(bounds, index.ranges(bounds, 0, 0)).toString(),
+                index2.positionRanges(bounds, index2.ranges(bounds, 0, 0)).toString());
+    }
+
+    @Test
+    public void testCompressedIndexRoundTrip() throws IOException {
+        Index<byte[]> index = createIndex();
+        File file = new File("target/created-index-compressed");
+        index.writeCompressed(file);
+        assertTrue(file.length() < new File("target/created-index").length());
+        Index<byte[]> index2 = Index.serializer(SERIALIZER).pointMapper(POINT_FN).read(file);
+        assertEquals(index.indexPositions(), index2.indexPositions());
+        assertEquals(index.count(), index2.count());
+        assertArrayEquals(index.mins(), index2.mins(), 0.0);
+        assertArrayEquals(index.maxes(), index2.maxes(), 0.0);
+    }
+
+    @Test
+    public void testCompressedIndexRoundTripWithDecreasingPositions() {
+        TreeMap<Long, Long> map = new TreeMap<>();
+        map.put(237L, 100L);
+        map.put(Integer.MAX_VALUE * 1000L, 0L);
+        map.put(Integer.MAX_VALUE * 1001L, Integer.MAX_VALUE * 2L);
+        Index<String> index = new Index<String>(map, new double[] { 0, 0, 0 },
+                new double[] { 1, 1, 1 }, 20, 2, Serializer.linesUtf8(),
+                x -> new double[] { 0, 0, 0 });
+        File file = new File("target/index-compressed");
+        index.writeCompressed(file);
+        assertEquals(map, Index.serializer(Serializer.linesUtf8())
+                .pointMapper(x -> new double[] { 0, 0, 0 }).read(file).indexPositions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapCompressedIndexThrows() throws IOException {
+        Index<byte[]> index = createIndex();
+        File file = new File("target/created-index-compressed");
+        index.writeCompressed(file);
+        Index.serializer(SERIALIZER).pointMapper(POINT_FN).map(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadPagedIndexThatIsNotPagedThrows() throws IOException {
+        createIndex();
+        Index.serializer(SERIALIZER).pointMapper(POINT_FN)
+                .readPaged(new File("target/created-index"));
+    }
+
+    @Test
+    public void testFinerCurveReadsFewerRecords() {
+        // Sydney region for the whole day
+        Bounds sydney = Bounds.create(new double[] { -33.68, 150.86, 1557878400000L },
+                new double[] { -34.06, 151.34, 1557964800000L });
+        WithStats<byte[]> coarse = searchSydneyWithBits(sydney, 10);
+        WithStats<byte[]> fine = searchSydneyWithBits(sydney, 20);
+        assertEquals(coarse.recordsFound(), fine.recordsFound());
+        assertTrue(coarse.recordsFound() > 0);
+        // past 31 bits the ranges are refined on the 20 bit curve where they span
+        // chunks so they are tighter as well as the chunk boundaries finer
+        assertTrue(fine.recordsRead() < coarse.recordsRead());
+    }
+
+    private static WithStats<byte[]> searchSydneyWithBits(Bounds bounds, int bits) {
+        File input = new File(
+                "src/test/resources/2019-05-15.binary-fixes-with-mmsi.sampled.every.400");
+        File output = new File("target/output-bits-" + bits);
+        Index<byte[]> index = Index //
+                .serializer(SERIALIZER) //
+                .pointMapper(POINT_FN) //
+                .input(input) //
+                .output(output) //
+                .bits(bits) //
+                .dimensions(3) //
+                .numIndexEntries(1000) //
+                .createIndex();
+        return index.search(bounds).withStats().file(output).lastOrError().blockingGet();
+    }
+
+    @Test
+    public void testRangesPast31BitsContainAllPointsInBounds() {
+        // index entries spread over the 60 bit curve so that ranges are refined
+        TreeMap<Long, Long> map = new TreeMap<>();
+        Random entries = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            map.put(entries.nextLong() >>> 4, i * 100L);
+        }
+        Index<String> index = new Index<String>(map,
+                new double[] { 0, 0, 0 }, new double[] { 1, 1, 1 }, 20, 0, SIMPLE_SERIALIZER,
+                SIMPLE_POINT_MAPPER);
+        Bounds bounds = Bounds.create(new double[] { 0.2, 0.3, 0.4 },
+                new double[] { 0.25, 0.32, 0.6 });
+        List<Range> ranges = Lists.newArrayList(index.ranges(bounds, 0, 0));
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            double[] p = new double[3];
+            for (int j = 0; j < p.length; j++) {
+                p[j] = bounds.mins()[j]
+                        + random.nextDouble() * (bounds.maxes()[j] - bounds.mins()[j]);
+            }
+            long h = index.hilbertCurve().index(index.ordinates(p));
+            assertTrue(ranges.stream().anyMatch(r -> r.contains(h)));
+        }
+    }
+
     private int countInside(Bounds sb) throws IOException {
         int expectedFound = 0;
         {
@@ -0,0 +1,97 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class MappedFileTest {
+
+    private static final byte[] BYTES = bytes(10000);
+
+    @Test
+    public void testReadRanges() throws Exception {
+        try (MappedFile f = MappedFile.map(file())) {
+            assertEquals(BYTES.length, f.length());
+            check(f.apply(0L, Optional.of(10L)), 0, 10);
+            check(f.apply(50L, Optional.of(1050L)), 50, 1050);
+            check(f.apply(9990L, Optional.empty()), 9990, 10000);
+            // end beyond the end of the file
+            check(f.apply(9990L, Optional.of(20000L)), 9990, 10000);
+            check(f.apply(20000L, Optional.empty()), 0, 0);
+            // readers of the same range have their own position
+            InputStream a = f.apply(10L, Optional.of(20L));
+            InputStream b = f.apply(10L, Optional.of(20L));
+            assertEquals(10, a.read());
+            check(b, 10, 20);
+            assertEquals(11, a.read());
+        }
+    }
+
+    @Test
+    public void testRangesCrossingSegments() throws Exception {
+        try (MappedFile f = MappedFile.map(file(), 1000)) {
+            check(f.apply(0L, Optional.of(1000L)), 0, 1000);
+            check(f.apply(1000L, Optional.of(2000L)), 1000, 2000);
+            check(f.apply(950L, Optional.of(1050L)), 950, 1050);
+            check(f.apply(500L, Optional.of(3500L)), 500, 3500);
+            check(f.apply(8500L, Optional.empty()), 8500, 10000);
+            assertEquals("MappedFile [file=target/mapped-file, length=10000, segments=10]",
+                    f.toString());
+        }
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void testApplyAfterClose() throws Exception {
+        MappedFile f = MappedFile.map(file());
+        f.close();
+        f.apply(0L, Optional.of(10L));
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        File file = new File("target/mapped-file-empty");
+        Files.write(file.toPath(), new byte[0]);
+        try (MappedFile f = MappedFile.map(file)) {
+            assertEquals(-1, f.apply(0L, Optional.empty()).read());
+        }
+    }
+
+    private static File file() throws IOException {
+        File file = new File("target/mapped-file");
+        Files.write(file.toPath(), BYTES);
+        return file;
+    }
+
+    private static void check(InputStream in, int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[300];
+        int n;
+        try {
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(BYTES, from, to), out.toByteArray());
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
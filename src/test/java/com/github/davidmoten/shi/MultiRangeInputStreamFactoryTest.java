@@ -0,0 +1,158 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.davidmoten.kool.function.BiFunction;
+import org.junit.Test;
+
+import com.github.davidmoten.shi.MultiRangeInputStreamFactory.Part;
+import com.github.davidmoten.shi.RangeServer.Mode;
+
+public class MultiRangeInputStreamFactoryTest {
+
+    private static final byte[] BYTES = bytes(1000);
+
+    private static final List<PositionRange> RANGES = Arrays.asList( //
+            new PositionRange(1, 10, 20), //
+            new PositionRange(2, 100, 150), //
+            new PositionRange(3, 400, 401), //
+            new PositionRange(4, 900, Long.MAX_VALUE));
+
+    @Test
+    public void testRangeHeaderValue() {
+        assertEquals("bytes=10-19,100-149,900-", MultiRangeInputStreamFactory
+                .rangeHeaderValue(Arrays.asList(new long[] { 10, 20 }, new long[] { 100, 150 },
+                        new long[] { 900, Long.MAX_VALUE })));
+    }
+
+    @Test
+    public void testBoundary() {
+        assertEquals("abc",
+                MultiRangeInputStreamFactory.boundary("multipart/byteranges; boundary=abc"));
+        assertEquals("a b",
+                MultiRangeInputStreamFactory.boundary("multipart/byteranges; boundary=\"a b\""));
+        assertNull(MultiRangeInputStreamFactory.boundary("text/plain"));
+        assertNull(MultiRangeInputStreamFactory.boundary(null));
+    }
+
+    @Test
+    public void testParseContentRange() throws IOException {
+        assertArrayEquals(new long[] { 0, 99, 1234 },
+                MultiRangeInputStreamFactory.parseContentRange("bytes 0-99/1234"));
+        assertArrayEquals(new long[] { 5, 6, -1 },
+                MultiRangeInputStreamFactory.parseContentRange("bytes 5-6/*"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseContentRangeMalformed() throws IOException {
+        MultiRangeInputStreamFactory.parseContentRange("bytes 5/6");
+    }
+
+    @Test
+    public void testParseMultipart() throws IOException {
+        String s = "preamble\r\n--xyz\r\nContent-Type: text/plain\r\n"
+                + "Content-Range: bytes 2-4/10\r\n\r\nabc\r\n--xyz\r\n"
+                + "content-range: bytes 7-7/10\r\n\r\nd\r\n--xyz--\r\n";
+        List<Part> parts = MultiRangeInputStreamFactory.parseMultipart(
+                new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)), "xyz");
+        assertEquals(2, parts.size());
+        assertEquals(2, parts.get(0).start);
+        assertEquals("abc", new String(parts.get(0).bytes, StandardCharsets.US_ASCII));
+        assertEquals(7, parts.get(1).start);
+        assertEquals("d", new String(parts.get(1).bytes, StandardCharsets.US_ASCII));
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseMultipartTruncatedThrows() throws IOException {
+        String s = "--xyz\r\nContent-Range: bytes 2-4/10\r\n\r\nab";
+        MultiRangeInputStreamFactory.parseMultipart(
+                new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)), "xyz");
+    }
+
+    @Test
+    public void testMultipart() throws Exception {
+        try (RangeServer server = new RangeServer(BYTES, Mode.MULTIPART)) {
+            check(server, 2, 2);
+            check(server, 4, 1);
+        }
+    }
+
+    @Test
+    public void testSinglePartServesCoveredRanges() throws Exception {
+        try (RangeServer server = new RangeServer(BYTES, Mode.SINGLE_PART)) {
+            // the server merges the ranges of each request into one part
+            check(server, 2, 2);
+        }
+    }
+
+    @Test
+    public void testRangeIgnoredFallsBackToSingleRanges() throws Exception {
+        try (RangeServer server = new RangeServer(BYTES, Mode.IGNORE_RANGE)) {
+            int[] singles = new int[1];
+            BiFunction<Long, Optional<Long>, InputStream> single = (start, end) -> {
+                singles[0]++;
+                return new ByteArrayInputStream(BYTES, start.intValue(),
+                        (int) (end.orElse((long) BYTES.length) - start));
+            };
+            MultiRangeInputStreamFactory f = new MultiRangeInputStreamFactory(server.url(),
+                    single, RANGES, 2);
+            read(f);
+            // one batched request then no more
+            assertEquals(1, server.requests());
+            assertEquals(RANGES.size(), singles[0]);
+        }
+    }
+
+    private static void check(RangeServer server, int maxRangesPerRequest, int expectedRequests)
+            throws Exception {
+        int before = server.requests();
+        MultiRangeInputStreamFactory f = new MultiRangeInputStreamFactory(server.url(),
+                (start, end) -> {
+                    throw new RuntimeException("unexpected");
+                }, RANGES, maxRangesPerRequest);
+        read(f);
+        assertEquals(expectedRequests, server.requests() - before);
+    }
+
+    private static void read(MultiRangeInputStreamFactory f) throws Exception {
+        for (PositionRange pr : RANGES) {
+            Optional<Long> end = pr.ceilingPosition() == Long.MAX_VALUE ? Optional.empty()
+                    : Optional.of(pr.ceilingPosition());
+            try (InputStream in = f.apply(pr.floorPosition(), end)) {
+                byte[] expected = Arrays.copyOfRange(BYTES, (int) pr.floorPosition(),
+                        (int) Math.min(BYTES.length, pr.ceilingPosition()));
+                assertArrayEquals(expected, readAll(in));
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.davidmoten.hilbert.HilbertCurve;
+import org.davidmoten.hilbert.Range;
+import org.davidmoten.hilbert.Ranges;
+import org.davidmoten.hilbert.SmallHilbertCurve;
+import org.junit.Test;
+
+import com.github.davidmoten.guavamini.Lists;
+
+public class RangeQueryTest {
+
+    @Test
+    public void testRangesCoverAllPointsInBox() {
+        SmallHilbertCurve hc = HilbertCurve.small().bits(20).dimensions(3);
+        RangeQuery q = new RangeQuery(hc, indexPositions(hc, 1000), 1 << 20);
+        long[] a = new long[] { 200000, 300000, 400000 };
+        long[] b = new long[] { 250000, 320000, 600000 };
+        checkCovers(hc, q.query(a, b, 0, 0), a, b);
+    }
+
+    @Test
+    public void testReadsSameChunksAsQueryAtFullResolution() {
+        SmallHilbertCurve hc = HilbertCurve.small().bits(8).dimensions(3);
+        IndexPositions positions = indexPositions(hc, 100);
+        RangeQuery q = new RangeQuery(hc, positions, 1 << 20);
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            long[] a = new long[3];
+            long[] b = new long[3];
+            for (int j = 0; j < 3; j++) {
+                a[j] = random.nextInt(256);
+                b[j] = random.nextInt(256);
+            }
+            assertEquals(chunks(positions, hc.query(a, b, 0, 0)),
+                    chunks(positions, q.query(a, b, 0, 0)));
+        }
+    }
+
+    @Test
+    public void testMaxRanges() {
+        SmallHilbertCurve hc = HilbertCurve.small().bits(20).dimensions(3);
+        RangeQuery q = new RangeQuery(hc, indexPositions(hc, 1000), 1 << 20);
+        long[] a = new long[] { 200000, 300000, 400000 };
+        long[] b = new long[] { 250000, 320000, 600000 };
+        Ranges ranges = q.query(a, b, 5, 0);
+        assertTrue(ranges.size() <= 5);
+        checkCovers(hc, ranges, a, b);
+    }
+
+    @Test
+    public void testRangesCoverAllPointsInBoxWhenMaxCellsReached() {
+        SmallHilbertCurve hc = HilbertCurve.small().bits(20).dimensions(3);
+        RangeQuery q = new RangeQuery(hc, indexPositions(hc, 1000), 1);
+        long[] a = new long[] { 200000, 300000, 400000 };
+        long[] b = new long[] { 250000, 320000, 600000 };
+        checkCovers(hc, q.query(a, b, 0, 0), a, b);
+    }
+
+    @Test
+    public void testFullCurve() {
+        SmallHilbertCurve hc = HilbertCurve.small().bits(21).dimensions(3);
+        RangeQuery q = new RangeQuery(hc, indexPositions(hc, 1000), 1 << 20);
+        long max = (1L << 21) - 1;
+        Ranges ranges = q.query(new long[] { 0, 0, 0 }, new long[] { max, max, max }, 0, 0);
+        List<Range> list = Lists.newArrayList(ranges);
+        assertEquals(1, list.size());
+        assertEquals(0, list.get(0).low());
+        assertEquals((1L << 63) - 1, list.get(0).high());
+    }
+
+    private static IndexPositions indexPositions(SmallHilbertCurve hc, int n) {
+        Random random = new Random(1);
+        long[] keys = new long[n];
+        long[] positions = new long[n];
+        long max = 1L << (hc.bits() * hc.dimensions());
+        for (int i = 0; i < n; i++) {
+            // overflows to Long.MIN_VALUE at 63 bits
+            keys[i] = max > 0 ? (long) (random.nextDouble() * max)
+                    : random.nextLong() & Long.MAX_VALUE;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < n; i++) {
+            positions[i] = i * 100L;
+        }
+        return IndexPositions.of(keys, positions, n);
+    }
+
+    private static void checkCovers(SmallHilbertCurve hc, Ranges ranges, long[] a, long[] b) {
+        List<Range> list = Lists.newArrayList(ranges);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long[] p = new long[a.length];
+            for (int j = 0; j < p.length; j++) {
+                p[j] = a[j] + (long) (random.nextDouble() * (b[j] - a[j] + 1));
+            }
+            long h = hc.index(p);
+            assertTrue(list.stream().anyMatch(r -> r.contains(h)));
+        }
+    }
+
+    // the index entries read for the ranges (shifted by one so that the chunk
+    // before the first key is 0)
+    private static BitSet chunks(IndexPositions positions, Ranges ranges) {
+        BitSet set = new BitSet();
+        for (Range r : ranges) {
+            set.set(positions.floorIndex(r.low()) + 1, positions.floorIndex(r.high()) + 2);
+        }
+        return set;
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.github.davidmoten.shi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server for tests that serves a byte array and honours the Range
+ * header (single and multiple ranges) depending on its {@link Mode}. Responses
+ * (including to HEAD requests) carry an ETag.
+ */
+final class RangeServer implements AutoCloseable {
+
+    enum Mode {
+        MULTIPART, SINGLE_PART, IGNORE_RANGE;
+    }
+
+    private static final String BOUNDARY = "THIS_STRING_SEPARATES";
+
+    private final byte[] bytes;
+    private final Mode mode;
+    private final HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String etag = "\"1\"";
+
+    RangeServer(byte[] bytes, Mode mode) throws IOException {
+        this.bytes = bytes;
+        this.mode = mode;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    URL url() {
+        try {
+            return new URL("http://localhost:" + server.getAddress().getPort() + "/data");
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    int requests() {
+        return requests.get();
+    }
+
+    void etag(String etag) {
+        this.etag = etag;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        requests.incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (range == null || mode == Mode.IGNORE_RANGE) {
+                exchange.sendResponseHeaders(200, bytes.length);
+                out.write(bytes);
+                return;
+            }
+            List<long[]> ranges = parse(range);
+            if (ranges.size() == 1 || mode == Mode.SINGLE_PART) {
+                // merge all ranges into one
+                long start = ranges.get(0)[0];
+                long end = ranges.get(ranges.size() - 1)[1];
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + end + "/" + bytes.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+                out.write(bytes, (int) start, (int) (end - start + 1));
+            } else {
+                exchange.getResponseHeaders().add("Content-Type",
+                        "multipart/byteranges; boundary=" + BOUNDARY);
+                exchange.sendResponseHeaders(206, 0);
+                for (long[] r : ranges) {
+                    out.write(("\r\n--" + BOUNDARY + "\r\nContent-Type: text/plain"
+                            + "\r\nContent-Range: bytes " + r[0] + "-" + r[1] + "/"
+                            + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(bytes, (int) r[0], (int) (r[1] - r[0] + 1));
+                }
+                out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    private List<long[]> parse(String range) {
+        List<long[]> list = new ArrayList<>();
+        for (String r : range.substring("bytes=".length()).split(",")) {
+            String[] items = r.trim().split("-", -1);
+            long start = Long.parseLong(items[0]);
+            long end = items.length == 1 || items[1].isEmpty() ? bytes.length - 1
+                    : Math.min(bytes.length - 1, Long.parseLong(items[1]));
+            list.add(new long[] { start, end });
+        }
+        return list;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class SharedFileTest {
+
+    private static final byte[] BYTES = bytes(100000);
+
+    @Test
+    public void testReadRanges() throws Exception {
+        try (SharedFile f = SharedFile.open(file(), 100)) {
+            check(f.apply(0L, Optional.of(10L)), 0, 10);
+            check(f.apply(50L, Optional.of(1050L)), 50, 1050);
+            check(f.apply(99990L, Optional.empty()), 99990, 100000);
+            // end beyond the end of the file
+            check(f.apply(99990L, Optional.of(200000L)), 99990, 100000);
+            try (InputStream in = f.apply(10L, Optional.of(20L))) {
+                assertEquals(10, in.read());
+                assertEquals(5, in.skip(5));
+                assertEquals(16, in.read());
+                assertEquals(3, in.skip(100));
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    public void testBuffersAreReused() throws Exception {
+        try (SharedFile f = SharedFile.open(file())) {
+            for (int i = 0; i < 100; i++) {
+                check(f.apply(i * 1000L, Optional.of(i * 1000L + 1000)), i * 1000,
+                        i * 1000 + 1000);
+            }
+            assertEquals(1, f.buffersAllocated());
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (SharedFile f = SharedFile.open(file(), 512)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                int start = i * 1000;
+                Callable<Object> task = () -> {
+                    check(f.apply((long) start, Optional.of(start + 30000L)), start,
+                            Math.min(BYTES.length, start + 30000));
+                    return null;
+                };
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertTrue(f.buffersAllocated() <= 8);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCloseDuringReadDoesNotShareBufferInUse() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        try (SharedFile f = SharedFile.open(file(), 4096)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Callable<Object> task = () -> {
+                    for (int j = 0; j < 200; j++) {
+                        // closed from another thread while it is being read
+                        InputStream cancelled = f.apply(0L, Optional.empty());
+                        CountDownLatch started = new CountDownLatch(1);
+                        Future<?> reading = readers.submit(() -> {
+                            byte[] b = new byte[4096];
+                            try {
+                                while (cancelled.read(b) != -1) {
+                                    started.countDown();
+                                }
+                            } catch (IOException e) {
+                                // closed
+                            }
+                        });
+                        started.await();
+                        cancelled.close();
+                        int start = 50000 + j * 10;
+                        check(f.apply((long) start, Optional.of(start + 4096L)), start,
+                                start + 4096);
+                        reading.get();
+                    }
+                    return null;
+                };
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            readers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReopensChannelClosedByInterrupt() throws Exception {
+        try (SharedFile f = SharedFile.open(file(), 100)) {
+            InputStream other = f.apply(0L, Optional.of(1000L));
+            assertEquals(0, other.read());
+            Thread.currentThread().interrupt();
+            try (InputStream in = f.apply(0L, Optional.of(1000L))) {
+                in.read();
+                fail();
+            } catch (ClosedByInterruptException e) {
+                // expected
+            } finally {
+                Thread.interrupted();
+            }
+            // other readers carry on
+            byte[] b = new byte[999];
+            int n = 0;
+            int k;
+            while ((k = other.read(b, n, b.length - n)) > 0) {
+                n += k;
+            }
+            assertArrayEquals(Arrays.copyOfRange(BYTES, 1, 1000), b);
+            check(f.apply(0L, Optional.of(1000L)), 0, 1000);
+        }
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void testApplyAfterClose() throws Exception {
+        SharedFile f = SharedFile.open(file());
+        f.close();
+        f.apply(0L, Optional.of(10L));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterStreamClosed() throws Exception {
+        try (SharedFile f = SharedFile.open(file())) {
+            InputStream in = f.apply(0L, Optional.of(10L));
+            in.close();
+            in.read();
+        }
+    }
+
+    private static File file() throws IOException {
+        File file = new File("target/shared-file");
+        Files.write(file.toPath(), BYTES);
+        return file;
+    }
+
+    private static void check(InputStream in, int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[300];
+        int n;
+        try {
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(BYTES, from, to), out.toByteArray());
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
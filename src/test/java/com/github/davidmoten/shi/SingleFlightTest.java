@@ -0,0 +1,296 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.kool.function.BiFunction;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private static final byte[] BYTES = bytes(20000);
+
+    @Test
+    public void testConcurrentReadsOfSameRangeShareRequest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", factory(calls));
+        InputStream a = f.apply(0L, Optional.of(10000L));
+        InputStream b = f.apply(0L, Optional.of(10000L));
+        // within the range in flight
+        InputStream c = f.apply(100L, Optional.of(200L));
+        check(a, 0, 10000);
+        check(b, 0, 10000);
+        check(c, 100, 200);
+        assertEquals(1, calls.get());
+        assertEquals(1, sf.requests());
+        assertEquals(2, sf.joined());
+        // the request is no longer in flight
+        check(f.apply(0L, Optional.of(10000L)), 0, 10000);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testDifferentSourcesAreNotShared() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        SingleFlight sf = SingleFlight.create();
+        InputStream a = sf.wrap("a", factory(calls)).apply(0L, Optional.of(100L));
+        InputStream b = sf.wrap("b", factory(calls)).apply(0L, Optional.of(100L));
+        check(a, 0, 100);
+        check(b, 0, 100);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testRangesNotWithinRangeInFlightAreNotShared() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", factory(calls));
+        InputStream a = f.apply(0L, Optional.of(100L));
+        InputStream b = f.apply(50L, Optional.of(150L));
+        InputStream c = f.apply(50L, Optional.empty());
+        check(a, 0, 100);
+        check(b, 50, 150);
+        check(c, 50, BYTES.length);
+        assertEquals(3, calls.get());
+        assertEquals(0, sf.joined());
+    }
+
+    @Test
+    public void testClosingAllReadersBeforeEndClosesSource() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", (start, end) -> {
+            calls.incrementAndGet();
+            return new ClosingInputStream(new ByteArrayInputStream(BYTES, start.intValue(),
+                    (int) (end.get() - start)), () -> closed.incrementAndGet());
+        });
+        InputStream a = f.apply(0L, Optional.of(10000L));
+        InputStream b = f.apply(0L, Optional.of(10000L));
+        assertEquals(0, a.read());
+        a.close();
+        assertEquals(0, closed.get());
+        assertEquals(0, b.read());
+        assertEquals(1, b.read());
+        b.close();
+        assertEquals(1, closed.get());
+        // a new request is made
+        check(f.apply(0L, Optional.of(10000L)), 0, 10000);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testReadAfterCloseThrows() throws Exception {
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a",
+                factory(new AtomicInteger()));
+        InputStream a = f.apply(0L, Optional.of(10000L));
+        InputStream b = f.apply(0L, Optional.of(10000L));
+        assertEquals(0, a.read());
+        a.close();
+        b.close();
+        for (InputStream in : Arrays.asList(a, b)) {
+            try {
+                in.read();
+                fail();
+            } catch (IOException e) {
+                assertEquals("stream closed", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testReaderThatJoinsAndClosesWhileOpeningDoesNotAbandonFlight()
+            throws Exception {
+        AtomicInteger closed = new AtomicInteger();
+        CountDownLatch opening = new CountDownLatch(1);
+        CountDownLatch joinerClosed = new CountDownLatch(1);
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", (start, end) -> {
+            opening.countDown();
+            try {
+                joinerClosed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new ClosingInputStream(new ByteArrayInputStream(BYTES, start.intValue(),
+                    (int) (end.get() - start)), () -> closed.incrementAndGet());
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> opener = executor.submit(() -> {
+                try (InputStream in = f.apply(0L, Optional.of(100L))) {
+                    return readAll(in);
+                }
+            });
+            opening.await();
+            // joins the flight before the source is open
+            f.apply(0L, Optional.of(50L)).close();
+            assertEquals(1, sf.joined());
+            joinerClosed.countDown();
+            assertArrayEquals(Arrays.copyOfRange(BYTES, 0, 100), opener.get());
+            assertEquals(1, closed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClosingLastReaderWhileReadingDiscardsBlock() throws Exception {
+        AtomicInteger closed = new AtomicInteger();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch readerClosed = new CountDownLatch(1);
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", (start, end) -> {
+            InputStream in = new ByteArrayInputStream(BYTES, start.intValue(),
+                    (int) (end.get() - start)) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    reading.countDown();
+                    try {
+                        readerClosed.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+            return new ClosingInputStream(in, () -> closed.incrementAndGet());
+        });
+        InputStream a = f.apply(0L, Optional.of(100L));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> reader = executor.submit(() -> a.read());
+            reading.await();
+            // closed from another thread while the source is being read
+            a.close();
+            readerClosed.countDown();
+            assertEquals(-1, (int) reader.get());
+            assertEquals(1, closed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOpenErrorIsThrownAndNotShared() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", (start, end) -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IOException("boo");
+            }
+            return factory(new AtomicInteger()).apply(start, end);
+        });
+        try {
+            f.apply(0L, Optional.of(100L));
+            fail();
+        } catch (IOException e) {
+            assertEquals("boo", e.getMessage());
+        }
+        check(f.apply(0L, Optional.of(100L)), 0, 100);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testReadErrorIsThrownToAllReaders() throws Exception {
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a",
+                (start, end) -> new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("boo");
+                    }
+                });
+        InputStream a = f.apply(0L, Optional.of(100L));
+        InputStream b = f.apply(0L, Optional.of(100L));
+        for (InputStream in : Arrays.asList(a, b)) {
+            try {
+                in.read();
+                fail();
+            } catch (IOException e) {
+                assertEquals("boo", e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testManyThreadsReadingSameRange() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        SingleFlight sf = SingleFlight.create();
+        BiFunction<Long, Optional<Long>, InputStream> f = sf.wrap("a", factory(calls));
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Callable<byte[]> task = () -> {
+                    latch.await();
+                    try (InputStream in = f.apply(1000L, Optional.of(15000L))) {
+                        return readAll(in);
+                    }
+                };
+                futures.add(executor.submit(task));
+            }
+            latch.countDown();
+            for (Future<byte[]> future : futures) {
+                assertArrayEquals(Arrays.copyOfRange(BYTES, 1000, 15000), future.get());
+            }
+            assertEquals(calls.get(), sf.requests());
+            assertEquals(threads, sf.requests() + sf.joined());
+            assertTrue(calls.get() <= threads);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static BiFunction<Long, Optional<Long>, InputStream> factory(AtomicInteger calls) {
+        return (start, end) -> {
+            calls.incrementAndGet();
+            int to = end.orElse((long) BYTES.length).intValue();
+            return new ByteArrayInputStream(BYTES, start.intValue(), to - start.intValue());
+        };
+    }
+
+    private static void check(InputStream in, int from, int to) throws IOException {
+        assertArrayEquals(Arrays.copyOfRange(BYTES, from, to), readAll(in));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}
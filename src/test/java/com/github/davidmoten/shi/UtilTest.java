@@ -1,5 +1,11 @@
 package com.github.davidmoten.shi;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.davidmoten.hilbert.HilbertCurve;
+import org.davidmoten.hilbert.SmallHilbertCurve;
 import org.junit.Test;
 
 import com.github.davidmoten.junit.Asserts;
@@ -11,4 +17,22 @@ public class UtilTest {
         Asserts.assertIsUtilityClass(Util.class);
     }
 
+    @Test
+    public void testHilbertIndexSameAsLibrary() {
+        Random random = new Random(1);
+        for (int dimensions = 1; dimensions <= 5; dimensions++) {
+            for (int bits = 1; bits * dimensions <= 63; bits++) {
+                SmallHilbertCurve hc = HilbertCurve.small().bits(bits).dimensions(dimensions);
+                for (int i = 0; i < 100; i++) {
+                    long[] x = new long[dimensions];
+                    for (int j = 0; j < dimensions; j++) {
+                        x[j] = (random.nextLong() >>> 1) % (hc.maxOrdinate() + 1);
+                    }
+                    long expected = hc.index(x);
+                    assertEquals(expected, Util.hilbertIndex(bits, x));
+                }
+            }
+        }
+    }
+
 }
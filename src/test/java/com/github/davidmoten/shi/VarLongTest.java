@@ -0,0 +1,64 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class VarLongTest {
+
+    private static final long[] VALUES = { 0, 1, 127, 128, 300, Integer.MAX_VALUE,
+            Long.MAX_VALUE };
+
+    @Test
+    public void testUnsignedRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long x : VALUES) {
+            VarLong.writeUnsigned(out, x);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        for (long x : VALUES) {
+            assertEquals(x, VarLong.readUnsigned(in));
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testSignedRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long x : VALUES) {
+            VarLong.writeSigned(out, x);
+            VarLong.writeSigned(out, -x);
+        }
+        VarLong.writeSigned(out, Long.MIN_VALUE);
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        for (long x : VALUES) {
+            assertEquals(x, VarLong.readSigned(in));
+            assertEquals(-x, VarLong.readSigned(in));
+        }
+        assertEquals(Long.MIN_VALUE, VarLong.readSigned(in));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedThrows() throws IOException {
+        VarLong.readUnsigned(ByteBuffer.wrap(new byte[] { (byte) 0x80 }));
+    }
+
+    @Test
+    public void testSmallValuesUseOneByte() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        VarLong.writeUnsigned(out, 127);
+        VarLong.writeSigned(out, -64);
+        assertEquals(2, bytes.size());
+    }
+
+}
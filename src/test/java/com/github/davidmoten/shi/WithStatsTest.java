@@ -10,7 +10,7 @@ public class WithStatsTest {
 
     @Test
     public void testGetters() {
-        WithStats<Integer> w = new WithStats<>(1, 100, 200, 123, 456, 6, 890);
+        WithStats<Integer> w = new WithStats<>(1, counts());
         assertTrue(w.hasValue());
         assertEquals(1, (int) w.value());
         assertEquals(100, (int) w.recordsRead());
@@ -19,12 +19,60 @@ public class WithStatsTest {
         assertEquals(456, (int) w.timeToFirstByteMs());
         assertEquals(76, (int) w.timeToFirstByteMsAverage());
         assertEquals(6, (int) w.chunksRead());
+        assertEquals(0, w.hedges());
+        assertEquals(0, w.hedgesWon());
+        assertEquals(0, w.cacheHits());
+        assertFalse(w.toString().contains("cacheHits"));
+    }
+
+    @Test
+    public void testHedges() {
+        Index.Counts counts = counts();
+        counts.hedges = 3;
+        counts.hedgesWon = 2;
+        WithStats<Integer> w = new WithStats<>(1, counts);
+        assertEquals(3, w.hedges());
+        assertEquals(2, w.hedgesWon());
+        assertTrue(w.toString().contains("hedges=3, hedgesWon=2"));
+    }
+
+    @Test
+    public void testCacheCounts() {
+        Index.Counts counts = counts();
+        counts.cacheHits = 4;
+        counts.cacheMisses = 2;
+        counts.cacheEvictions = 1;
+        WithStats<Integer> w = new WithStats<>(1, counts);
+        assertEquals(4, w.cacheHits());
+        assertEquals(2, w.cacheMisses());
+        assertEquals(1, w.cacheEvictions());
+        assertTrue(w.toString().contains("cacheHits=4, cacheMisses=2, cacheEvictions=1"));
+        assertFalse(w.toString().contains("hedges"));
+    }
+
+    @Test
+    public void testTransferTime() {
+        Index.Counts counts = counts();
+        counts.totalTransferNanos = 5000;
+        WithStats<Integer> w = new WithStats<>(1, counts);
+        assertEquals(5000, w.transferTimeNanos());
+        assertEquals(0, new WithStats<>(1, counts()).transferTimeNanos());
     }
 
     @Test
     public void testHasValueWhenEmpty() {
-        WithStats<Integer> w = new WithStats<>(null, 100, 200, 123, 456, 6, 890);
+        WithStats<Integer> w = new WithStats<>(null, counts());
         assertFalse(w.hasValue());
     }
 
+    private static Index.Counts counts() {
+        Index.Counts counts = new Index.Counts();
+        counts.recordsRead = 100;
+        counts.recordsFound = 200;
+        counts.bytesRead = 123;
+        counts.totalTimeToFirstByte = 456;
+        counts.positionRanges = 6;
+        return counts;
+    }
+
 }
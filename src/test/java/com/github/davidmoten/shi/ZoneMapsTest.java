@@ -0,0 +1,63 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ZoneMapsTest {
+
+    private static ZoneMaps create() {
+        ZoneMaps.Builder b = new ZoneMaps.Builder(2);
+        b.startChunk();
+        b.include(new long[] { 2, 3 });
+        b.include(new long[] { 4, 1 });
+        b.startChunk();
+        b.include(new long[] { 10, 10 });
+        return b.build();
+    }
+
+    @Test
+    public void testIntersects() {
+        ZoneMaps z = create();
+        assertEquals(2, z.size());
+        // chunk 0 box is (2,1) to (4,3)
+        assertTrue(z.intersects(0, new long[] { 4, 3 }, new long[] { 8, 8 }));
+        assertFalse(z.intersects(0, new long[] { 5, 0 }, new long[] { 8, 8 }));
+        assertFalse(z.intersects(0, new long[] { 0, 4 }, new long[] { 8, 8 }));
+        assertTrue(z.intersects(1, new long[] { 10, 10 }, new long[] { 10, 10 }));
+    }
+
+    @Test
+    public void testWithinIsStrict() {
+        ZoneMaps z = create();
+        assertTrue(z.within(0, new long[] { 1, 0 }, new long[] { 5, 4 }));
+        assertFalse(z.within(0, new long[] { 2, 0 }, new long[] { 5, 4 }));
+        assertFalse(z.within(0, new long[] { 1, 0 }, new long[] { 5, 3 }));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ZoneMaps z = create();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        z.write(new DataOutputStream(bytes));
+        ZoneMaps z2 = ZoneMaps.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 2, 2);
+        long[] a = new long[] { 1, 0 };
+        long[] b = new long[] { 5, 4 };
+        boolean[] expected = { z.intersects(0, a, b), z.within(0, a, b), z.intersects(1, a, b),
+                z.within(1, a, b) };
+        boolean[] actual = { z2.intersects(0, a, b), z2.within(0, a, b), z2.intersects(1, a, b),
+                z2.within(1, a, b) };
+        assertArrayEquals(expected, actual);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.github.davidmoten.shi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.bigsorter.Serializer;
+import com.github.davidmoten.shi.RangeServer.Mode;
+
+public class HttpClientRangeFetcherTest {
+
+    private static final byte[] BYTES = bytes(1000);
+
+    @Test
+    public void testFetchRanges() throws Exception {
+        for (Mode mode : Mode.values()) {
+            try (RangeServer server = new RangeServer(BYTES, mode)) {
+                HttpClientRangeFetcher f = HttpClientRangeFetcher.uri(server.url().toURI())
+                        .connections(2).build();
+                check(f, 10, Optional.of(20L));
+                check(f, 900, Optional.empty());
+                check(f, 0, Optional.of(1000L));
+            }
+        }
+    }
+
+    @Test
+    public void testSearch() throws IOException, URISyntaxException {
+        Serializer<byte[]> serializer = Serializer.fixedSizeRecord(35);
+        File output = new File("target/output-http-client");
+        Index<byte[]> index = Index //
+                .serializer(serializer) //
+                .pointMapper(b -> {
+                    Record rec = Record.read(b);
+                    return new double[] { rec.lat, rec.lon, rec.time };
+                }) //
+                .input(new File("src/test/resources/"
+                        + "2019-05-15.binary-fixes-with-mmsi.sampled.every.400")) //
+                .output(output) //
+                .bits(10) //
+                .dimensions(3) //
+                .numIndexEntries(100) //
+                .createIndex("target/created-index-http-client");
+        Bounds bounds = Bounds.create(new double[] { -45, 110, index.mins()[2] },
+                new double[] { -10, 155, index.mins()[2] + TimeUnit.HOURS.toMillis(6) });
+        long expected = index.search(bounds).file(output).count().blockingGet();
+        try (RangeServer server = new RangeServer(Files.readAllBytes(output.toPath()),
+                Mode.MULTIPART)) {
+            HttpClientRangeFetcher f = HttpClientRangeFetcher.create(server.url().toURI());
+            assertEquals(expected,
+                    (long) index.search(bounds).concurrency(16).fetcher(f).count().blockingGet());
+            assertEquals(expected,
+                    (long) index.search(bounds).count().fetcher(f).blockingGet());
+        }
+    }
+
+    private static void check(HttpClientRangeFetcher f, long start, Optional<Long> end)
+            throws Exception {
+        try (InputStream in = f.fetch(start, end).toCompletableFuture().get()) {
+            byte[] expected = Arrays.copyOfRange(BYTES, (int) start,
+                    end.orElse((long) BYTES.length).intValue());
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+}